@@ -0,0 +1,276 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bitcoin account cache
+ *
+ * Accounts are cached by Bitcoin address and by Nxt account identifier.  Each index
+ * is a bounded least-recently-used map.  An address that is not in the account table
+ * is cached as a negative entry so that repeated lookups for unknown addresses do not
+ * access the database.
+ *
+ * Entries are removed when an account is stored or deleted.  Each change increments
+ * the cache generation and a database result is added to the cache only if the
+ * generation has not changed since the lookup started.  This prevents a lookup that
+ * overlaps a change from caching the old database contents.
+ */
+class BitcoinAccountCache {
+
+    /** Negative cache entry */
+    private static final BitcoinAccount NO_ACCOUNT = new BitcoinAccount("", 0, 0, null, 0);
+
+    /** Maximum number of entries in each index */
+    private final int cacheSize;
+
+    /** Accounts by Bitcoin address (access ordered) */
+    private final Map<String, BitcoinAccount> addressMap;
+
+    /** Accounts by Nxt account identifier (access ordered) */
+    private final Map<Long, List<BitcoinAccount>> accountMap;
+
+    /** Cache generation */
+    private final AtomicLong generation = new AtomicLong();
+
+    /** Cache hits */
+    private final AtomicLong hits = new AtomicLong();
+
+    /** Negative cache hits */
+    private final AtomicLong negativeHits = new AtomicLong();
+
+    /** Cache misses */
+    private final AtomicLong misses = new AtomicLong();
+
+    /** Cache evictions */
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * Create the account cache
+     *
+     * @param   cacheSize       Maximum number of entries in each index
+     */
+    BitcoinAccountCache(int cacheSize) {
+        this.cacheSize = cacheSize;
+        this.addressMap = new LinkedHashMap<String, BitcoinAccount>(cacheSize + cacheSize / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, BitcoinAccount> eldest) {
+                boolean remove = size() > BitcoinAccountCache.this.cacheSize;
+                if (remove) {
+                    evictions.incrementAndGet();
+                }
+                return remove;
+            }
+        };
+        this.accountMap = new LinkedHashMap<Long, List<BitcoinAccount>>(cacheSize + cacheSize / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, List<BitcoinAccount>> eldest) {
+                boolean remove = size() > BitcoinAccountCache.this.cacheSize;
+                if (remove) {
+                    evictions.incrementAndGet();
+                }
+                return remove;
+            }
+        };
+    }
+
+    /**
+     * Get the current cache generation
+     *
+     * The generation must be obtained before reading the database and passed to
+     * the method that adds the result to the cache.
+     *
+     * @return                  Cache generation
+     */
+    long getGeneration() {
+        return generation.get();
+    }
+
+    /**
+     * Get the account for a Bitcoin address
+     *
+     * @param   address         Bitcoin address
+     * @return                  Account, empty if the address is unknown or null if not cached
+     */
+    Optional<BitcoinAccount> getAccount(String address) {
+        BitcoinAccount account;
+        synchronized(addressMap) {
+            account = addressMap.get(address);
+        }
+        if (account == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (account == NO_ACCOUNT) {
+            negativeHits.incrementAndGet();
+            return Optional.empty();
+        }
+        hits.incrementAndGet();
+        return Optional.of(account);
+    }
+
+    /**
+     * Get the accounts for a Nxt account identifier
+     *
+     * @param   accountId       Nxt account identifier
+     * @return                  Copy of the account list or null if not cached
+     */
+    List<BitcoinAccount> getAccounts(long accountId) {
+        List<BitcoinAccount> accountList;
+        synchronized(accountMap) {
+            accountList = accountMap.get(accountId);
+        }
+        if (accountList == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return new ArrayList<>(accountList);
+    }
+
+    /**
+     * Add the result of a Bitcoin address lookup
+     *
+     * @param   address         Bitcoin address
+     * @param   account         Account or null if the address is unknown
+     * @param   lookupGeneration    Cache generation when the lookup started
+     */
+    void putAccount(String address, BitcoinAccount account, long lookupGeneration) {
+        synchronized(addressMap) {
+            if (generation.get() == lookupGeneration) {
+                addressMap.put(address, (account != null ? account : NO_ACCOUNT));
+            }
+        }
+    }
+
+    /**
+     * Add the result of a Nxt account lookup
+     *
+     * @param   accountId       Nxt account identifier
+     * @param   accountList     Account list
+     * @param   lookupGeneration    Cache generation when the lookup started
+     */
+    void putAccounts(long accountId, List<BitcoinAccount> accountList, long lookupGeneration) {
+        synchronized(accountMap) {
+            if (generation.get() == lookupGeneration) {
+                accountMap.put(accountId, new ArrayList<>(accountList));
+            }
+        }
+    }
+
+    /**
+     * Remove the entries for stored accounts
+     *
+     * @param   accounts        Stored accounts
+     */
+    void invalidate(Collection<BitcoinAccount> accounts) {
+        synchronized(addressMap) {
+            synchronized(accountMap) {
+                generation.incrementAndGet();
+                for (BitcoinAccount account : accounts) {
+                    addressMap.remove(account.getBitcoinAddress());
+                    accountMap.remove(account.getAccountId());
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove the entries for a deleted Bitcoin address
+     *
+     * @param   address         Bitcoin address
+     */
+    void invalidate(String address) {
+        synchronized(addressMap) {
+            synchronized(accountMap) {
+                generation.incrementAndGet();
+                addressMap.remove(address);
+                Iterator<List<BitcoinAccount>> it = accountMap.values().iterator();
+                while (it.hasNext()) {
+                    if (it.next().stream().anyMatch((a) -> a.getBitcoinAddress().equals(address))) {
+                        it.remove();
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the number of cached Bitcoin addresses
+     *
+     * @return                  Number of address entries (including negative entries)
+     */
+    int getAddressCount() {
+        synchronized(addressMap) {
+            return addressMap.size();
+        }
+    }
+
+    /**
+     * Get the number of cached Nxt accounts
+     *
+     * @return                  Number of account entries
+     */
+    int getAccountCount() {
+        synchronized(accountMap) {
+            return accountMap.size();
+        }
+    }
+
+    /**
+     * Get the number of cache hits
+     *
+     * @return                  Number of cache hits
+     */
+    long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * Get the number of negative cache hits
+     *
+     * @return                  Number of negative cache hits
+     */
+    long getNegativeHits() {
+        return negativeHits.get();
+    }
+
+    /**
+     * Get the number of cache misses
+     *
+     * @return                  Number of cache misses
+     */
+    long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * Get the number of cache evictions
+     *
+     * @return                  Number of evictions
+     */
+    long getEvictions() {
+        return evictions.get();
+    }
+}
@@ -0,0 +1,295 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Receive address index
+ *
+ * The index maps a 20-byte address hash (RIPEMD-160 of the SHA-256 of the public key)
+ * to the child number of the address key.  The index uses open addressing with
+ * linear probing.  The address hashes are stored in a single byte array and the
+ * child numbers are stored in an int array, so there is no per-entry object overhead.
+ * An empty slot has a child number of -1 (receive keys are not hardened, so a
+ * child number is never negative).
+ *
+ * Lookups can be done directly against a P2PKH output script without extracting
+ * the address hash, so matching a transaction output does not allocate any objects.
+ * Lookups use a shared read lock so that outputs can be matched in parallel.
+ */
+class BitcoinAddressIndex {
+
+    /** Address hash length */
+    static final int HASH_LENGTH = 20;
+
+    /** Offset of the address hash in a P2PKH output script */
+    static final int P2PKH_HASH_OFFSET = 3;
+
+    /** P2PKH output script length */
+    private static final int P2PKH_SCRIPT_LENGTH = 25;
+
+    /** Initial capacity */
+    private static final int INITIAL_CAPACITY = 1024;
+
+    /** Address hashes */
+    private byte[] hashes;
+
+    /** Child numbers (-1 if slot is empty) */
+    private int[] children;
+
+    /** Number of entries */
+    private int count;
+
+    /** Index lock */
+    private final ReentrantReadWriteLock indexLock = new ReentrantReadWriteLock();
+
+    /**
+     * Create an empty address index
+     */
+    BitcoinAddressIndex() {
+        allocate(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Check if an output script is a P2PKH script
+     *
+     * A P2PKH script is OP_DUP OP_HASH160 <20-byte hash> OP_EQUALVERIFY OP_CHECKSIG.
+     * The address hash starts at P2PKH_HASH_OFFSET.
+     *
+     * @param   script          Output script
+     * @return                  TRUE if this is a P2PKH script
+     */
+    static boolean isP2PKH(byte[] script) {
+        return (script.length == P2PKH_SCRIPT_LENGTH &&
+                script[0] == (byte)0x76 && script[1] == (byte)0xa9 && script[2] == (byte)HASH_LENGTH &&
+                script[23] == (byte)0x88 && script[24] == (byte)0xac);
+    }
+
+    /**
+     * Add an address to the index or replace an existing address
+     *
+     * @param   hash            Address hash
+     * @param   childNumber     Child number
+     */
+    void put(byte[] hash, int childNumber) {
+        if (childNumber < 0) {
+            throw new IllegalArgumentException("Child number " + childNumber + " is not valid");
+        }
+        indexLock.writeLock().lock();
+        try {
+            if ((count + 1) * 4 > children.length * 3) {
+                resize(children.length * 2);
+            }
+            int slot = findSlot(hash, 0);
+            if (children[slot] < 0) {
+                System.arraycopy(hash, 0, hashes, slot * HASH_LENGTH, HASH_LENGTH);
+                count++;
+            }
+            children[slot] = childNumber;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the child number for an address
+     *
+     * @param   hash            Address hash
+     * @return                  Child number or -1 if the address is not in the index
+     */
+    int get(byte[] hash) {
+        indexLock.readLock().lock();
+        try {
+            return children[findSlot(hash, 0)];
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the child number for the address in a P2PKH output script
+     *
+     * @param   script          Output script
+     * @return                  Child number or -1 if the script is not P2PKH or the address is not in the index
+     */
+    int getFromScript(byte[] script) {
+        if (!isP2PKH(script)) {
+            return -1;
+        }
+        indexLock.readLock().lock();
+        try {
+            return children[findSlot(script, P2PKH_HASH_OFFSET)];
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Remove an address from the index
+     *
+     * The entries following the removed entry are shifted back so that the
+     * probe sequence remains unbroken without using deleted markers.
+     *
+     * @param   hash            Address hash
+     * @return                  TRUE if the address was removed
+     */
+    boolean remove(byte[] hash) {
+        indexLock.writeLock().lock();
+        try {
+            int slot = findSlot(hash, 0);
+            if (children[slot] < 0) {
+                return false;
+            }
+            int mask = children.length - 1;
+            int hole = slot;
+            int next = (hole + 1) & mask;
+            while (children[next] >= 0) {
+                int home = hashSlot(hashes, next * HASH_LENGTH);
+                if (((next - home) & mask) >= ((next - hole) & mask)) {
+                    System.arraycopy(hashes, next * HASH_LENGTH, hashes, hole * HASH_LENGTH, HASH_LENGTH);
+                    children[hole] = children[next];
+                    hole = next;
+                }
+                next = (next + 1) & mask;
+            }
+            children[hole] = -1;
+            count--;
+            return true;
+        } finally {
+            indexLock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Get the address hashes in the index
+     *
+     * @return                  List of address hashes
+     */
+    List<byte[]> getHashes() {
+        indexLock.readLock().lock();
+        try {
+            List<byte[]> hashList = new ArrayList<>(count);
+            for (int i=0; i<children.length; i++) {
+                if (children[i] >= 0) {
+                    hashList.add(Arrays.copyOfRange(hashes, i * HASH_LENGTH, (i + 1) * HASH_LENGTH));
+                }
+            }
+            return hashList;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Get the number of addresses in the index
+     *
+     * @return                  Number of addresses
+     */
+    int size() {
+        indexLock.readLock().lock();
+        try {
+            return count;
+        } finally {
+            indexLock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Find the slot for an address hash
+     *
+     * @param   bytes           Byte array containing the address hash
+     * @param   offset          Offset of the address hash
+     * @return                  Slot containing the address or the empty slot where it would be stored
+     */
+    private int findSlot(byte[] bytes, int offset) {
+        int mask = children.length - 1;
+        int slot = hashSlot(bytes, offset);
+        while (children[slot] >= 0 && !hashEquals(bytes, offset, slot * HASH_LENGTH)) {
+            slot = (slot + 1) & mask;
+        }
+        return slot;
+    }
+
+    /**
+     * Get the home slot for an address hash
+     *
+     * The address hash is uniformly distributed, so the first four bytes are
+     * used as the hash code.
+     *
+     * @param   bytes           Byte array containing the address hash
+     * @param   offset          Offset of the address hash
+     * @return                  Home slot
+     */
+    private int hashSlot(byte[] bytes, int offset) {
+        int hashCode = (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) |
+                ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+        return hashCode & (children.length - 1);
+    }
+
+    /**
+     * Compare an address hash with the hash stored at the specified offset
+     *
+     * @param   bytes           Byte array containing the address hash
+     * @param   offset          Offset of the address hash
+     * @param   hashOffset      Offset of the stored hash
+     * @return                  TRUE if the hashes are equal
+     */
+    private boolean hashEquals(byte[] bytes, int offset, int hashOffset) {
+        for (int i=0; i<HASH_LENGTH; i++) {
+            if (bytes[offset + i] != hashes[hashOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Allocate the index arrays
+     *
+     * @param   capacity        Number of slots (must be a power of 2)
+     */
+    private void allocate(int capacity) {
+        hashes = new byte[capacity * HASH_LENGTH];
+        children = new int[capacity];
+        for (int i=0; i<capacity; i++) {
+            children[i] = -1;
+        }
+        count = 0;
+    }
+
+    /**
+     * Resize the index
+     *
+     * @param   capacity        New number of slots (must be a power of 2)
+     */
+    private void resize(int capacity) {
+        byte[] oldHashes = hashes;
+        int[] oldChildren = children;
+        allocate(capacity);
+        for (int i=0; i<oldChildren.length; i++) {
+            if (oldChildren[i] >= 0) {
+                int slot = findSlot(oldHashes, i * HASH_LENGTH);
+                System.arraycopy(oldHashes, i * HASH_LENGTH, hashes, slot * HASH_LENGTH, HASH_LENGTH);
+                children[slot] = oldChildren[i];
+                count++;
+            }
+        }
+    }
+}
@@ -0,0 +1,278 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import nxt.util.Logger;
+
+import org.bitcoinj.crypto.ChildNumber;
+import org.bitcoinj.crypto.DeterministicKey;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Bitcoin receive address pool
+ *
+ * The address pool holds external keys that have been derived ahead of time so that
+ * a new receive address can be issued without accessing the database.  The child
+ * numbers are allocated in blocks and the pool is refilled by a background thread when
+ * it falls below half of its size.  Pre-derived keys that have not been issued
+ * when the server is stopped are skipped.
+ *
+ * New accounts are written to the database by the pool thread.  Accounts stored
+ * while a write is in progress are written together in the next database transaction
+ * and the caller waits until its account has been committed, so an address is not
+ * returned to the user until it will survive a server failure.  Pending accounts are
+ * retained if the database transaction fails and are written again after the batch
+ * interval or when the pool is shutdown.
+ */
+class BitcoinAddressPool {
+
+    /** Maximum time between batch writes (milliseconds) */
+    private static final long BATCH_INTERVAL = 250;
+
+    /** Maximum time to wait for an account to be written (milliseconds) */
+    private static final long STORE_TIMEOUT = 10000;
+
+    /** External parent key */
+    private final DeterministicKey parentKey;
+
+    /** External child number allocator */
+    private final ChildNumberAllocator allocator;
+
+    /** Pool size */
+    private final int poolSize;
+
+    /** Pre-derived keys */
+    private final ConcurrentLinkedQueue<DeterministicKey> keys = new ConcurrentLinkedQueue<>();
+
+    /** Number of pre-derived keys */
+    private final AtomicInteger keyCount = new AtomicInteger();
+
+    /** Pool refill has been requested */
+    private final AtomicBoolean refillPending = new AtomicBoolean();
+
+    /** Accounts waiting to be written to the database (Bitcoin address to account) */
+    private final Map<String, BitcoinAccount> pendingAccounts = new ConcurrentHashMap<>();
+
+    /** Account write has been requested */
+    private final AtomicBoolean flushPending = new AtomicBoolean();
+
+    /** Monitor notified when pending accounts have been written */
+    private final Object storedMonitor = new Object();
+
+    /** Pool executor */
+    private final ScheduledExecutorService executor;
+
+    /**
+     * Create the address pool
+     *
+     * @param   parentKey       External parent key
+     * @param   allocator       External child number allocator
+     * @param   poolSize        Number of pre-derived keys
+     */
+    BitcoinAddressPool(DeterministicKey parentKey, ChildNumberAllocator allocator, int poolSize) {
+        this.parentKey = parentKey;
+        this.allocator = allocator;
+        this.poolSize = poolSize;
+        this.executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "TokenExchange Address Pool");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.execute(this::refill);
+        executor.scheduleWithFixedDelay(this::flush, BATCH_INTERVAL, BATCH_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Get a pre-derived key
+     *
+     * A refill is requested if the pool is below half of its size.
+     *
+     * @return                  Key or null if the pool is empty
+     */
+    DeterministicKey getKey() {
+        DeterministicKey key = keys.poll();
+        if (key != null) {
+            keyCount.decrementAndGet();
+        }
+        if (keyCount.get() < poolSize / 2 && refillPending.compareAndSet(false, true)) {
+            executor.execute(this::refill);
+        }
+        return key;
+    }
+
+    /**
+     * Get the number of pre-derived keys
+     *
+     * @return                  Number of keys
+     */
+    int getKeyCount() {
+        return keyCount.get();
+    }
+
+    /**
+     * Store an account
+     *
+     * The account is written to the database by the pool thread and the caller
+     * waits until the database transaction has been committed.
+     *
+     * @param   account         Account
+     * @throws  SQLException    Account was not written to the database
+     */
+    void storeAccount(BitcoinAccount account) throws SQLException {
+        String address = account.getBitcoinAddress();
+        pendingAccounts.put(address, account);
+        if (flushPending.compareAndSet(false, true)) {
+            if (executor.isShutdown()) {
+                flush();
+            } else {
+                executor.execute(this::flush);
+            }
+        }
+        long deadline = System.currentTimeMillis() + STORE_TIMEOUT;
+        try {
+            synchronized(storedMonitor) {
+                while (pendingAccounts.get(address) == account) {
+                    long delay = deadline - System.currentTimeMillis();
+                    if (delay <= 0) {
+                        throw new SQLException("Bitcoin account for " + address + " was not stored");
+                    }
+                    storedMonitor.wait(delay);
+                }
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while storing Bitcoin account for " + address, exc);
+        }
+    }
+
+    /**
+     * Get a pending account
+     *
+     * @param   address         Bitcoin address
+     * @return                  Account or null if there is no pending account
+     */
+    BitcoinAccount getPendingAccount(String address) {
+        return pendingAccounts.get(address);
+    }
+
+    /**
+     * Get the most recent pending account for a Nxt account
+     *
+     * @param   accountId       Nxt account identifier
+     * @return                  Account or null if there is no pending account
+     */
+    BitcoinAccount getPendingAccount(long accountId) {
+        BitcoinAccount result = null;
+        for (BitcoinAccount account : pendingAccounts.values()) {
+            if (account.getAccountId() == accountId &&
+                    (result == null || account.getChildNumber() > result.getChildNumber())) {
+                result = account;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Get the number of pending accounts
+     *
+     * @return                  Number of accounts
+     */
+    int getPendingCount() {
+        return pendingAccounts.size();
+    }
+
+    /**
+     * Shutdown the address pool
+     *
+     * Pending accounts are written to the database
+     */
+    void shutdown() {
+        executor.shutdown();
+        try {
+            if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                executor.shutdownNow();
+            }
+        } catch (InterruptedException exc) {
+            executor.shutdownNow();
+        }
+        flush();
+        if (!pendingAccounts.isEmpty()) {
+            Logger.logErrorMessage(pendingAccounts.size() + " Bitcoin accounts were not stored");
+        }
+    }
+
+    /**
+     * Refill the pool
+     *
+     * A block of consecutive child numbers is allocated and the keys are derived.
+     */
+    private void refill() {
+        refillPending.set(false);
+        int count = poolSize - keyCount.get();
+        if (count <= poolSize / 2) {
+            return;
+        }
+        try {
+            BitcoinWallet.propagateContext();
+            int first = allocator.allocate(count).getI();
+            for (int i=0; i<count; i++) {
+                keys.add(BitcoinWallet.getKey(parentKey, new ChildNumber(first + i)));
+                keyCount.incrementAndGet();
+            }
+        } catch (Exception exc) {
+            Logger.logErrorMessage("Unable to refill the Bitcoin address pool", exc);
+        }
+    }
+
+    /**
+     * Write pending accounts to the database
+     *
+     * The accounts are written in a single database transaction and are
+     * retained if the database transaction fails.
+     */
+    synchronized void flush() {
+        flushPending.set(false);
+        if (pendingAccounts.isEmpty()) {
+            return;
+        }
+        List<BitcoinAccount> accounts = new ArrayList<>(pendingAccounts.values());
+        try {
+            TokenDb.beginTransaction();
+            TokenDb.storeAccounts(accounts);
+            TokenDb.commitTransaction();
+            accounts.forEach((account) -> pendingAccounts.remove(account.getBitcoinAddress(), account));
+            synchronized(storedMonitor) {
+                storedMonitor.notifyAll();
+            }
+        } catch (Exception exc) {
+            TokenDb.rollbackTransaction();
+            Logger.logErrorMessage("Unable to store Bitcoin accounts", exc);
+        } finally {
+            TokenDb.endTransaction();
+        }
+    }
+}
@@ -24,26 +24,90 @@ import org.bitcoinj.core.StoredBlock;
 import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.store.BlockStoreException;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
 /**
  * Bitcoin block store
  *
  * Blocks are stored in a SQL table.  The block header, block height, and cumulative
  * work are stored.  Block transactions are not stored and are not available when
  * a block is retrieved from the block store.
+ *
+ * The most recently used blocks are kept in a bounded in-memory cache so that
+ * connecting a new block header and walking back through the chain during a
+ * reorganization or difficulty transition do not require a database lookup.
+ * Outside of batch mode, new blocks and chain head updates are added to the
+ * cache and are written to the database by the database write-behind queue so
+ * the BitcoinJ thread does not wait for the database.  Queued writes are flushed
+ * before the database is read.  The chain head is held separately and is never evicted.
+ *
+ * Batch mode is used while downloading the block chain.  New blocks are held
+ * in memory and written to the database in a single database transaction
+ * when the batch size or batch interval is reached.  The chain head is updated
+ * in the same database transaction, so the stored chain head always refers to
+ * a stored block.
  */
 public class BitcoinBlockStore implements BlockStore {
 
     /** Network parameters */
     private final NetworkParameters params;
 
+    /** Block cache (access ordered) */
+    private final Map<Sha256Hash, StoredBlock> blockCache;
+
+    /** Maximum number of cached blocks */
+    private final int cacheSize;
+
+    /** Current chain head */
+    private volatile StoredBlock chainHead;
+
+    /** Cache hits */
+    private final AtomicLong cacheHits = new AtomicLong();
+
+    /** Cache misses */
+    private final AtomicLong cacheMisses = new AtomicLong();
+
+    /** Blocks waiting to be written to the database (batch mode) */
+    private final Map<Sha256Hash, StoredBlock> pendingBlocks = new LinkedHashMap<>();
+
+    /** Chain head waiting to be written to the database (batch mode) */
+    private StoredBlock pendingChainHead;
+
+    /** Batch mode is active */
+    private boolean batchMode;
+
+    /** Maximum number of blocks in a batch */
+    private final int batchSize;
+
+    /** Maximum time between batch writes (milliseconds) */
+    private final long batchInterval;
+
+    /** Time of the last batch write */
+    private long lastFlushTime;
+
     /**
      * Create the block store
      *
      * @param   params                  Network parameters
+     * @param   cacheSize               Maximum number of cached blocks
+     * @param   batchSize               Maximum number of blocks in a batch
+     * @param   batchInterval           Maximum time between batch writes (milliseconds)
      * @throws  BlockStoreException     Error occurred
      */
-    BitcoinBlockStore(NetworkParameters params) throws BlockStoreException {
+    BitcoinBlockStore(NetworkParameters params, int cacheSize, int batchSize, long batchInterval)
+                                        throws BlockStoreException {
         this.params = params;
+        this.cacheSize = cacheSize;
+        this.batchSize = batchSize;
+        this.batchInterval = batchInterval;
+        this.blockCache = new LinkedHashMap<Sha256Hash, StoredBlock>(cacheSize + cacheSize / 3 + 1, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Sha256Hash, StoredBlock> eldest) {
+                return size() > BitcoinBlockStore.this.cacheSize;
+            }
+        };
         try {
             StoredBlock genesisBlock = getChainHead();
             if (genesisBlock == null) {
@@ -66,13 +130,34 @@ public class BitcoinBlockStore implements BlockStore {
      */
     @Override
     public void put(StoredBlock block) throws BlockStoreException {
+        Sha256Hash hash = block.getHeader().getHash();
+        synchronized(pendingBlocks) {
+            if (batchMode) {
+                boolean stored;
+                synchronized(blockCache) {
+                    stored = blockCache.containsKey(hash);
+                    blockCache.put(hash, block);
+                }
+                if (!stored) {
+                    pendingBlocks.put(hash, block);
+                    if (pendingBlocks.size() >= batchSize ||
+                            System.currentTimeMillis() - lastFlushTime >= batchInterval) {
+                        flush();
+                    }
+                }
+                return;
+            }
+        }
         try {
-            TokenDb.storeBlock(block);
+            TokenDb.queueWrite(() -> TokenDb.storeBlock(block), true);
         } catch (Exception exc) {
             Logger.logErrorMessage("Unable to store Bitcoin block "
                     + block.getHeader().getHash() + " at height " + block.getHeight(), exc);
             throw new BlockStoreException("Unable to store Bitcoin block", exc);
         }
+        synchronized(blockCache) {
+            blockCache.put(hash, block);
+        }
     }
 
     /**
@@ -84,13 +169,36 @@ public class BitcoinBlockStore implements BlockStore {
      */
     @Override
     public StoredBlock get(Sha256Hash hash) throws BlockStoreException {
-        StoredBlock block;
+        StoredBlock block = chainHead;
+        if (block != null && block.getHeader().getHash().equals(hash)) {
+            cacheHits.incrementAndGet();
+            return block;
+        }
+        synchronized(blockCache) {
+            block = blockCache.get(hash);
+        }
+        if (block == null) {
+            synchronized(pendingBlocks) {
+                block = pendingBlocks.get(hash);
+            }
+        }
+        if (block != null) {
+            cacheHits.incrementAndGet();
+            return block;
+        }
+        cacheMisses.incrementAndGet();
         try {
+            TokenDb.flushWrites();
             block = TokenDb.getBlock(params, hash);
         } catch (Exception exc) {
             Logger.logErrorMessage("Unable to get Bitcoin block " + hash, exc);
             throw new BlockStoreException("Unable to get Bitcoin block", exc);
         }
+        if (block != null) {
+            synchronized(blockCache) {
+                blockCache.put(hash, block);
+            }
+        }
         return block;
     }
 
@@ -102,13 +210,19 @@ public class BitcoinBlockStore implements BlockStore {
      */
     @Override
     public StoredBlock getChainHead() throws BlockStoreException {
-        StoredBlock block;
+        StoredBlock block = chainHead;
+        if (block != null) {
+            cacheHits.incrementAndGet();
+            return block;
+        }
+        cacheMisses.incrementAndGet();
         try {
             block = TokenDb.getChainHead(params);
         } catch (Exception exc) {
             Logger.logErrorMessage("Unable to get Bitcoin block chain head", exc);
             throw new BlockStoreException("Unable to get Bitcoin block chain head", exc);
         }
+        chainHead = block;
         return block;
     }
 
@@ -120,12 +234,29 @@ public class BitcoinBlockStore implements BlockStore {
      */
     @Override
     public void setChainHead(StoredBlock chainHead) throws BlockStoreException {
+        synchronized(pendingBlocks) {
+            if (batchMode) {
+                pendingChainHead = chainHead;
+                this.chainHead = chainHead;
+                synchronized(blockCache) {
+                    blockCache.put(chainHead.getHeader().getHash(), chainHead);
+                }
+                if (System.currentTimeMillis() - lastFlushTime >= batchInterval) {
+                    flush();
+                }
+                return;
+            }
+        }
         try {
-            TokenDb.setChainHead(chainHead);
+            TokenDb.queueWrite(() -> TokenDb.setChainHead(chainHead), true);
         } catch (Exception exc) {
             Logger.logErrorMessage("Unable to set Bitcoin block chain head", exc);
             throw new BlockStoreException("Unable to set Bitcoin block chain head", exc);
         }
+        this.chainHead = chainHead;
+        synchronized(blockCache) {
+            blockCache.put(chainHead.getHeader().getHash(), chainHead);
+        }
     }
 
     /**
@@ -135,7 +266,11 @@ public class BitcoinBlockStore implements BlockStore {
      */
     @Override
     public void close() throws BlockStoreException {
-        // Nothing to do since the block table will be closed when the database is closed
+        // The block table will be closed when the database is closed
+        endBatch();
+        synchronized(blockCache) {
+            blockCache.clear();
+        }
     }
 
     /**
@@ -147,4 +282,98 @@ public class BitcoinBlockStore implements BlockStore {
     public NetworkParameters getParams() {
         return params;
     }
+
+    /**
+     * Start batch mode
+     *
+     * New blocks will be held in memory until the batch size or the batch interval
+     * is reached.  The caller must call endBatch() to write any remaining blocks.
+     */
+    void beginBatch() {
+        synchronized(pendingBlocks) {
+            batchMode = true;
+            lastFlushTime = System.currentTimeMillis();
+        }
+    }
+
+    /**
+     * End batch mode
+     *
+     * Pending blocks and the pending chain head are written to the database
+     *
+     * @throws  BlockStoreException     Error occurred
+     */
+    void endBatch() throws BlockStoreException {
+        synchronized(pendingBlocks) {
+            if (batchMode) {
+                flush();
+                batchMode = false;
+            }
+        }
+    }
+
+    /**
+     * Write pending blocks and the pending chain head to the database
+     *
+     * Queued block writes are flushed first so that an earlier chain head does
+     * not replace the pending chain head.  The blocks and the chain head are
+     * written in a single database transaction so that the stored chain head
+     * always refers to a stored block.  Blocks that are already in the database
+     * are ignored.  The pending blocks are retained if the database transaction
+     * fails.  The caller must hold the pending blocks lock.
+     *
+     * @throws  BlockStoreException     Error occurred
+     */
+    private void flush() throws BlockStoreException {
+        lastFlushTime = System.currentTimeMillis();
+        if (pendingBlocks.isEmpty() && pendingChainHead == null) {
+            return;
+        }
+        try {
+            TokenDb.flushWrites();
+            TokenDb.beginTransaction();
+            TokenDb.storeBlocks(pendingBlocks.values());
+            if (pendingChainHead != null) {
+                TokenDb.setChainHead(pendingChainHead);
+            }
+            TokenDb.commitTransaction();
+        } catch (Exception exc) {
+            TokenDb.rollbackTransaction();
+            Logger.logErrorMessage("Unable to store Bitcoin blocks", exc);
+            throw new BlockStoreException("Unable to store Bitcoin blocks", exc);
+        } finally {
+            TokenDb.endTransaction();
+        }
+        pendingBlocks.clear();
+        pendingChainHead = null;
+    }
+
+    /**
+     * Get the number of cached blocks
+     *
+     * @return                          Number of cached blocks
+     */
+    int getCacheCount() {
+        synchronized(blockCache) {
+            return blockCache.size();
+        }
+    }
+
+    /**
+     * Get the number of cache hits
+     *
+     * @return                          Number of cache hits
+     */
+    long getCacheHits() {
+        return cacheHits.get();
+    }
+
+    /**
+     * Get the number of cache misses
+     *
+     * @return                          Number of cache misses
+     */
+    long getCacheMisses() {
+        return cacheMisses.get();
+    }
 }
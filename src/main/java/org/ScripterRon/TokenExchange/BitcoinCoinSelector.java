@@ -0,0 +1,260 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import org.bitcoinj.core.Transaction;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Coin selector
+ *
+ * A coin selector chooses the unspent outputs that are used as the inputs for a
+ * send request.  The selected outputs must cover the requested amount plus the
+ * transaction fee.  The caller will report insufficient funds if they do not.
+ *
+ * The transaction size is estimated as 10 bytes plus 148 bytes for each P2PKH input
+ * and 34 bytes for each P2PKH output.  The transaction fee is based on the
+ * 'bitcoinTxFee' configuration option.
+ */
+interface BitcoinCoinSelector {
+
+    /** Transaction overhead size */
+    static final int TX_OVERHEAD_SIZE = 10;
+
+    /** Transaction input size */
+    static final int TX_INPUT_SIZE = 148;
+
+    /** Transaction output size */
+    static final int TX_OUTPUT_SIZE = 34;
+
+    /**
+     * Select the unspent outputs for a transaction
+     *
+     * @param   unspentOutputs  Unspent output set
+     * @param   amount          Amount to send (Satoshis)
+     * @param   outputCount     Number of outputs not including the change output
+     * @return                  Selected outputs
+     */
+    List<BitcoinUnspent> select(BitcoinUnspentSet unspentOutputs, long amount, int outputCount);
+
+    /**
+     * Get the transaction fee
+     *
+     * @param   inputCount      Number of inputs
+     * @param   outputCount     Number of outputs
+     * @return                  Transaction fee (Satoshis)
+     */
+    static long getFee(int inputCount, int outputCount) {
+        return getFee(TX_OVERHEAD_SIZE + inputCount * TX_INPUT_SIZE + outputCount * TX_OUTPUT_SIZE);
+    }
+
+    /**
+     * Get the transaction fee
+     *
+     * @param   length          Transaction length
+     * @return                  Transaction fee (Satoshis)
+     */
+    static long getFee(int length) {
+        return BigDecimal.valueOf(length, 3).multiply(TokenAddon.bitcoinTxFee).movePointRight(8).longValue();
+    }
+
+    /**
+     * Get a coin selection strategy
+     *
+     * @param   name            Strategy name (case is ignored)
+     * @return                  Coin selector
+     * @throws  IllegalArgumentException  Strategy name is not valid
+     */
+    static BitcoinCoinSelector getSelector(String name) {
+        try {
+            return Strategy.valueOf(name.toUpperCase());
+        } catch (IllegalArgumentException exc) {
+            throw new IllegalArgumentException("Coin selection strategy '" + name + "' is not valid");
+        }
+    }
+
+    /**
+     * Coin selection strategies
+     */
+    enum Strategy implements BitcoinCoinSelector {
+
+        /**
+         * Use the smallest outputs first.  This reduces the number of unspent outputs
+         * but can increase the transaction fee since more inputs are used.
+         */
+        SMALLEST_FIRST {
+            @Override
+            public List<BitcoinUnspent> select(BitcoinUnspentSet unspentOutputs, long amount, int outputCount) {
+                List<BitcoinUnspent> selected = new ArrayList<>();
+                long[] inputAmount = new long[1];
+                unspentOutputs.forEachActive((unspent) -> {
+                    selected.add(unspent);
+                    inputAmount[0] += unspent.getAmount();
+                    return (inputAmount[0] < amount + getFee(selected.size(), outputCount + 1));
+                });
+                return selected;
+            }
+        },
+
+        /**
+         * Use the largest outputs first.  This results in the fewest inputs, so the
+         * transaction is smaller and is signed faster.
+         */
+        LARGEST_FIRST {
+            @Override
+            public List<BitcoinUnspent> select(BitcoinUnspentSet unspentOutputs, long amount, int outputCount) {
+                List<BitcoinUnspent> selected = new ArrayList<>();
+                long[] inputAmount = new long[1];
+                unspentOutputs.forEachActiveDescending((unspent) -> {
+                    selected.add(unspent);
+                    inputAmount[0] += unspent.getAmount();
+                    return (inputAmount[0] < amount + getFee(selected.size(), outputCount + 1));
+                });
+                return selected;
+            }
+        },
+
+        /**
+         * Search for a set of outputs that matches the amount plus the fee without
+         * creating a change output.  The excess must be less than the cost of a change
+         * output plus the dust limit and is added to the transaction fee.  The outputs
+         * are searched depth-first from largest to smallest using branch-and-bound and
+         * the search is limited to MAX_TRIES steps.  The smallest-first strategy is
+         * used if there is no match.
+         */
+        BRANCH_AND_BOUND {
+
+            /** Maximum number of search steps */
+            private static final int MAX_TRIES = 100000;
+
+            /** Maximum number of candidate outputs */
+            private static final int MAX_CANDIDATES = 1000;
+
+            @Override
+            public List<BitcoinUnspent> select(BitcoinUnspentSet unspentOutputs, long amount, int outputCount) {
+                //
+                // Get the candidate outputs in descending order.  An output is not a
+                // candidate if it costs more to spend than it is worth or if it exceeds
+                // the largest match.
+                //
+                long inputFee = getFee(TX_INPUT_SIZE);
+                long target = amount + getFee(0, outputCount);
+                long window = getFee(TX_OUTPUT_SIZE) + Transaction.MIN_NONDUST_OUTPUT.getValue();
+                List<BitcoinUnspent> candidates = new ArrayList<>();
+                unspentOutputs.forEachActiveDescending((unspent) -> {
+                    long value = unspent.getAmount() - inputFee;
+                    if (value <= 0) {
+                        return false;
+                    }
+                    if (value <= target + window) {
+                        candidates.add(unspent);
+                    }
+                    return (candidates.size() < MAX_CANDIDATES);
+                });
+                int count = candidates.size();
+                long[] values = new long[count];
+                long available = 0;
+                for (int i=0; i<count; i++) {
+                    values[i] = candidates.get(i).getAmount() - inputFee;
+                    available += values[i];
+                }
+                //
+                // Search for the match with the smallest excess
+                //
+                boolean[] included = new boolean[count];
+                boolean[] best = null;
+                long bestExcess = Long.MAX_VALUE;
+                long current = 0;
+                int depth = 0;
+                for (int tries=0; tries<MAX_TRIES; tries++) {
+                    boolean backtrack = false;
+                    if (current + available < target || current > target + window) {
+                        backtrack = true;
+                    } else if (current >= target) {
+                        if (current - target < bestExcess) {
+                            bestExcess = current - target;
+                            best = included.clone();
+                            if (bestExcess == 0) {
+                                break;
+                            }
+                        }
+                        backtrack = true;
+                    }
+                    if (backtrack) {
+                        while (depth > 0 && !included[depth - 1]) {
+                            depth--;
+                            available += values[depth];
+                        }
+                        if (depth == 0) {
+                            break;
+                        }
+                        included[depth - 1] = false;
+                        current -= values[depth - 1];
+                    } else {
+                        included[depth] = true;
+                        current += values[depth];
+                        available -= values[depth];
+                        depth++;
+                    }
+                }
+                if (best == null) {
+                    return SMALLEST_FIRST.select(unspentOutputs, amount, outputCount);
+                }
+                List<BitcoinUnspent> selected = new ArrayList<>();
+                for (int i=0; i<count; i++) {
+                    if (best[i]) {
+                        selected.add(candidates.get(i));
+                    }
+                }
+                return selected;
+            }
+        },
+
+        /**
+         * Use the smallest outputs first and then add additional small outputs up to
+         * MAX_INPUTS inputs.  This reduces the number of unspent outputs when transaction
+         * fees are low.  An output is never added if it costs more to spend than it is worth.
+         */
+        CONSOLIDATE {
+
+            /** Maximum number of inputs */
+            private static final int MAX_INPUTS = 100;
+
+            @Override
+            public List<BitcoinUnspent> select(BitcoinUnspentSet unspentOutputs, long amount, int outputCount) {
+                long inputFee = getFee(TX_INPUT_SIZE);
+                List<BitcoinUnspent> selected = new ArrayList<>();
+                long[] inputAmount = new long[1];
+                unspentOutputs.forEachActive((unspent) -> {
+                    if (unspent.getAmount() <= inputFee) {
+                        return true;
+                    }
+                    if (selected.size() >= MAX_INPUTS &&
+                            inputAmount[0] >= amount + getFee(selected.size(), outputCount + 1)) {
+                        return false;
+                    }
+                    selected.add(unspent);
+                    inputAmount[0] += unspent.getAmount();
+                    return true;
+                });
+                return selected;
+            }
+        }
+    }
+}
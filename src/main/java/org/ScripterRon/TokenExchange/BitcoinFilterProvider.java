@@ -0,0 +1,129 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import nxt.util.Logger;
+
+import org.bitcoinj.core.BloomFilter;
+import org.bitcoinj.core.PeerFilterProvider;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Bloom filter provider (BIP 37)
+ *
+ * The filter contains the receive address hashes, the change key hashes and
+ * outpoints for our unspent outputs, and the identifiers of our pending broadcast
+ * transactions.  The peer group merges the filter elements and sends the filter
+ * to each connected peer.  The peers will then return filtered blocks containing
+ * just the transactions matching the filter.
+ *
+ * The filter elements are obtained from the wallet when the peer group starts
+ * a filter calculation.  The wallet requests a filter recalculation when a new
+ * receive address is created or a new transaction is broadcast.
+ */
+class BitcoinFilterProvider implements PeerFilterProvider {
+
+    /** Earliest key creation time */
+    private final long earliestKeyTime;
+
+    /** Filter elements for the current filter calculation */
+    private List<byte[]> filterElements = Collections.emptyList();
+
+    /**
+     * Create the filter provider
+     *
+     * @param   earliestKeyTime     Earliest key creation time (seconds since Unix epoch)
+     */
+    BitcoinFilterProvider(long earliestKeyTime) {
+        this.earliestKeyTime = earliestKeyTime;
+    }
+
+    /**
+     * Get the earliest key creation time
+     *
+     * The peer group uses this time to set the fast catch-up time.
+     *
+     * @return                      Key creation time (seconds since Unix epoch)
+     */
+    @Override
+    public long getEarliestKeyCreationTime() {
+        return earliestKeyTime;
+    }
+
+    /**
+     * Begin a filter calculation
+     *
+     * The filter elements are obtained from the wallet and are held until the
+     * filter calculation is completed.
+     */
+    @Override
+    public synchronized void beginBloomFilterCalculation() {
+        try {
+            filterElements = BitcoinWallet.getFilterElements();
+        } catch (Exception exc) {
+            Logger.logErrorMessage("Unable to get Bitcoin filter elements", exc);
+            filterElements = Collections.emptyList();
+        }
+    }
+
+    /**
+     * Get the number of filter elements
+     *
+     * @return                      Number of filter elements
+     */
+    @Override
+    public synchronized int getBloomFilterElementCount() {
+        return filterElements.size();
+    }
+
+    /**
+     * Get the Bloom filter
+     *
+     * Our unspent outputs are included in the filter, so the peer does not need to
+     * update the filter when a transaction matches.
+     *
+     * @param   size                Number of filter elements
+     * @param   falsePositiveRate   Desired false positive rate
+     * @param   nTweak              Random filter tweak
+     * @return                      Bloom filter
+     */
+    @Override
+    public synchronized BloomFilter getBloomFilter(int size, double falsePositiveRate, long nTweak) {
+        BloomFilter filter = new BloomFilter(size, falsePositiveRate, nTweak, BloomFilter.BloomUpdate.UPDATE_NONE);
+        filterElements.forEach(filter::insert);
+        return filter;
+    }
+
+    /**
+     * Check if the peer should update the filter for all matched outputs
+     *
+     * @return                      FALSE since the filter is not updated by the peer
+     */
+    @Override
+    public boolean isRequiringUpdateAllBloomFilter() {
+        return false;
+    }
+
+    /**
+     * End a filter calculation
+     */
+    @Override
+    public synchronized void endBloomFilterCalculation() {
+        filterElements = Collections.emptyList();
+    }
+}
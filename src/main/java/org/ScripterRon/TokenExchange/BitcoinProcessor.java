@@ -16,8 +16,10 @@
 package org.ScripterRon.TokenExchange;
 
 import nxt.Account;
+import nxt.Appendix;
 import nxt.Attachment;
 import nxt.Nxt;
+import nxt.NxtException;
 import nxt.util.Convert;
 import nxt.util.Logger;
 import nxt.util.ThreadPool;
@@ -31,8 +33,15 @@ import org.bitcoinj.core.TransactionOutput;
 
 import java.math.BigDecimal;
 import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.List;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
 
 /**
  * Interface between NRS and the Bitcoin server
@@ -42,12 +51,27 @@ public class BitcoinProcessor implements Runnable {
     /** Processing thread */
     private static Thread processingThread;
 
-    /** Processing queue */
-    private static final LinkedBlockingQueue<Boolean> processingQueue = new LinkedBlockingQueue<>();
+    /** Processing signal */
+    private static ProcessingSignal processingSignal;
 
     /** Last seen chain height */
     private static volatile int lastSeenHeight = 0;
 
+    /** Issuance lock (held while issuing tokens for pending Bitcoin transactions) */
+    static final MonitoredLock issuanceLock = new MonitoredLock("issuance");
+
+    /** Maximum number of Nxt transactions in an issuance batch */
+    private static final int ISSUANCE_BATCH_SIZE = 500;
+
+    /** Time after expiration before an unconfirmed issuance is issued again (seconds) */
+    private static final int EXPIRATION_MARGIN = 24 * 60 * 60;
+
+    /** Issuance transaction deadline (minutes) */
+    private static final short ISSUANCE_DEADLINE = 1440;
+
+    /** Issuance signing pool */
+    private static ForkJoinPool signingPool;
+
     /**
      * Initialize the Bitcoin processor
      *
@@ -55,6 +79,7 @@ public class BitcoinProcessor implements Runnable {
      * @throws  IllegalArgumentException    Processing error occurred
      */
     static void init(boolean delayed) throws IllegalArgumentException {
+        processingSignal = new ProcessingSignal(TokenAddon.bitcoinProcessingInterval);
         //
         // Run our Bitcoin processing thread after NRS initialization is completed.
         // Note that the Nxt processing thread will wait until the Bitcoin wallet
@@ -79,57 +104,100 @@ public class BitcoinProcessor implements Runnable {
     static void shutdown() {
         if (processingThread != null) {
             try {
-                processingQueue.put(false);
+                processingSignal.stop();
                 processingThread.join(5000);
             } catch (InterruptedException exc) {
-                // Ignored since the queue is unbounded
+                // Ignored since we are shutting down
             }
         }
+        if (signingPool != null) {
+            signingPool.shutdown();
+        }
     }
 
     /**
-     * Add a new Bitcoin transaction to the database or update an existing transaction
+     * Add new Bitcoin transactions to the database
      *
-     * This method is called each time a transaction is received that has at least one
-     * output referencing one of our account addresses.  We will store the transaction
-     * in the Bitcoin transaction table for later processing.
+     * This method is called for the transactions in a block that have at least one
+     * output referencing one of our account addresses.  We will store the transactions
+     * in the Bitcoin transaction table for later processing.  Transactions that have
+     * already been stored for the block are ignored.  The accounts for the transaction
+     * outputs are obtained using a single query and the new Bitcoin transactions are
+     * stored using a single batch.  Accounts that have not been written to the
+     * database yet are obtained from the receive address pool.  The pool is checked
+     * before the database since an account is removed from the pool after it has been
+     * committed.
      *
      * A database transaction has been started when this method is called and any
-     * database updates will be rolled back if an error occurs.  The caller holds
-     * the wallet lock.
+     * database updates will be rolled back if an error occurs.  This method is
+     * called on the block chain thread.
      *
-     * @param   tx              Transaction
-     * @param   block           Block containing the transaction
+     * @param   txList          Transactions
+     * @param   block           Block containing the transactions
      * @param   height          Chain height or 0 if not in the chain
      * @throws  ScriptException Transaction script error occurred
      * @throws  SQLException    Database error occurred
      */
-    static void addTransaction(Transaction tx, StoredBlock block, int height) throws ScriptException, SQLException {
-        Sha256Hash txHash = tx.getHash();
+    static void addTransactions(List<Transaction> txList, StoredBlock block, int height)
+                                        throws ScriptException, SQLException {
         Sha256Hash blockHash = block.getHeader().getHash();
-        if (TokenDb.transactionExists(txHash.getBytes(), blockHash.getBytes())) {
+        List<byte[]> txids = new ArrayList<>(txList.size());
+        txList.forEach((tx) -> txids.add(tx.getHash().getBytes()));
+        Set<Sha256Hash> storedSet = TokenDb.getTransactionIds(blockHash.getBytes(), txids);
+        //
+        // Get the output addresses for the new transactions
+        //
+        List<Transaction> newList = new ArrayList<>(txList.size());
+        List<String> addressList = new ArrayList<>();
+        for (Transaction tx : txList) {
+            Sha256Hash txHash = tx.getHash();
+            if (storedSet.contains(txHash)) {
+                continue;
+            }
+            newList.add(tx);
+            for (TransactionOutput output : tx.getOutputs()) {
+                Address address = output.getAddressFromP2PKHScript(BitcoinWallet.getNetworkParameters());
+                if (address == null) {
+                    throw new ScriptException("Bitcoin transaction " + txHash + " is not P2PKH, transaction ignored");
+                }
+                addressList.add(address.toBase58());
+            }
+        }
+        if (newList.isEmpty()) {
             return;
         }
-        int timestamp = Nxt.getEpochTime();
-        List<TransactionOutput> outputs = tx.getOutputs();
-        for (TransactionOutput output : outputs) {
-            Address address = output.getAddressFromP2PKHScript(BitcoinWallet.getNetworkParameters());
-            if (address == null) {
-                throw new ScriptException("Bitcoin transaction " + txHash + " is not P2PKH, transaction ignored");
+        //
+        // Create the Bitcoin transactions for outputs referencing one of our account addresses
+        //
+        Map<String, BitcoinAccount> pendingMap = new HashMap<>();
+        for (String bitcoinAddress : addressList) {
+            BitcoinAccount account = BitcoinWallet.getPendingAccount(bitcoinAddress);
+            if (account != null) {
+                pendingMap.put(bitcoinAddress, account);
             }
-            String bitcoinAddress = address.toBase58();
-            BitcoinAccount account = TokenDb.getAccount(bitcoinAddress);
-            if (account == null) {
-                continue;
+        }
+        Map<String, BitcoinAccount> accountMap = TokenDb.getAccounts(addressList);
+        accountMap.putAll(pendingMap);
+        List<BitcoinTransaction> btxList = new ArrayList<>();
+        int timestamp = Nxt.getEpochTime();
+        int addressIndex = 0;
+        for (Transaction tx : newList) {
+            Sha256Hash txHash = tx.getHash();
+            for (TransactionOutput output : tx.getOutputs()) {
+                String bitcoinAddress = addressList.get(addressIndex++);
+                BitcoinAccount account = accountMap.get(bitcoinAddress);
+                if (account == null) {
+                    continue;
+                }
+                BigDecimal bitcoinAmount = BigDecimal.valueOf(output.getValue().getValue(), 8);
+                BigDecimal tokenAmount = bitcoinAmount.divide(TokenAddon.exchangeRate);
+                btxList.add(new BitcoinTransaction(txHash.getBytes(), blockHash.getBytes(),
+                        height, timestamp, bitcoinAddress,
+                        account.getAccountId(), bitcoinAmount.movePointRight(8).longValue(),
+                        tokenAmount.movePointRight(TokenAddon.currencyDecimals).longValue()));
             }
-            BigDecimal bitcoinAmount = BigDecimal.valueOf(output.getValue().getValue(), 8);
-            BigDecimal tokenAmount = bitcoinAmount.divide(TokenAddon.exchangeRate);
-            BitcoinTransaction btx = new BitcoinTransaction(txHash.getBytes(), blockHash.getBytes(),
-                    height, timestamp, bitcoinAddress,
-                    account.getAccountId(), bitcoinAmount.movePointRight(8).longValue(),
-                    tokenAmount.movePointRight(TokenAddon.currencyDecimals).longValue());
-            TokenDb.storeTransaction(btx);
         }
+        TokenDb.storeTransactions(btxList);
     }
 
     /**
@@ -137,21 +205,46 @@ public class BitcoinProcessor implements Runnable {
      *
      * This method is called each time a new best block (chain head)
      * is received.  It can be called multiple times for the same chain
-     * height if the block chain is reorganized.
+     * height if the block chain is reorganized.  New blocks received
+     * before the processing thread wakes up result in a single
+     * processing pass for the highest block.
      *
      * @param   block           New best block
      */
     static void processTransactions(StoredBlock block) {
-        try {
-            int chainHeight = block.getHeight();
-            if (chainHeight <= lastSeenHeight) {
-                return;
-            }
-            lastSeenHeight = chainHeight;
-            processingQueue.put(true);
-        } catch (InterruptedException exc) {
-            // Ignored since the queue is unbounded
+        int chainHeight = block.getHeight();
+        if (chainHeight <= lastSeenHeight) {
+            return;
         }
+        lastSeenHeight = chainHeight;
+        processingSignal.signal(chainHeight);
+    }
+
+    /**
+     * Get the number of new blocks waiting to be processed
+     *
+     * @return                  Number of blocks
+     */
+    static int getPendingSignals() {
+        return processingSignal.getPendingCount();
+    }
+
+    /**
+     * Get the number of new blocks signalled to the processing thread
+     *
+     * @return                  Number of blocks
+     */
+    static long getSignalCount() {
+        return processingSignal.getSignalCount();
+    }
+
+    /**
+     * Get the number of processing passes
+     *
+     * @return                  Number of passes
+     */
+    static long getPassCount() {
+        return processingSignal.getPassCount();
     }
 
     /**
@@ -168,65 +261,39 @@ public class BitcoinProcessor implements Runnable {
             return;
         }
         //
-        // Process Bitcoin transactions until stopped (FALSE is placed on the queue)
+        // Create the issuance signing pool
         //
+        signingPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+        //
+        // Broadcast issuances that were not confirmed before the server was stopped
+        //
+        issuanceLock.lock();
         try {
-            while (processingQueue.take()) {
+            checkIssuances(true);
+        } catch (Exception exc) {
+            Logger.logErrorMessage("Unable to check unconfirmed issuances", exc);
+            TokenAddon.suspend("Unable to check unconfirmed issuances");
+        } finally {
+            issuanceLock.unlock();
+        }
+        //
+        // Process Bitcoin transactions until stopped
+        //
+        try {
+            int chainHeight;
+            while ((chainHeight = processingSignal.take()) > 0) {
                 if (TokenAddon.isSuspended()) {
                     continue;
                 }
-                BitcoinWallet.obtainLock();
+                issuanceLock.lock();
                 try {
-                    Account account = Account.getAccount(TokenAddon.accountId);
-                    long nxtBalance = account.getUnconfirmedBalanceNQT();
-                    Account.AccountCurrency currency =
-                            Account.getAccountCurrency(TokenAddon.accountId, TokenAddon.currencyId);
-                    if (currency == null) {
-                        TokenAddon.suspend("TokenExchange account " + Convert.rsAccount(TokenAddon.accountId) +
-                                " does not have any " + TokenAddon.currencyCode + " currency");
-                        continue;
-                    }
-                    long unitBalance = currency.getUnconfirmedUnits();
-                    //
-                    // Process pending Bitcoin transactions
-                    //
-                    List<BitcoinTransaction> txList =
-                            TokenDb.getPendingTransactions(lastSeenHeight - TokenAddon.bitcoinConfirmations);
-                    for (BitcoinTransaction tx : txList) {
-                        String bitcoinTxId = tx.getBitcoinTxIdString();
-                        long units = tx.getTokenAmount();
-                        if (units > unitBalance) {
-                            TokenAddon.suspend("Insufficient " + TokenAddon.currencyCode + " currency available "
-                                    + "to process Bitcoin transaction " + bitcoinTxId);
-                            break;
-                        }
-                        Attachment attachment =
-                                new Attachment.MonetarySystemCurrencyTransfer(TokenAddon.currencyId, units);
-                        nxt.Transaction.Builder builder = Nxt.newTransactionBuilder(TokenAddon.publicKey,
-                                0, 0, (short)1440, attachment);
-                        builder.recipientId(tx.getAccountId()).timestamp(Nxt.getEpochTime());
-                        nxt.Transaction transaction = builder.build(TokenAddon.secretPhrase);
-                        if (transaction.getFeeNQT() > nxtBalance) {
-                            TokenAddon.suspend("Insufficient NXT available to process Bitcoin transaction " +
-                                    bitcoinTxId);
-                            break;
-                        }
-                        Nxt.getTransactionProcessor().broadcast(transaction);
-                        tx.setExchanged(transaction.getId());
-                        TokenDb.updateTransaction(tx);
-                        nxtBalance -= transaction.getFeeNQT();
-                        unitBalance -= units;
-                        Logger.logInfoMessage("Issued "
-                                + BigDecimal.valueOf(units, TokenAddon.currencyDecimals).toPlainString()
-                                + " units of " + TokenAddon.currencyCode + " to "
-                                + Convert.rsAccount(tx.getAccountId())
-                                + ", Transaction " + Long.toUnsignedString(transaction.getId()));
-                    }
+                    checkIssuances(false);
+                    issueTokens(chainHeight);
                 } catch (Exception exc) {
                     Logger.logErrorMessage("Unable to process Bitcoin transactions", exc);
                     TokenAddon.suspend("Unable to process Bitcoin transactions");
                 } finally {
-                    BitcoinWallet.releaseLock();
+                    issuanceLock.unlock();
                 }
             }
             Logger.logInfoMessage("TokenExchange Bitcoin processor stopped");
@@ -235,4 +302,211 @@ public class BitcoinProcessor implements Runnable {
             TokenAddon.suspend("TokenExchange Bitcoin processor encountered fatal error");
         }
     }
+
+    /**
+     * Issue tokens for pending Bitcoin transactions
+     *
+     * Issuance is done in batches of ISSUANCE_BATCH_SIZE transactions:
+     * <ul>
+     * <li>The currency units and the NXT transaction fees are reserved in memory
+     * against the unconfirmed account balances, so the balances are read just once.
+     * <li>The Nxt transactions for the batch are signed in parallel using the
+     * issuance signing pool.
+     * <li>The signed Nxt transactions are stored using a single database transaction.
+     * <li>The Nxt transactions for the batch are broadcast.
+     * </ul>
+     *
+     * A signed Nxt transaction is stored before it is broadcast and is kept until it is
+     * confirmed.  Stored transactions are broadcast again when the server is restarted,
+     * so a Bitcoin transaction is issued exactly once even if the server fails after the
+     * database transaction is committed.
+     *
+     * The caller holds the issuance lock.
+     *
+     * @param   chainHeight     Bitcoin chain height
+     * @throws  Exception       Processing error occurred
+     */
+    private static void issueTokens(int chainHeight) throws Exception {
+        Account account = Account.getAccount(TokenAddon.accountId);
+        long nxtBalance = account.getUnconfirmedBalanceNQT();
+        Account.AccountCurrency currency =
+                Account.getAccountCurrency(TokenAddon.accountId, TokenAddon.currencyId);
+        if (currency == null) {
+            TokenAddon.suspend("TokenExchange account " + Convert.rsAccount(TokenAddon.accountId) +
+                    " does not have any " + TokenAddon.currencyCode + " currency");
+            return;
+        }
+        long unitBalance = currency.getUnconfirmedUnits();
+        //
+        // Reserve the currency units for the pending Bitcoin transactions
+        //
+        List<BitcoinTransaction> txList =
+                TokenDb.getPendingTransactions(chainHeight - TokenAddon.bitcoinConfirmations);
+        List<BitcoinTransaction> reservedList = new ArrayList<>(txList.size());
+        int timestamp = Nxt.getEpochTime();
+        for (BitcoinTransaction tx : txList) {
+            long units = tx.getTokenAmount();
+            if (units > unitBalance) {
+                TokenAddon.suspend("Insufficient " + TokenAddon.currencyCode + " currency available "
+                        + "to process Bitcoin transaction " + tx.getBitcoinTxIdString());
+                break;
+            }
+            unitBalance -= units;
+            reservedList.add(tx);
+        }
+        for (int start=0; start<reservedList.size(); start+=ISSUANCE_BATCH_SIZE) {
+            int end = Math.min(start + ISSUANCE_BATCH_SIZE, reservedList.size());
+            List<BitcoinTransaction> batch = reservedList.subList(start, end);
+            //
+            // Sign the Nxt transactions
+            //
+            List<nxt.Transaction> signedList = signingPool.submit(() -> IntStream.range(0, batch.size()).parallel()
+                    .mapToObj((i) -> buildTransaction(batch.get(i), timestamp))
+                    .collect(Collectors.toList())).get();
+            //
+            // Reserve the NXT transaction fees
+            //
+            int count = 0;
+            for (nxt.Transaction transaction : signedList) {
+                BitcoinTransaction tx = batch.get(count);
+                if (transaction.getFeeNQT() > nxtBalance) {
+                    TokenAddon.suspend("Insufficient NXT available to process Bitcoin transaction " +
+                            tx.getBitcoinTxIdString());
+                    break;
+                }
+                nxtBalance -= transaction.getFeeNQT();
+                tx.setExchanged(transaction.getId(), transaction.getBytes());
+                count++;
+            }
+            if (count == 0) {
+                break;
+            }
+            List<BitcoinTransaction> issuedList = batch.subList(0, count);
+            //
+            // Store the signed Nxt transactions
+            //
+            try {
+                TokenDb.beginTransaction();
+                TokenDb.updateTransactions(issuedList);
+                TokenDb.commitTransaction();
+            } catch (Exception exc) {
+                TokenDb.rollbackTransaction();
+                throw exc;
+            } finally {
+                TokenDb.endTransaction();
+            }
+            //
+            // Broadcast the Nxt transactions.  A transaction that is not accepted is
+            // returned to the pending state.
+            //
+            List<BitcoinTransaction> rejectedList = new ArrayList<>();
+            for (int i=0; i<count; i++) {
+                BitcoinTransaction tx = issuedList.get(i);
+                nxt.Transaction transaction = signedList.get(i);
+                try {
+                    Nxt.getTransactionProcessor().broadcast(transaction);
+                    Logger.logInfoMessage("Issued "
+                            + BigDecimal.valueOf(tx.getTokenAmount(), TokenAddon.currencyDecimals).toPlainString()
+                            + " units of " + TokenAddon.currencyCode + " to "
+                            + Convert.rsAccount(tx.getAccountId())
+                            + ", Transaction " + Long.toUnsignedString(transaction.getId()));
+                } catch (NxtException.ValidationException exc) {
+                    Logger.logErrorMessage("Nxt transaction " + Long.toUnsignedString(transaction.getId())
+                            + " for Bitcoin transaction " + tx.getBitcoinTxIdString() + " was not accepted", exc);
+                    tx.resetExchanged();
+                    rejectedList.add(tx);
+                }
+            }
+            if (!rejectedList.isEmpty()) {
+                TokenDb.updateTransactions(rejectedList);
+                TokenAddon.suspend("Unable to broadcast Nxt transactions");
+                break;
+            }
+            if (count < batch.size()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Build a signed Nxt currency transfer for a Bitcoin transaction
+     *
+     * The Bitcoin transaction identifier and the Bitcoin address hash are attached as
+     * a 52-byte binary message so that issuances with the same recipient, amount and
+     * timestamp have different Nxt transaction identifiers.  A binary message is about
+     * half the size of the hex text, which keeps the message fee down.
+     *
+     * @param   tx              Bitcoin transaction
+     * @param   timestamp       Nxt transaction timestamp
+     * @return                  Signed Nxt transaction
+     */
+    private static nxt.Transaction buildTransaction(BitcoinTransaction tx, int timestamp) {
+        try {
+            Attachment attachment =
+                    new Attachment.MonetarySystemCurrencyTransfer(TokenAddon.currencyId, tx.getTokenAmount());
+            nxt.Transaction.Builder builder = Nxt.newTransactionBuilder(TokenAddon.publicKey,
+                    0, 0, ISSUANCE_DEADLINE, attachment);
+            byte[] txId = tx.getBitcoinTxId();
+            byte[] addressHash = Address.fromBase58(BitcoinWallet.getNetworkParameters(),
+                    tx.getBitcoinAddress()).getHash160();
+            byte[] message = new byte[txId.length + addressHash.length];
+            System.arraycopy(txId, 0, message, 0, txId.length);
+            System.arraycopy(addressHash, 0, message, txId.length, addressHash.length);
+            builder.recipientId(tx.getAccountId())
+                    .appendix(new Appendix.Message(message))
+                    .timestamp(timestamp);
+            return builder.build(TokenAddon.secretPhrase);
+        } catch (NxtException.NotValidException exc) {
+            throw new IllegalStateException("Unable to create Nxt transaction for Bitcoin transaction "
+                    + tx.getBitcoinTxIdString() + ": " + exc.getMessage(), exc);
+        }
+    }
+
+    /**
+     * Check issuances that have not been confirmed
+     *
+     * The stored Nxt transaction is removed when the transaction is confirmed.  A
+     * Bitcoin transaction is returned to the pending state if its Nxt transaction
+     * expired without being confirmed, so that it is issued again.  The remaining
+     * transactions are broadcast again when the server is restarted.
+     *
+     * The caller holds the issuance lock.
+     *
+     * @param   rebroadcast     TRUE to broadcast the transactions that have not been confirmed
+     * @throws  SQLException    Database error occurred
+     */
+    private static void checkIssuances(boolean rebroadcast) throws SQLException {
+        List<BitcoinTransaction> txList = TokenDb.getUnconfirmedIssuances();
+        if (txList.isEmpty()) {
+            return;
+        }
+        List<BitcoinTransaction> updateList = new ArrayList<>();
+        Set<Long> broadcastSet = new HashSet<>();
+        int now = Nxt.getEpochTime();
+        for (BitcoinTransaction tx : txList) {
+            try {
+                nxt.Transaction transaction = Nxt.getTransactionProcessor().parseTransaction(tx.getNxtTransaction());
+                String nxtTxId = Long.toUnsignedString(transaction.getId());
+                if (Nxt.getBlockchain().hasTransaction(transaction.getId())) {
+                    tx.setConfirmed();
+                    updateList.add(tx);
+                } else if (transaction.getExpiration() + EXPIRATION_MARGIN < now) {
+                    Logger.logWarningMessage("Nxt transaction " + nxtTxId + " for Bitcoin transaction "
+                            + tx.getBitcoinTxIdString() + " expired, tokens will be issued again");
+                    tx.resetExchanged();
+                    updateList.add(tx);
+                } else if (rebroadcast && broadcastSet.add(transaction.getId())) {
+                    Nxt.getTransactionProcessor().broadcast(transaction);
+                    Logger.logInfoMessage("Broadcast Nxt transaction " + nxtTxId + " for Bitcoin transaction "
+                            + tx.getBitcoinTxIdString());
+                }
+            } catch (NxtException.ValidationException exc) {
+                Logger.logErrorMessage("Unable to broadcast Nxt transaction for Bitcoin transaction "
+                        + tx.getBitcoinTxIdString(), exc);
+            }
+        }
+        if (!updateList.isEmpty()) {
+            TokenDb.updateTransactions(updateList);
+        }
+    }
 }
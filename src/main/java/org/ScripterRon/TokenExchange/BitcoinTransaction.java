@@ -55,6 +55,9 @@ class BitcoinTransaction {
     /** Nxt transaction identifier */
     private long nxtTxId;
 
+    /** Signed Nxt transaction (null if confirmed) */
+    private byte[] nxtTransaction;
+
     /**
      * Create a Bitcoin transaction
      *
@@ -96,6 +99,7 @@ class BitcoinTransaction {
         this.accountId = rs.getLong("account_id");
         this.exchanged = rs.getBoolean("exchanged");
         this.nxtTxId = rs.getLong("nxt_txid");
+        this.nxtTransaction = rs.getBytes("nxt_tx");
     }
 
     /**
@@ -216,6 +220,44 @@ class BitcoinTransaction {
         exchanged = true;
     }
 
+    /**
+     * Set transaction processed
+     *
+     * @param   nxtTxId         Nxt transaction identifier
+     * @param   nxtTransaction  Signed Nxt transaction
+     */
+    void setExchanged(long nxtTxId, byte[] nxtTransaction) {
+        setExchanged(nxtTxId);
+        this.nxtTransaction = nxtTransaction;
+    }
+
+    /**
+     * Set transaction not processed
+     *
+     * This is done when the Nxt transaction was not accepted or has expired
+     */
+    void resetExchanged() {
+        nxtTxId = 0;
+        nxtTransaction = null;
+        exchanged = false;
+    }
+
+    /**
+     * Set the Nxt transaction confirmed
+     */
+    void setConfirmed() {
+        nxtTransaction = null;
+    }
+
+    /**
+     * Return the signed Nxt transaction
+     *
+     * @return                  Signed Nxt transaction or null if confirmed
+     */
+    byte[] getNxtTransaction() {
+        return nxtTransaction;
+    }
+
     /**
      * Return the Nxt transaction identifier
      *
@@ -0,0 +1,498 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import org.bitcoinj.core.Sha256Hash;
+import org.bitcoinj.crypto.ChildNumber;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Predicate;
+
+/**
+ * Unspent transaction output set
+ *
+ * The set contains a copy of the unspent rows in the unspent transaction output table
+ * (both active and inactive outputs) so that the wallet balance and the inputs for a
+ * send request are available without reading the table.  The wallet updates the set
+ * after the corresponding database transaction has been committed.
+ *
+ * The output fields are stored in primitive arrays indexed by slot number, so there is
+ * no per-output object overhead.  The slots are kept in amount order in a separate
+ * array, and an open-addressing table maps the transaction outpoint to the slots for
+ * that outpoint (an outpoint can be in more than one block when the block chain forks).
+ *
+ * All methods are synchronized on the set.  The wallet balance can be read without
+ * obtaining the set lock.
+ */
+class BitcoinUnspentSet {
+
+    /** Transaction and block identifier length */
+    private static final int ID_LENGTH = 32;
+
+    /** Initial capacity */
+    private static final int INITIAL_CAPACITY = 256;
+
+    /** Set has been loaded from the database */
+    private volatile boolean loaded;
+
+    /** Balance of the active outputs */
+    private volatile long balance;
+
+    /** Number of active outputs */
+    private int activeCount;
+
+    /** Transaction identifiers */
+    private byte[] txids;
+
+    /** Transaction output indexes */
+    private int[] indexes;
+
+    /** Block identifiers */
+    private byte[] blkids;
+
+    /** Output amounts */
+    private long[] amounts;
+
+    /** Block chain heights (0 if the output is not active) */
+    private int[] heights;
+
+    /** Child numbers */
+    private int[] childNumbers;
+
+    /** Parent numbers */
+    private int[] parentNumbers;
+
+    /** Free slots */
+    private int[] freeSlots;
+
+    /** Number of free slots */
+    private int freeCount;
+
+    /** Number of allocated slots */
+    private int slotCount;
+
+    /** Slots in ascending amount order */
+    private int[] order;
+
+    /** Number of outputs */
+    private int count;
+
+    /** Outpoint table (slot number or -1 if empty) */
+    private int[] table;
+
+    /**
+     * Create an empty unspent output set
+     */
+    BitcoinUnspentSet() {
+        clear();
+    }
+
+    /**
+     * Check if the set has been loaded from the database
+     *
+     * @return                  TRUE if the set has been loaded
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * Load the set
+     *
+     * The current contents of the set are replaced.
+     *
+     * @param   unspentList     Unspent outputs (active and inactive)
+     */
+    synchronized void load(List<BitcoinUnspent> unspentList) {
+        clear();
+        unspentList.forEach(this::add);
+        loaded = true;
+    }
+
+    /**
+     * Get the balance of the active outputs
+     *
+     * @return                  Balance (Satoshis)
+     */
+    long getBalance() {
+        return balance;
+    }
+
+    /**
+     * Get the number of outputs
+     *
+     * @return                  Number of active and inactive outputs
+     */
+    synchronized int size() {
+        return count;
+    }
+
+    /**
+     * Get the number of active outputs
+     *
+     * @return                  Number of active outputs
+     */
+    synchronized int getActiveCount() {
+        return activeCount;
+    }
+
+    /**
+     * Add an unspent output
+     *
+     * The output is ignored if it is already in the set for the same block.
+     *
+     * @param   unspent         Unspent output
+     */
+    synchronized void add(BitcoinUnspent unspent) {
+        if (unspent.isSpent() || findSlot(unspent.getId(), unspent.getIndex(), unspent.getBlockId()) >= 0) {
+            return;
+        }
+        if (freeCount == 0) {
+            grow(slotCount * 2);
+        }
+        int slot = freeSlots[--freeCount];
+        System.arraycopy(unspent.getId(), 0, txids, slot * ID_LENGTH, ID_LENGTH);
+        System.arraycopy(unspent.getBlockId(), 0, blkids, slot * ID_LENGTH, ID_LENGTH);
+        indexes[slot] = unspent.getIndex();
+        amounts[slot] = unspent.getAmount();
+        heights[slot] = unspent.getHeight();
+        childNumbers[slot] = unspent.getChildNumber().getI();
+        parentNumbers[slot] = unspent.getParentNumber().getI();
+        //
+        // Insert the slot after any outputs with the same amount
+        //
+        int pos = findPosition(amounts[slot] + 1);
+        System.arraycopy(order, pos, order, pos + 1, count - pos);
+        order[pos] = slot;
+        count++;
+        tableInsert(slot);
+        if (heights[slot] > 0) {
+            activeCount++;
+            balance += amounts[slot];
+        }
+    }
+
+    /**
+     * Remove all versions of a transaction output
+     *
+     * @param   txid            Transaction identifier
+     * @param   index           Transaction output index
+     * @return                  Number of outputs removed
+     */
+    synchronized int spend(byte[] txid, int index) {
+        int removed = 0;
+        int slot;
+        while ((slot = findSlot(txid, index, null)) >= 0) {
+            remove(slot);
+            removed++;
+        }
+        return removed;
+    }
+
+    /**
+     * Process a block chain reorganization
+     *
+     * External outputs above the split height are deactivated and the outputs in
+     * the new fork blocks are activated with the block height in the new fork.  The
+     * set is processed in a single pass and the balance is adjusted by the net change.
+     *
+     * @param   splitHeight     Height of the common block between the old and new chains
+     * @param   newBlocks       New fork blocks (block identifier to block height)
+     * @return                  Balance change (Satoshis)
+     */
+    synchronized long reorganize(int splitHeight, Map<Sha256Hash, Integer> newBlocks) {
+        long delta = 0;
+        for (int i=0; i<count; i++) {
+            int slot = order[i];
+            Integer newHeight = newBlocks.get(Sha256Hash.wrap(
+                    Arrays.copyOfRange(blkids, slot * ID_LENGTH, (slot + 1) * ID_LENGTH)));
+            int height;
+            if (newHeight != null) {
+                height = newHeight;
+            } else if (heights[slot] > splitHeight && parentNumbers[slot] == 0) {
+                height = 0;
+            } else {
+                continue;
+            }
+            if (heights[slot] == 0 && height != 0) {
+                delta += amounts[slot];
+                activeCount++;
+            } else if (heights[slot] != 0 && height == 0) {
+                delta -= amounts[slot];
+                activeCount--;
+            }
+            heights[slot] = height;
+        }
+        balance += delta;
+        return delta;
+    }
+
+    /**
+     * Process the active outputs in ascending amount order
+     *
+     * An unspent output is created just for the outputs that are processed, so the
+     * cost does not depend on the number of outputs in the set.  The set lock is
+     * held while the consumer is called.
+     *
+     * @param   consumer        Returns FALSE to stop processing
+     */
+    synchronized void forEachActive(Predicate<BitcoinUnspent> consumer) {
+        for (int i=0; i<count; i++) {
+            int slot = order[i];
+            if (heights[slot] > 0 && !consumer.test(getOutput(slot))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Process the active outputs in descending amount order
+     *
+     * @param   consumer        Returns FALSE to stop processing
+     */
+    synchronized void forEachActiveDescending(Predicate<BitcoinUnspent> consumer) {
+        for (int i=count-1; i>=0; i--) {
+            int slot = order[i];
+            if (heights[slot] > 0 && !consumer.test(getOutput(slot))) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Check if the set matches the database
+     *
+     * @param   unspentList     Unspent outputs (active and inactive)
+     * @return                  TRUE if the set matches
+     */
+    synchronized boolean matches(List<BitcoinUnspent> unspentList) {
+        if (unspentList.size() != count) {
+            return false;
+        }
+        for (BitcoinUnspent unspent : unspentList) {
+            int slot = findSlot(unspent.getId(), unspent.getIndex(), unspent.getBlockId());
+            if (slot < 0 || amounts[slot] != unspent.getAmount() || heights[slot] != unspent.getHeight()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Create an unspent output for a slot
+     *
+     * @param   slot            Slot number
+     * @return                  Unspent output
+     */
+    private BitcoinUnspent getOutput(int slot) {
+        return new BitcoinUnspent(Arrays.copyOfRange(txids, slot * ID_LENGTH, (slot + 1) * ID_LENGTH),
+                indexes[slot], Arrays.copyOfRange(blkids, slot * ID_LENGTH, (slot + 1) * ID_LENGTH),
+                amounts[slot], heights[slot], new ChildNumber(childNumbers[slot]),
+                new ChildNumber(parentNumbers[slot]));
+    }
+
+    /**
+     * Remove an output
+     *
+     * @param   slot            Slot number
+     */
+    private void remove(int slot) {
+        int pos = findPosition(amounts[slot]);
+        while (order[pos] != slot) {
+            pos++;
+        }
+        System.arraycopy(order, pos + 1, order, pos, count - pos - 1);
+        count--;
+        tableRemove(slot);
+        if (heights[slot] > 0) {
+            activeCount--;
+            balance -= amounts[slot];
+        }
+        freeSlots[freeCount++] = slot;
+    }
+
+    /**
+     * Find the first position in the amount order with an amount not less than the specified amount
+     *
+     * @param   amount          Amount
+     * @return                  Position
+     */
+    private int findPosition(long amount) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (amounts[order[mid]] < amount) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Find the slot for an output
+     *
+     * @param   txid            Transaction identifier
+     * @param   index           Transaction output index
+     * @param   blkid           Block identifier or null to match any block
+     * @return                  Slot number or -1 if the output is not in the set
+     */
+    private int findSlot(byte[] txid, int index, byte[] blkid) {
+        int mask = table.length - 1;
+        int pos = hashPosition(txid, 0, index);
+        int slot;
+        while ((slot = table[pos]) >= 0) {
+            if (indexes[slot] == index && idEquals(txids, slot, txid) &&
+                    (blkid == null || idEquals(blkids, slot, blkid))) {
+                return slot;
+            }
+            pos = (pos + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Add a slot to the outpoint table
+     *
+     * @param   slot            Slot number
+     */
+    private void tableInsert(int slot) {
+        if (count * 4 > table.length * 3) {
+            table = new int[table.length * 2];
+            Arrays.fill(table, -1);
+            for (int i=0; i<count; i++) {
+                if (order[i] != slot) {
+                    tableInsert(order[i]);
+                }
+            }
+        }
+        int mask = table.length - 1;
+        int pos = hashPosition(txids, slot * ID_LENGTH, indexes[slot]);
+        while (table[pos] >= 0) {
+            pos = (pos + 1) & mask;
+        }
+        table[pos] = slot;
+    }
+
+    /**
+     * Remove a slot from the outpoint table
+     *
+     * The entries following the removed entry are shifted back so that the
+     * probe sequence remains unbroken without using deleted markers.
+     *
+     * @param   slot            Slot number
+     */
+    private void tableRemove(int slot) {
+        int mask = table.length - 1;
+        int hole = hashPosition(txids, slot * ID_LENGTH, indexes[slot]);
+        while (table[hole] != slot) {
+            hole = (hole + 1) & mask;
+        }
+        int next = (hole + 1) & mask;
+        while (table[next] >= 0) {
+            int home = hashPosition(txids, table[next] * ID_LENGTH, indexes[table[next]]);
+            if (((next - home) & mask) >= ((next - hole) & mask)) {
+                table[hole] = table[next];
+                hole = next;
+            }
+            next = (next + 1) & mask;
+        }
+        table[hole] = -1;
+    }
+
+    /**
+     * Get the home position in the outpoint table
+     *
+     * The transaction identifier is uniformly distributed, so the first four bytes
+     * are combined with the output index to form the hash code.
+     *
+     * @param   bytes           Byte array containing the transaction identifier
+     * @param   offset          Offset of the transaction identifier
+     * @param   index           Transaction output index
+     * @return                  Table position
+     */
+    private int hashPosition(byte[] bytes, int offset, int index) {
+        int hashCode = (bytes[offset] & 0xff) | ((bytes[offset + 1] & 0xff) << 8) |
+                ((bytes[offset + 2] & 0xff) << 16) | ((bytes[offset + 3] & 0xff) << 24);
+        return (hashCode ^ (index * 0x9e3779b9)) & (table.length - 1);
+    }
+
+    /**
+     * Compare an identifier with the identifier stored in a slot
+     *
+     * @param   ids             Identifier array
+     * @param   slot            Slot number
+     * @param   id              Identifier
+     * @return                  TRUE if the identifiers are equal
+     */
+    private static boolean idEquals(byte[] ids, int slot, byte[] id) {
+        int offset = slot * ID_LENGTH;
+        for (int i=0; i<ID_LENGTH; i++) {
+            if (ids[offset + i] != id[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove all outputs from the set
+     */
+    private void clear() {
+        txids = new byte[0];
+        blkids = new byte[0];
+        indexes = new int[0];
+        amounts = new long[0];
+        heights = new int[0];
+        childNumbers = new int[0];
+        parentNumbers = new int[0];
+        freeSlots = new int[0];
+        order = new int[0];
+        freeCount = 0;
+        slotCount = 0;
+        count = 0;
+        activeCount = 0;
+        balance = 0;
+        table = new int[INITIAL_CAPACITY * 2];
+        Arrays.fill(table, -1);
+        grow(INITIAL_CAPACITY);
+    }
+
+    /**
+     * Increase the number of slots
+     *
+     * @param   capacity        New number of slots
+     */
+    private void grow(int capacity) {
+        txids = Arrays.copyOf(txids, capacity * ID_LENGTH);
+        blkids = Arrays.copyOf(blkids, capacity * ID_LENGTH);
+        indexes = Arrays.copyOf(indexes, capacity);
+        amounts = Arrays.copyOf(amounts, capacity);
+        heights = Arrays.copyOf(heights, capacity);
+        childNumbers = Arrays.copyOf(childNumbers, capacity);
+        parentNumbers = Arrays.copyOf(parentNumbers, capacity);
+        order = Arrays.copyOf(order, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+        for (int slot=capacity-1; slot>=slotCount; slot--) {
+            freeSlots[freeCount++] = slot;
+        }
+        slotCount = capacity;
+    }
+}
@@ -47,7 +47,6 @@ import org.bitcoinj.core.listeners.TransactionReceivedInBlockListener;
 import org.bitcoinj.params.MainNetParams;
 import org.bitcoinj.script.Script;
 import org.bitcoinj.script.ScriptBuilder;
-import org.bitcoinj.store.BlockStore;
 import org.bitcoinj.utils.Threading;
 import org.bitcoinj.wallet.DeterministicSeed;
 
@@ -60,30 +59,61 @@ import java.security.SecureRandom;
 import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import java.util.stream.Stream;
 import org.bitcoinj.core.TransactionConfidence;
 
 /**
  *  Bitcoin SPV wallet
+ *
+ *  The wallet state is divided into separately guarded parts.  The receive address
+ *  index has its own read/write lock and the broadcast set is a concurrent set.  The
+ *  unspent output set is guarded by the unspent output lock, send requests are
+ *  serialized by the send lock and token issuance is guarded by the issuance lock
+ *  in BitcoinProcessor.  Locks are obtained in the order issuance, send, unspent.
  */
 public class BitcoinWallet {
 
     /** Maximum number of peer connections */
     private static final int MAX_CONNECTIONS = 8;
 
+    /** Maximum number of loose transactions retained for filtered blocks */
+    private static final int MAX_LOOSE_TRANSACTIONS = 1000;
+
+    /** Maximum standard transaction size */
+    private static final int MAX_TRANSACTION_SIZE = 100000;
+
+    /** Minimum number of transaction inputs that will be signed in parallel */
+    private static final int PARALLEL_SIGN_THRESHOLD = 16;
+
+    /** Minimum number of block transactions that will be matched in parallel */
+    private static final int PARALLEL_MATCH_THRESHOLD = 32;
+
     /** Dummy block used for change outputs */
     private static final byte[] dummyBlock = new byte[32];
 
     /** Wallet initialized */
     private static volatile boolean walletInitialized = false;
 
-    /** Wallet lock */
-    private static final ReentrantLock walletLock = new ReentrantLock();
+    /** Unspent output lock (guards the unspent output set and its database updates) */
+    static final MonitoredLock unspentLock = new MonitoredLock("unspent");
+
+    /** Send lock (serializes send requests) */
+    static final MonitoredLock sendLock = new MonitoredLock("send");
 
     /** Network parameters */
     private static NetworkParameters params;
@@ -100,6 +130,12 @@ public class BitcoinWallet {
     /** Internal key */
     private static DeterministicKey internalParentKey;
 
+    /** External child number allocator */
+    private static ChildNumberAllocator externalChildren;
+
+    /** Internal child number allocator */
+    private static ChildNumberAllocator internalChildren;
+
     /** Deterministic hierarchy */
     private static DeterministicHierarchy hierarchy;
 
@@ -113,7 +149,7 @@ public class BitcoinWallet {
     private static File walletDirectory;
 
     /** Block store */
-    private static BlockStore blockStore;
+    private static BitcoinBlockStore blockStore;
 
     /** Block chain */
     private static BitcoinBlockChain blockChain;
@@ -127,18 +163,57 @@ public class BitcoinWallet {
     /** Wallet address */
     private static String walletAddress;
 
-    /** Wallet balance */
-    private static long walletBalance;
+    /** Unspent outputs (loaded when first used) */
+    private static final BitcoinUnspentSet unspentOutputs = new BitcoinUnspentSet();
+
+    /** Unspent output verification executor */
+    private static ScheduledExecutorService verifyExecutor;
 
-    /** Receive addresses */
-    private static final Map<Address, ReceiveAddress> receiveAddresses = new HashMap<>();
+    /** Derived keys (parent and child numbers packed into a long) */
+    private static final Map<Long, CachedKey> keyCache =
+            Collections.synchronizedMap(new LinkedHashMap<Long, CachedKey>(1024, 0.75f, true) {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Long, CachedKey> eldest) {
+                    return (size() > TokenAddon.bitcoinKeyCacheSize);
+                }
+            });
 
-    /** Broadcast list */
-    private static final Set<String> broadcastList = new HashSet<>();
+    /** Receive address pool */
+    private static BitcoinAddressPool addressPool;
+
+    /** Receive addresses (address hash to external child number) */
+    private static final BitcoinAddressIndex receiveAddresses = new BitcoinAddressIndex();
+
+    /** Broadcast list (read by the peer group when calculating the Bloom filter) */
+    private static final Set<String> broadcastList = ConcurrentHashMap.newKeySet();
+
+    /** Loose transactions received from peers when using filtered blocks */
+    private static final Map<Sha256Hash, Transaction> looseTransactions =
+            Collections.synchronizedMap(new LinkedHashMap<Sha256Hash, Transaction>() {
+                @Override
+                protected boolean removeEldestEntry(Map.Entry<Sha256Hash, Transaction> eldest) {
+                    return (size() > MAX_LOOSE_TRANSACTIONS);
+                }
+            });
 
     /** Peer discovery */
     private static final BitcoinDiscovery peerDiscovery = new BitcoinDiscovery();
 
+    /** Transactions received for the current block */
+    private static final List<Transaction> blockTransactions = new ArrayList<>();
+
+    /** Current block */
+    private static StoredBlock currentBlock;
+
+    /** Current block type */
+    private static BlockChain.NewBlockType currentBlockType;
+
+    /** Output matching pool */
+    private static ForkJoinPool matchPool;
+
+    /** Input signing pool */
+    private static ForkJoinPool signPool;
+
     /**
      * Initialize the Bitcoin wallet
      *
@@ -188,19 +263,49 @@ public class BitcoinWallet {
             //
             initKeys();
             //
+            // Create the receive address pool
+            //
+            addressPool = new BitcoinAddressPool(externalParentKey, externalChildren,
+                    TokenAddon.bitcoinAddressPoolSize);
+            //
             // Load the saved peers for use during peer discovery
             //
             peerDiscovery.loadPeers();
             //
             // Create the block store
             //
-            blockStore = new BitcoinBlockStore(params);
+            blockStore = new BitcoinBlockStore(params, TokenAddon.bitcoinBlockCacheSize,
+                    TokenAddon.bitcoinBlockBatchSize, TokenAddon.bitcoinBlockBatchInterval);
+            //
+            // Create the output matching pool
+            //
+            matchPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            //
+            // Create the input signing pool
+            //
+            signPool = new ForkJoinPool(Runtime.getRuntime().availableProcessors());
+            //
+            // Verify the unspent output set against the database at regular intervals
+            //
+            verifyExecutor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+                Thread thread = new Thread(runnable, "TokenExchange Unspent Output Verifier");
+                thread.setDaemon(true);
+                return thread;
+            });
+            verifyExecutor.scheduleWithFixedDelay(BitcoinWallet::verifyUnspentOutputs,
+                    TokenAddon.bitcoinUnspentVerifyInterval, TokenAddon.bitcoinUnspentVerifyInterval,
+                    TimeUnit.SECONDS);
             //
             // Create the block chain
             //
+            // Block transactions are collected as they are received and are processed
+            // when a transaction for a different block is received, when the new best
+            // block is reported, or when the block chain is reorganized.
+            //
             blockChain = new BitcoinBlockChain(context, blockStore, TokenDb.getCreationTime());
             blockChain.addNewBestBlockListener(Threading.SAME_THREAD, (block) -> {
                 propagateContext();
+                processBlockTransactions();
                 if (!TokenAddon.isSuspended()) {
                     BitcoinProcessor.processTransactions(block);
                 }
@@ -209,18 +314,32 @@ public class BitcoinWallet {
                 @Override
                 public boolean notifyTransactionIsInBlock(Sha256Hash txHash, StoredBlock block,
                                 BlockChain.NewBlockType blockType, int relativeOffset) {
-                    // Ignore since we aren't using filtered blocks
-                    return false;
+                    //
+                    // A filtered block contains just the transaction hash for a matching
+                    // transaction that the peer has already sent to us.  This is either
+                    // a loose transaction or one of our broadcast transactions.
+                    //
+                    if (!TokenAddon.bitcoinFilteredBlocks) {
+                        return false;
+                    }
+                    propagateContext();
+                    Transaction tx = getFilteredTransaction(txHash);
+                    if (tx == null) {
+                        return false;
+                    }
+                    addBlockTransaction(tx, block, blockType);
+                    return true;
                 }
                 @Override
                 public void receiveFromBlock(Transaction tx, StoredBlock block,
                                 BlockChain.NewBlockType blockType, int relativeOffset) throws VerificationException {
                     propagateContext();
-                    processTransaction(tx, block, blockType, relativeOffset);
+                    addBlockTransaction(tx, block, blockType);
                 }
             });
             blockChain.addReorganizeListener(Threading.SAME_THREAD, (splitPoint, oldBlocks, newBlocks) -> {
                 propagateContext();
+                processBlockTransactions();
                 Logger.logInfoMessage("Processing Bitcoin block chain fork at height " + splitPoint.getHeight());
                 processReorganization(splitPoint, newBlocks);
             });
@@ -234,10 +353,17 @@ public class BitcoinWallet {
             peerGroup.start();
             Logger.logInfoMessage("Token Exchange peer group started");
             //
-            // Download the block chain (this can add transactions to our tables)
+            // Download the block chain (this can add transactions to our tables).  The
+            // block store is placed in batch mode so that block headers are written
+            // in groups instead of one at a time.
             //
             Logger.logInfoMessage("Downloading the block chain");
-            peerGroup.downloadBlockChain();
+            blockStore.beginBatch();
+            try {
+                peerGroup.downloadBlockChain();
+            } finally {
+                blockStore.endBatch();
+            }
             Logger.logInfoMessage("Block chain download completed");
             //
             // Broadcast pending transactions (we won't wait for completion
@@ -263,86 +389,6 @@ public class BitcoinWallet {
         return walletInitialized;
     }
 
-    /**
-     * Receive address
-     */
-    private static class ReceiveAddress {
-
-        /** Bitcoin address hash */
-        private final byte[] hash;
-
-        /** Bitcoin address */
-        private final String address;
-
-        /** Address child */
-        private final ChildNumber childNumber;
-
-        /** Address parent */
-        private final ChildNumber parentNumber;
-
-        /**
-         * Create a receive address
-         *
-         * @param   address         Bitcoin address
-         * @param   childNumber     Child number
-         * @param   parentNumber    Parent number
-         */
-        public ReceiveAddress(Address address, ChildNumber childNumber, ChildNumber parentNumber) {
-            this.hash = address.getHash160();
-            this.address = address.toBase58();
-            this.childNumber = childNumber;
-            this.parentNumber = parentNumber;
-        }
-
-        /**
-         * Return the Bitcoin address
-         *
-         * @return              Bitcoin address
-         */
-        public String getAddress() {
-            return address;
-        }
-
-        /**
-         * Return the child number
-         *
-         * @return              Child number
-         */
-        public ChildNumber getChildNumber() {
-            return childNumber;
-        }
-
-        /**
-         * Return the parent number
-         *
-         * @return              Parent number
-         */
-        public ChildNumber getParentNumber() {
-            return parentNumber;
-        }
-
-        /**
-         * Get the hash code
-         *
-         * @return              Hash code
-         */
-        @Override
-        public int hashCode() {
-            return Arrays.hashCode(hash);
-        }
-
-        /**
-         * Check if the supplied object is equal to this object
-         *
-         * @param   obj         Object to check
-         * @return              TRUE if the objects are equal
-         */
-        @Override
-        public boolean equals(Object obj) {
-            return (obj instanceof ReceiveAddress) && Arrays.equals(((ReceiveAddress)obj).hash, hash);
-        }
-    }
-
     /**
      * Initialize the deterministic key hierarchy
      *
@@ -364,32 +410,61 @@ public class BitcoinWallet {
         hierarchy.get(ACCOUNT_ZERO_PATH, false, true);
         externalParentKey = hierarchy.deriveChild(ACCOUNT_ZERO_PATH, false, false, ChildNumber.ZERO);
         internalParentKey = hierarchy.deriveChild(ACCOUNT_ZERO_PATH, false, false, ChildNumber.ONE);
+        externalChildren = new ChildNumberAllocator(ChildNumber.ZERO);
+        internalChildren = new ChildNumberAllocator(ChildNumber.ONE);
         //
         // Get the wallet address (external child 0).  This is the address used to fund the wallet.
         //
         List<ChildNumber> path = HDUtils.append(externalParentKey.getPath(), ChildNumber.ZERO);
         walletKey = hierarchy.get(path, false, true);
-        Address address = walletKey.toAddress(params);
-        ReceiveAddress receiveAddress = new ReceiveAddress(address, ChildNumber.ZERO, externalParentKey.getChildNumber());
-        walletAddress = receiveAddress.getAddress();
-        receiveAddresses.put(address, receiveAddress);
-        //
-        // Get the current wallet balance
-        //
-        List<BitcoinUnspent> unspentList = TokenDb.getUnspentOutputs();
-        unspentList.forEach((unspent) -> walletBalance += unspent.getAmount());
+        walletAddress = walletKey.toAddress(params).toBase58();
+        receiveAddresses.put(walletKey.getPubKeyHash(), ChildNumber.ZERO.getI());
         //
         // Build the set of receive keys (change keys are not included since
         // change outputs are stored as soon as they are created)
         //
-        List<BitcoinAccount> accounts = TokenDb.getAccounts();
-        accounts.forEach((account) -> {
-            Address addr = Address.fromBase58(params, account.getBitcoinAddress());
-            receiveAddresses.put(addr, new ReceiveAddress(addr,
-                    new ChildNumber(account.getChildNumber()), externalParentKey.getChildNumber()));
-        });
-        Logger.logInfoMessage("Wallet address " + walletAddress
-                + ", Balance " + getBalance().toPlainString() + " BTC");
+        TokenDb.getAccountHashes(receiveAddresses::put);
+        Logger.logInfoMessage("Wallet address " + walletAddress);
+    }
+
+    /**
+     * Load the unspent output set if it has not been loaded yet
+     *
+     * The unspent output set is loaded when it is first used instead of during
+     * wallet initialization.  The unspent output lock must be held by the caller.
+     * Database transactions that update the unspent outputs are committed while
+     * holding the unspent output lock, so the set matches the committed database.
+     *
+     * @throws  SQLException    Database error occurred
+     */
+    private static void loadUnspentOutputs() throws SQLException {
+        if (!unspentOutputs.isLoaded()) {
+            unspentOutputs.load(TokenDb.getAllUnspentOutputs());
+            Logger.logInfoMessage("Loaded " + unspentOutputs.size() + " unspent outputs, Balance "
+                    + getBalance().toPlainString() + " BTC");
+        }
+    }
+
+    /**
+     * Verify the unspent output set against the database
+     *
+     * The set is reloaded if it does not match the unspent output table.
+     */
+    private static void verifyUnspentOutputs() {
+        unspentLock.lock();
+        try {
+            if (unspentOutputs.isLoaded()) {
+                List<BitcoinUnspent> unspentList = TokenDb.getAllUnspentOutputs();
+                if (!unspentOutputs.matches(unspentList)) {
+                    Logger.logWarningMessage("Unspent output set does not match the database, reloading the set");
+                    unspentOutputs.load(unspentList);
+                }
+            }
+        } catch (Exception exc) {
+            Logger.logErrorMessage("Unable to verify the unspent output set", exc);
+        } finally {
+            unspentLock.unlock();
+        }
     }
 
     /**
@@ -456,6 +531,70 @@ public class BitcoinWallet {
             peerGroup.setMaxConnections(MAX_CONNECTIONS);
             peerGroup.setMinBroadcastConnections(MAX_CONNECTIONS / 2);
         }
+        //
+        // Use Bloom-filtered blocks if the 'bitcoinFilteredBlocks' configuration option is specified.
+        // Loose transactions are retained since a filtered block will not include a matching
+        // transaction that has already been sent to us.
+        //
+        if (TokenAddon.bitcoinFilteredBlocks) {
+            peerGroup.addOnTransactionBroadcastListener(Threading.SAME_THREAD,
+                    (peer, tx) -> looseTransactions.put(tx.getHash(), tx));
+            peerGroup.addPeerFilterProvider(new BitcoinFilterProvider(TokenDb.getCreationTime()));
+            Logger.logInfoMessage("Using Bloom-filtered Bitcoin blocks");
+        }
+    }
+
+    /**
+     * Get a transaction referenced by a filtered block
+     *
+     * @param   txHash          Transaction hash
+     * @return                  Transaction or null if not found
+     */
+    private static Transaction getFilteredTransaction(Sha256Hash txHash) {
+        Transaction tx = looseTransactions.remove(txHash);
+        if (tx == null && broadcastList.contains(txHash.toString())) {
+            try {
+                tx = TokenDb.getBroadcastTransaction(txHash.getBytes());
+            } catch (SQLException exc) {
+                Logger.logErrorMessage("Unable to get broadcast transaction " + txHash, exc);
+            }
+        }
+        return tx;
+    }
+
+    /**
+     * Get the Bloom filter elements
+     *
+     * The filter contains the receive address hashes, the outpoints for our unspent
+     * outputs, the change key hashes for unspent change outputs, and the identifiers
+     * of our pending broadcast transactions.  Transaction identifiers are inserted
+     * in serialized (reversed) byte order.
+     *
+     * @return                  List of filter elements
+     * @throws  SQLException    Database error occurred
+     */
+    static List<byte[]> getFilterElements() throws SQLException {
+        List<byte[]> elements = receiveAddresses.getHashes();
+        List<BitcoinUnspent> unspentList = TokenDb.getUnspentOutputs();
+        for (BitcoinUnspent unspent : unspentList) {
+            TransactionOutPoint outPoint = new TransactionOutPoint(params, unspent.getIndex(),
+                    Sha256Hash.wrap(unspent.getId()));
+            elements.add(outPoint.bitcoinSerialize());
+            if (unspent.getParentNumber().equals(internalParentKey.getChildNumber())) {
+                elements.add(getKey(internalParentKey, unspent.getChildNumber()).getPubKeyHash());
+            }
+        }
+        broadcastList.forEach((txid) -> elements.add(Sha256Hash.wrap(txid).getReversedBytes()));
+        return elements;
+    }
+
+    /**
+     * Recalculate the Bloom filter and send it to the connected peers if it has changed
+     */
+    private static void updateFilter() {
+        if (TokenAddon.bitcoinFilteredBlocks && peerGroup != null) {
+            peerGroup.recalculateFastCatchupAndFilter(PeerGroup.FilterRecalculateMode.SEND_IF_CHANGED);
+        }
     }
 
     /**
@@ -463,132 +602,343 @@ public class BitcoinWallet {
      *
      * We have already been notified of the blocks in the side chain which is causing the reorganization.
      * So we just need to deactivate the transactions in the old blocks and then activate the
-     * transactions in the new blocks.
+     * transactions in the new blocks.  This is done using a fixed number of database
+     * statements for the whole fork.  The unspent output set is updated after the
+     * database transaction is committed.  The issuance, send and unspent output locks
+     * are held so that tokens are not issued and coins are not sent during the
+     * reorganization.
      *
      * @param   splitPoint      Common block between the old and new chains
      * @param   newBlocks       List of blocks in the new fork (highest to lowest height)
      */
     private static void processReorganization(StoredBlock splitPoint, List<StoredBlock> newBlocks) {
-        obtainLock();
+        BitcoinProcessor.issuanceLock.lock();
+        sendLock.lock();
+        unspentLock.lock();
         try {
             TokenDb.beginTransaction();
             //
-            // Deactivate transactions in the old fork
+            // Deactivate transactions in the old fork and activate transactions in the new fork
             //
             int splitHeight = splitPoint.getHeight();
-            walletBalance -= TokenDb.deactivateUnspentOutputs(splitHeight);
-            TokenDb.deactivateTransactions(splitHeight);
-            //
-            // Activate transactions in the new fork
-            //
+            Map<Sha256Hash, Integer> forkBlocks = new HashMap<>();
             for (StoredBlock block : newBlocks) {
-                Sha256Hash hash = block.getHeader().getHash();
-                int height = block.getHeight();
-                walletBalance += TokenDb.activateUnspentOutputs(hash.getBytes(), height);
-                TokenDb.activateTransactions(hash.getBytes(), height);
+                forkBlocks.put(block.getHeader().getHash(), block.getHeight());
             }
+            TokenDb.reorganize(splitHeight, forkBlocks);
             //
-            // Commit the database transaction
+            // Commit the database transaction and update the unspent output set
             //
-            TokenDb.commitTransaction();;
+            TokenDb.commitTransaction();
+            if (unspentOutputs.isLoaded()) {
+                long delta = unspentOutputs.reorganize(splitHeight, forkBlocks);
+                Logger.logInfoMessage("Bitcoin block chain fork at height " + splitHeight + " processed with "
+                        + newBlocks.size() + " new blocks, wallet balance changed by "
+                        + BigDecimal.valueOf(delta, 8).stripTrailingZeros().toPlainString() + " BTC");
+            }
         } catch (Exception exc) {
             Logger.logErrorMessage("Unable to process Bitcoin block chain fork at height "
                     + splitPoint.getHeight(), exc);
             TokenDb.rollbackTransaction();
         } finally {
-            releaseLock();
+            unspentLock.unlock();
+            sendLock.unlock();
+            BitcoinProcessor.issuanceLock.unlock();
             TokenDb.endTransaction();
         }
     }
 
     /**
-     * Process a new transaction
+     * Add a transaction to the current block
+     *
+     * The transactions for the current block are processed when a transaction
+     * for a different block is received.
      *
      * @param   tx              Transaction
-     * @param   block           Block containing transaction
+     * @param   block           Block containing the transaction
      * @param   blockType       Block type
-     * @param   offset          Transaction offset in block transaction list
      */
-    private static void processTransaction(Transaction tx, StoredBlock block,
-                                BlockChain.NewBlockType blockType, int offset) {
-        Sha256Hash txHash = tx.getHash();
-        Sha256Hash blockHash = block.getHeader().getHash();
-        //
-        // Set the transaction confidence
-        //
-        TransactionConfidence confidence = tx.getConfidence();
-        confidence.setSource(TransactionConfidence.Source.NETWORK);
-        int height;
-        if (blockType == BlockChain.NewBlockType.BEST_CHAIN) {
-            height = block.getHeight();
-            confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
-            confidence.setAppearedAtChainHeight(height);
-        } else {
-            height = 0;
-            if (!confidence.getConfidenceType().equals(TransactionConfidence.ConfidenceType.BUILDING)) {
-                confidence.setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
+    private static void addBlockTransaction(Transaction tx, StoredBlock block, BlockChain.NewBlockType blockType) {
+        synchronized(blockTransactions) {
+            if (currentBlock != null && (!currentBlock.equals(block) || currentBlockType != blockType)) {
+                processBlockTransactions();
             }
+            currentBlock = block;
+            currentBlockType = blockType;
+            blockTransactions.add(tx);
         }
-        //
-        // Process transaction outputs
-        //
-        // We support just P2PKH (pay-to-public-key-hash) transactions.
-        //
-        // Our change outputs are ignored since they are already
-        // in the unspent transaction output table.
-        //
-        obtainLock();
-        try {
+    }
+
+    /**
+     * Process the transactions for the current block
+     *
+     * Processing is done in two phases:
+     * <ul>
+     * <li>The transaction outputs are matched against the receive addresses.  This
+     * is done in parallel using the output matching pool when there are a large
+     * number of transactions in the block.
+     * <li>The unspent outputs and Bitcoin transactions for the matching transactions
+     * are stored using a single database transaction.  Rows that already exist are
+     * found using set-based queries and the new rows are stored using batch inserts.
+     * The unspent output lock is held just while the database transaction is committed
+     * and the unspent output set is updated, so a send request in progress does not
+     * delay block processing.
+     * </ul>
+     *
+     * If the block can not be stored as a whole, the matched transactions are stored
+     * again one at a time, each in its own database transaction.  A transaction that
+     * still fails is logged and ignored, so a single bad transaction does not cause
+     * the deposits in the rest of the block to be lost.
+     *
+     * We support just P2PKH (pay-to-public-key-hash) transactions.  Our change outputs
+     * are ignored since they are already in the unspent transaction output table.
+     */
+    private static void processBlockTransactions() {
+        synchronized(blockTransactions) {
+            if (blockTransactions.isEmpty()) {
+                currentBlock = null;
+                return;
+            }
+            StoredBlock block = currentBlock;
+            Sha256Hash blockHash = block.getHeader().getHash();
+            int height = (currentBlockType == BlockChain.NewBlockType.BEST_CHAIN ? block.getHeight() : 0);
+            List<Transaction> txList = new ArrayList<>(blockTransactions);
+            blockTransactions.clear();
+            currentBlock = null;
+            currentBlockType = null;
             //
-            // Remove the transaction from the broadcast table if it is one of ours
+            // Match the transaction outputs against our receive addresses
             //
-            if (broadcastList.remove(txHash.toString())) {
-                TokenDb.deleteBroadcastTransaction(txHash.getBytes());
+            List<MatchedTransaction> matchedList;
+            try {
+                if (txList.size() >= PARALLEL_MATCH_THRESHOLD) {
+                    matchedList = matchPool.submit(() -> matchTransactions(txList.parallelStream())).get();
+                } else {
+                    matchedList = matchTransactions(txList.stream());
+                }
+            } catch (Exception exc) {
+                Logger.logErrorMessage("Unable to match transactions for Bitcoin block " + blockHash
+                        + ", transactions ignored", exc);
+                return;
+            }
+            if (matchedList.isEmpty()) {
+                return;
             }
             //
-            // Process each transaction output
+            // Store the matched transactions
             //
-            List<TransactionOutput> outputs = tx.getOutputs();
-            int index = -1;
-            boolean isRelevant = false;
-            for (TransactionOutput output : outputs) {
-                index++;
-                Address address = output.getAddressFromP2PKHScript(params);
-                if (address == null) {
-                    continue;
+            try {
+                storeTransactions(matchedList, block, height);
+            } catch (Exception exc) {
+                Logger.logErrorMessage("Unable to process Bitcoin block " + blockHash
+                        + ", processing transactions separately", exc);
+                for (MatchedTransaction mtx : matchedList) {
+                    try {
+                        storeTransactions(Collections.singletonList(mtx), block, height);
+                    } catch (Exception exc2) {
+                        Logger.logErrorMessage("Unable to process Bitcoin transaction " + mtx.txHash
+                                + " in block " + blockHash + ", transaction ignored", exc2);
+                    }
                 }
-                ReceiveAddress receiveAddress = receiveAddresses.get(address);
-                if (receiveAddress == null) {
-                    continue;
+            }
+        }
+    }
+
+    /**
+     * Store matched transactions using a single database transaction
+     *
+     * Rows that already exist are found using set-based queries and the new rows are
+     * stored using batch inserts.  The database transaction is rolled back if an error
+     * occurs.
+     *
+     * @param   matchedList     Matched transactions
+     * @param   block           Block containing the transactions
+     * @param   height          Block height or 0 if the block is not in the best chain
+     * @throws  Exception       Unable to store the transactions
+     */
+    private static void storeTransactions(List<MatchedTransaction> matchedList, StoredBlock block, int height)
+                                throws Exception {
+        Sha256Hash blockHash = block.getHeader().getHash();
+        List<String> receivedList = new ArrayList<>();
+        List<String> confirmedList = new ArrayList<>();
+        List<byte[]> confirmedIds = new ArrayList<>();
+        List<byte[]> txids = new ArrayList<>();
+        List<BitcoinUnspent> unspentList = new ArrayList<>();
+        List<Transaction> relevantList = new ArrayList<>();
+        matchedList.forEach((mtx) -> txids.add(mtx.txHash.getBytes()));
+        try {
+            TokenDb.beginTransaction();
+            Set<String> unspentSet = new HashSet<>();
+            TokenDb.getUnspentOutputs(blockHash.getBytes(), txids).forEach((unspent) ->
+                    unspentSet.add(Sha256Hash.wrap(unspent.getId()).toString() + ":" + unspent.getIndex()));
+            for (MatchedTransaction mtx : matchedList) {
+                Transaction tx = mtx.tx;
+                Sha256Hash txHash = mtx.txHash;
+                //
+                // Set the transaction confidence
+                //
+                TransactionConfidence confidence = tx.getConfidence();
+                confidence.setSource(TransactionConfidence.Source.NETWORK);
+                if (height > 0) {
+                    confidence.setConfidenceType(TransactionConfidence.ConfidenceType.BUILDING);
+                    confidence.setAppearedAtChainHeight(height);
+                } else if (!confidence.getConfidenceType().equals(TransactionConfidence.ConfidenceType.BUILDING)) {
+                    confidence.setConfidenceType(TransactionConfidence.ConfidenceType.PENDING);
                 }
-                if (!receiveAddress.getAddress().equals(walletAddress)) {
-                    isRelevant = true;
+                //
+                // Remove the transaction from the broadcast table if it is one of ours
+                //
+                if (mtx.isBroadcast) {
+                    confirmedIds.add(txHash.getBytes());
+                    confirmedList.add(txHash.toString());
                 }
-                BitcoinUnspent unspent = TokenDb.getUnspentOutput(txHash.getBytes(), index, blockHash.getBytes());
-                if (unspent != null) {
-                    continue;
+                //
+                // Store the unspent outputs
+                //
+                for (int i=0; i<mtx.outputCount; i++) {
+                    int index = mtx.outputIndexes[i];
+                    if (!unspentSet.add(txHash.toString() + ":" + index)) {
+                        continue;
+                    }
+                    long amount = mtx.amounts[i];
+                    unspentList.add(new BitcoinUnspent(txHash.getBytes(), index, blockHash.getBytes(), amount,
+                            height, new ChildNumber(mtx.childNumbers[i]), externalParentKey.getChildNumber()));
+                    if (height > 0) {
+                        Address address = new Address(params, Arrays.copyOfRange(mtx.scripts[i],
+                                BitcoinAddressIndex.P2PKH_HASH_OFFSET,
+                                BitcoinAddressIndex.P2PKH_HASH_OFFSET + BitcoinAddressIndex.HASH_LENGTH));
+                        receivedList.add("Received Bitcoin transaction " + txHash
+                            + " to " + address.toBase58() + " for "
+                            + BigDecimal.valueOf(amount, 8).stripTrailingZeros().toPlainString() + " BTC");
+                    }
                 }
-                long amount = output.getValue().getValue();
-                unspent = new BitcoinUnspent(txHash.getBytes(), index, blockHash.getBytes(), amount, height,
-                        receiveAddress.getChildNumber(), externalParentKey.getChildNumber());
-                TokenDb.storeUnspentOutput(unspent);
-                if (height > 0) {
-                    walletBalance += amount;
-                    Logger.logInfoMessage("Received Bitcoin transaction " + txHash
-                        + " to " + receiveAddress.getAddress() + " for "
-                        + BigDecimal.valueOf(amount, 8).stripTrailingZeros().toPlainString() + " BTC");
+                //
+                // Process a user transaction
+                //
+                if (mtx.isRelevant) {
+                    if (mtx.isP2PKH) {
+                        relevantList.add(tx);
+                    } else {
+                        Logger.logErrorMessage("Bitcoin transaction " + txHash + " is not P2PKH, transaction ignored");
+                    }
                 }
             }
+            TokenDb.storeUnspentOutputs(unspentList);
+            if (!relevantList.isEmpty()) {
+                BitcoinProcessor.addTransactions(relevantList, block, height);
+            }
             //
-            // Process a user transaction
+            // All is well - commit the database transaction and update the unspent output set
             //
-            if (isRelevant) {
-                BitcoinProcessor.addTransaction(tx, block, height);
+            unspentLock.lock();
+            try {
+                TokenDb.commitTransaction();
+                if (unspentOutputs.isLoaded()) {
+                    unspentList.forEach(unspentOutputs::add);
+                }
+            } finally {
+                unspentLock.unlock();
             }
         } catch (Exception exc) {
-            Logger.logErrorMessage("Unable to process Bitcoin transaction " + txHash + ", transaction ignored", exc);
+            TokenDb.rollbackTransaction();
+            throw exc;
         } finally {
-            releaseLock();
+            TokenDb.endTransaction();
+        }
+        broadcastList.removeAll(confirmedList);
+        if (!confirmedIds.isEmpty()) {
+            try {
+                TokenDb.queueWrite(() -> TokenDb.deleteBroadcastTransactions(confirmedIds), false);
+            } catch (SQLException exc) {
+                Logger.logErrorMessage("Unable to delete confirmed broadcast transactions", exc);
+            }
+        }
+        receivedList.forEach(Logger::logInfoMessage);
+    }
+
+    /**
+     * Match transactions against the receive addresses
+     *
+     * @param   txStream        Transaction stream
+     * @return                  List of transactions that pay a receive address or are one of ours
+     */
+    private static List<MatchedTransaction> matchTransactions(Stream<Transaction> txStream) {
+        return txStream.map(MatchedTransaction::new)
+                .filter((mtx) -> mtx.outputCount > 0 || mtx.isBroadcast)
+                .collect(Collectors.toList());
+    }
+
+    /**
+     * Transaction matched against the receive addresses
+     */
+    private static class MatchedTransaction {
+
+        /** Transaction */
+        private final Transaction tx;
+
+        /** Transaction hash */
+        private final Sha256Hash txHash;
+
+        /** Transaction is one of our broadcast transactions */
+        private final boolean isBroadcast;
+
+        /** Transaction pays an address other than the wallet address */
+        private boolean isRelevant;
+
+        /** All transaction outputs are P2PKH */
+        private boolean isP2PKH = true;
+
+        /** Number of matched outputs */
+        private int outputCount;
+
+        /** Matched output indexes */
+        private int[] outputIndexes;
+
+        /** Matched output child numbers */
+        private int[] childNumbers;
+
+        /** Matched output amounts */
+        private long[] amounts;
+
+        /** Matched output scripts */
+        private byte[][] scripts;
+
+        /**
+         * Match the transaction outputs
+         *
+         * @param   tx          Transaction
+         */
+        private MatchedTransaction(Transaction tx) {
+            this.tx = tx;
+            this.txHash = tx.getHash();
+            this.isBroadcast = !broadcastList.isEmpty() && broadcastList.contains(txHash.toString());
+            List<TransactionOutput> outputs = tx.getOutputs();
+            for (int index=0; index<outputs.size(); index++) {
+                TransactionOutput output = outputs.get(index);
+                byte[] script = output.getScriptBytes();
+                if (!BitcoinAddressIndex.isP2PKH(script)) {
+                    isP2PKH = false;
+                    continue;
+                }
+                int childNumber = receiveAddresses.getFromScript(script);
+                if (childNumber < 0) {
+                    continue;
+                }
+                if (outputCount == 0) {
+                    outputIndexes = new int[outputs.size()];
+                    childNumbers = new int[outputs.size()];
+                    amounts = new long[outputs.size()];
+                    scripts = new byte[outputs.size()][];
+                }
+                if (childNumber != ChildNumber.ZERO.getI()) {
+                    isRelevant = true;
+                }
+                outputIndexes[outputCount] = index;
+                childNumbers[outputCount] = childNumber;
+                amounts[outputCount] = output.getValue().getValue();
+                scripts[outputCount] = script;
+                outputCount++;
+            }
         }
     }
 
@@ -601,6 +951,13 @@ public class BitcoinWallet {
                 Logger.logInfoMessage("Waiting for peer group to stop ...");
                 peerGroup.stop();
                 Logger.logInfoMessage("Peer group stopped");
+                processBlockTransactions();
+                matchPool.shutdown();
+                signPool.shutdown();
+                verifyExecutor.shutdownNow();
+                addressPool.shutdown();
+                externalChildren.close();
+                internalChildren.close();
                 blockStore.close();
                 peerDiscovery.storePeers();
             } catch (IOException exc) {
@@ -619,20 +976,6 @@ public class BitcoinWallet {
         Context.propagate(context);
     }
 
-    /**
-     * Obtain the wallet lock
-     */
-    static void obtainLock() {
-        walletLock.lock();
-    }
-
-    /**
-     * Release the wallet lock
-     */
-    static void releaseLock() {
-        walletLock.unlock();
-    }
-
     /**
      * Get the wallet directory
      *
@@ -642,6 +985,15 @@ public class BitcoinWallet {
         return walletDirectory;
     }
 
+    /**
+     * Get the block store
+     *
+     * @return                  Block store
+     */
+    static BitcoinBlockStore getBlockStore() {
+        return blockStore;
+    }
+
     /**
      * Get the network parameters
      *
@@ -672,10 +1024,22 @@ public class BitcoinWallet {
     /**
      * Get the wallet balance
      *
+     * The unspent output set is loaded if it has not been loaded yet.
+     *
      * @return                  Wallet balance
      */
     static BigDecimal getBalance() {
-        return BigDecimal.valueOf(walletBalance).movePointLeft(8).stripTrailingZeros();
+        if (!unspentOutputs.isLoaded()) {
+            unspentLock.lock();
+            try {
+                loadUnspentOutputs();
+            } catch (SQLException exc) {
+                throw new RuntimeException("Unable to load unspent outputs: " + exc.getMessage(), exc);
+            } finally {
+                unspentLock.unlock();
+            }
+        }
+        return BigDecimal.valueOf(unspentOutputs.getBalance()).movePointLeft(8).stripTrailingZeros();
     }
 
     /**
@@ -690,11 +1054,78 @@ public class BitcoinWallet {
     /**
      * Get a new external key
      *
+     * The key is obtained from the receive address pool.  A new key is derived
+     * if the pool is empty.
+     *
      * @return                  New key
      * @throws  SQLException    Database exception occurred
      */
     static DeterministicKey getNewKey() throws SQLException {
-        return getNewKey(externalParentKey);
+        DeterministicKey key = addressPool.getKey();
+        if (key == null) {
+            return getNewKey(externalParentKey);
+        }
+        receiveAddresses.put(key.getPubKeyHash(), key.getChildNumber().getI());
+        updateFilter();
+        return key;
+    }
+
+    /**
+     * Store a new account
+     *
+     * The account is written to the database by the receive address pool
+     *
+     * @param   account         Account
+     * @throws  SQLException    Account was not written to the database
+     */
+    static void storeAccount(BitcoinAccount account) throws SQLException {
+        addressPool.storeAccount(account);
+    }
+
+    /**
+     * Get an account that has not been written to the database yet
+     *
+     * @param   address         Bitcoin address
+     * @return                  Account or null
+     */
+    static BitcoinAccount getPendingAccount(String address) {
+        return addressPool.getPendingAccount(address);
+    }
+
+    /**
+     * Get the most recent account for a Nxt account that has not been
+     * written to the database yet
+     *
+     * @param   accountId       Nxt account identifier
+     * @return                  Account or null
+     */
+    static BitcoinAccount getPendingAccount(long accountId) {
+        return addressPool.getPendingAccount(accountId);
+    }
+
+    /**
+     * Get the number of pre-derived receive keys
+     *
+     * @return                  Number of keys
+     */
+    static int getAddressPoolCount() {
+        return addressPool.getKeyCount();
+    }
+
+    /**
+     * Get the number of accounts that have not been written to the database yet
+     *
+     * @return                  Number of accounts
+     */
+    static int getPendingAccountCount() {
+        return addressPool.getPendingCount();
+    }
+
+    /**
+     * Write pending accounts to the database
+     */
+    static void flushAccounts() {
+        addressPool.flush();
     }
 
     /**
@@ -705,13 +1136,11 @@ public class BitcoinWallet {
      * @throws  SQLException    Database error occurred
      */
     static DeterministicKey getNewKey(DeterministicKey parentKey) throws SQLException {
-        ChildNumber child = TokenDb.getNewChild(parentKey.getChildNumber());
-        List<ChildNumber> path = HDUtils.append(parentKey.getPath(), child);
-        DeterministicKey key = hierarchy.get(path, false, true);
+        ChildNumber child = (parentKey == externalParentKey ? externalChildren : internalChildren).allocate();
+        DeterministicKey key = getCachedKey(parentKey, child).key;
         if (parentKey == externalParentKey) {
-            Address address = key.toAddress(params);
-            ReceiveAddress receiveAddress = new ReceiveAddress(address, child, parentKey.getChildNumber());
-            receiveAddresses.put(address, receiveAddress);
+            receiveAddresses.put(key.getPubKeyHash(), child.getI());
+            updateFilter();
         }
         return key;
     }
@@ -723,8 +1152,50 @@ public class BitcoinWallet {
      * @param   childNumber     Child number
      */
     static DeterministicKey getKey(DeterministicKey parentKey, ChildNumber childNumber) {
-        List<ChildNumber> path = HDUtils.append(parentKey.getPath(), childNumber);
-        return hierarchy.get(path, false, true);
+        return getCachedKey(parentKey, childNumber).key;
+    }
+
+    /**
+     * Get a derived key from the key cache
+     *
+     * The key is derived directly from the parent key and added to the cache if it
+     * is not already in the cache.  The derived keys are not added to the deterministic
+     * hierarchy, so the hierarchy does not grow as new keys are used.
+     *
+     * @param   parentKey       Parent key
+     * @param   childNumber     Child number
+     * @return                  Cached key
+     */
+    private static CachedKey getCachedKey(DeterministicKey parentKey, ChildNumber childNumber) {
+        long cacheKey = ((long)parentKey.getChildNumber().getI() << 32) | (childNumber.getI() & 0xffffffffL);
+        CachedKey cachedKey = keyCache.get(cacheKey);
+        if (cachedKey == null) {
+            cachedKey = new CachedKey(HDKeyDerivation.deriveChildKey(parentKey, childNumber));
+            keyCache.put(cacheKey, cachedKey);
+        }
+        return cachedKey;
+    }
+
+    /**
+     * Derived key with its P2PKH output script
+     */
+    private static class CachedKey {
+
+        /** Derived key */
+        private final DeterministicKey key;
+
+        /** Output script */
+        private final Script outScript;
+
+        /**
+         * Create a cached key
+         *
+         * @param   key         Derived key
+         */
+        private CachedKey(DeterministicKey key) {
+            this.key = key;
+            this.outScript = ScriptBuilder.createOutputScript(key.toAddress(params));
+        }
     }
 
     /**
@@ -734,7 +1205,7 @@ public class BitcoinWallet {
      */
     static void removeAddress(String address) {
         Address addr = Address.fromBase58(params, address);
-        receiveAddresses.remove(addr);
+        receiveAddresses.remove(addr.getHash160());
     }
 
     /**
@@ -808,29 +1279,138 @@ public class BitcoinWallet {
      * @return                              Transaction identifier
      */
     static String sendCoins(Address toAddress, BigDecimal coins) {
-        return sendCoins(toAddress, coins, false);
+        return sendCoins(toAddress, coins, TokenAddon.bitcoinCoinSelector, false);
     }
 
     /**
-     * Send coins to the target address
+     * Send coins to the target address using the specified coin selector
      *
-     * An existing database transaction will be committed or rolled back
-     * before returning to the caller.
+     * @param   toAddress                   Target Bitcoin address
+     * @param   coins                       Amount to send (BTC)
+     * @param   selector                    Coin selector
+     * @return                              Transaction identifier
+     */
+    static String sendCoins(Address toAddress, BigDecimal coins, BitcoinCoinSelector selector) {
+        return sendCoins(toAddress, coins, selector, false);
+    }
+
+    /**
+     * Send coins to the target address
      *
      * @param   toAddress                   Target Bitcoin address
      * @param   coins                       Amount to send (BTC)
+     * @param   selector                    Coin selector
      * @param   emptyWallet                 TRUE if this is a request to empty the wallet
      * @return                              Transaction identifier
      */
-    static String sendCoins(Address toAddress, BigDecimal coins, boolean emptyWallet) {
+    private static String sendCoins(Address toAddress, BigDecimal coins, BitcoinCoinSelector selector,
+                                    boolean emptyWallet) {
+        List<Address> toAddresses = new ArrayList<>(1);
+        toAddresses.add(toAddress);
+        long[] amounts = new long[] {coins.movePointRight(8).longValue()};
+        return sendCoins(toAddresses, amounts, selector, emptyWallet, Collections.emptyList());
+    }
+
+    /**
+     * Send coins for token redemptions
+     *
+     * A single transaction is created with an output for each token redemption.  The
+     * token transactions are marked as exchanged using the same database transaction
+     * that stores the Bitcoin transaction.
+     *
+     * @param   tokens                      Token transactions
+     * @return                              Transaction identifier
+     */
+    static String sendTokens(List<TokenTransaction> tokens) {
+        List<Address> toAddresses = new ArrayList<>(tokens.size());
+        long[] amounts = new long[tokens.size()];
+        for (int i=0; i<tokens.size(); i++) {
+            TokenTransaction token = tokens.get(i);
+            toAddresses.add(Address.fromBase58(params, token.getBitcoinAddress()));
+            amounts[i] = token.getBitcoinAmount();
+        }
+        return sendCoins(toAddresses, amounts, TokenAddon.bitcoinCoinSelector, false, tokens);
+    }
+
+    /**
+     * Get the number of token redemptions that can be sent in a single transaction
+     *
+     * The transaction size is estimated using the inputs chosen by the coin selector
+     * for the current unspent outputs.  The number of redemptions is halved until the
+     * estimated size does not exceed the maximum transaction size.  A single redemption
+     * is always allowed and will be rejected by sendTokens() if it is too large.
+     *
+     * @param   tokens                      Token transactions
+     * @return                              Number of leading token transactions to send
+     * @throws  SQLException                Unable to load the unspent outputs
+     */
+    static int getPayoutCount(List<TokenTransaction> tokens) throws SQLException {
+        int count = tokens.size();
+        unspentLock.lock();
+        try {
+            loadUnspentOutputs();
+            while (count > 1) {
+                long amount = 0;
+                for (int i=0; i<count; i++) {
+                    amount += tokens.get(i).getBitcoinAmount();
+                }
+                int inputCount = TokenAddon.bitcoinCoinSelector.select(unspentOutputs, amount, count).size();
+                int size = BitcoinCoinSelector.TX_OVERHEAD_SIZE + inputCount * BitcoinCoinSelector.TX_INPUT_SIZE +
+                        (count + 1) * BitcoinCoinSelector.TX_OUTPUT_SIZE;
+                if (size <= MAX_TRANSACTION_SIZE) {
+                    break;
+                }
+                count /= 2;
+            }
+        } finally {
+            unspentLock.unlock();
+        }
+        return count;
+    }
+
+    /**
+     * Send coins to the target addresses
+     *
+     * An existing database transaction will be committed or rolled back
+     * before returning to the caller.
+     *
+     * Send requests are serialized by the send lock.  The unspent output lock is
+     * held while selecting the unspent outputs and while committing the database
+     * transaction, but not while signing the transaction.  Block processing can
+     * add new unspent outputs in between but cannot remove the selected outputs.
+     *
+     * @param   toAddresses                 Target Bitcoin addresses
+     * @param   amounts                     Amount to send to each address (Satoshis)
+     * @param   selector                    Coin selector
+     * @param   emptyWallet                 TRUE if this is a request to empty the wallet (single address)
+     * @param   tokens                      Token transactions to mark as exchanged
+     * @return                              Transaction identifier
+     */
+    private static String sendCoins(List<Address> toAddresses, long[] amounts, BitcoinCoinSelector selector,
+                                    boolean emptyWallet, List<TokenTransaction> tokens) {
         String transactionId = null;
-        obtainLock();
+        int outputCount = toAddresses.size();
+        sendLock.lock();
         try {
+            TokenDb.flushWrites();
             TokenDb.beginTransaction();
-            long amount = emptyWallet ? walletBalance : coins.movePointRight(8).longValue();
-            if (amount < Transaction.MIN_NONDUST_OUTPUT.getValue()) {
-                throw new IllegalArgumentException("Transaction amount is too small");
+            if (emptyWallet) {
+                unspentLock.lock();
+                try {
+                    loadUnspentOutputs();
+                    amounts[0] = unspentOutputs.getBalance();
+                } finally {
+                    unspentLock.unlock();
+                }
+            }
+            long amount = 0;
+            for (long outputAmount : amounts) {
+                if (outputAmount < Transaction.MIN_NONDUST_OUTPUT.getValue()) {
+                    throw new IllegalArgumentException("Transaction amount is too small");
+                }
+                amount += outputAmount;
             }
+            String coins = BigDecimal.valueOf(amount, 8).stripTrailingZeros().toPlainString();
             //
             // Create the base transaction
             //
@@ -842,35 +1422,47 @@ public class BitcoinWallet {
             //
             // Create the outputs
             //
-            TransactionOutput output1 = new TransactionOutput(params, tx, Coin.valueOf(amount), toAddress);
+            List<TransactionOutput> outputs = new ArrayList<>(outputCount);
+            for (int i=0; i<outputCount; i++) {
+                outputs.add(new TransactionOutput(params, tx, Coin.valueOf(amounts[i]), toAddresses.get(i)));
+            }
             DeterministicKey changeKey = getNewKey(internalParentKey);
             Address changeAddress = changeKey.toAddress(params);
-            TransactionOutput output2 = new TransactionOutput(params, tx, Coin.ZERO, changeAddress);
+            TransactionOutput changeOutput = new TransactionOutput(params, tx, Coin.ZERO, changeAddress);
             //
             // Gather unspent outputs to form the inputs for this transaction
             //
-            // The unspent outputs are ordered from smallest to largest.  The intent
-            // is to reduce the number of unspent outputs as much as possible.  The
-            // downside is that this can raise transaction fees since the fees are
-            // based on the transaction size.
+            // The coin selector chooses the unspent outputs from the unspent output set.
+            // All of the unspent outputs are used if we are emptying the wallet.
             //
-            int length = 77;
-            long fee = BigDecimal.valueOf(length, 3).multiply(TokenAddon.bitcoinTxFee).movePointRight(8).longValue();
+            List<BitcoinUnspent> usedOutputs;
+            unspentLock.lock();
+            try {
+                loadUnspentOutputs();
+                if (emptyWallet) {
+                    usedOutputs = new ArrayList<>();
+                    unspentOutputs.forEachActive(usedOutputs::add);
+                } else {
+                    usedOutputs = selector.select(unspentOutputs, amount, outputCount);
+                }
+            } finally {
+                unspentLock.unlock();
+            }
             List<TransactionInput> inputs = new ArrayList<>();
             List<DeterministicKey> keys = new ArrayList<>();
             List<TransactionOutput> connectedOutputs = new ArrayList<>();
             List<Script> outScripts = new ArrayList<>();
             long inputAmount = 0;
-            List<BitcoinUnspent> unspentList = TokenDb.getUnspentOutputs();
-            for (BitcoinUnspent unspent : unspentList) {
+            for (BitcoinUnspent unspent : usedOutputs) {
                 inputAmount += unspent.getAmount();
                 DeterministicKey parentKey =
                         unspent.getParentNumber().getI() == 0 ? externalParentKey : internalParentKey;
-                DeterministicKey key = getKey(parentKey, unspent.getChildNumber());
+                CachedKey cachedKey = getCachedKey(parentKey, unspent.getChildNumber());
+                DeterministicKey key = cachedKey.key;
                 keys.add(key);
-                Script outScript = ScriptBuilder.createOutputScript(key.toAddress(params));
+                Script outScript = cachedKey.outScript;
                 outScripts.add(outScript);
-                TransactionOutput output = new TransactionOutput(params, null, Coin.valueOf(inputAmount),
+                TransactionOutput output = new TransactionOutput(params, null, Coin.valueOf(unspent.getAmount()),
                         outScript.getProgram());
                 connectedOutputs.add(output);
                 Script inScript = ScriptBuilder.createInputScript(null, key);
@@ -878,66 +1470,78 @@ public class BitcoinWallet {
                         Sha256Hash.wrap(unspent.getId()));
                 TransactionInput input = new TransactionInput(params, tx, inScript.getProgram(), outPoint);
                 inputs.add(input);
-                length += 148;
-                fee = BigDecimal.valueOf(length, 3).multiply(TokenAddon.bitcoinTxFee).movePointRight(8).longValue();
-                if (inputAmount >= amount + fee) {
-                    break;
-                }
             }
             //
             // We will deduct the fee from the amount if we are emptying the wallet.  Otherwise,
             // there must be sufficient funds to cover the requested amount plus the transaction fee.
             // We will add the change to the transaction fee if the change would result in a dust
-            // output.
+            // output (the fee is then based on a transaction without a change output).
             //
+            long fee;
             long change;
             if (emptyWallet) {
-                amount -= fee;
+                fee = BitcoinCoinSelector.getFee(inputs.size(), 1);
+                amount = inputAmount - fee;
                 change = 0;
                 if (amount < Transaction.MIN_NONDUST_OUTPUT.getValue()) {
-                    throw new IllegalArgumentException("Insufficient funds to send " + coins.toPlainString() + " BTC");
+                    throw new IllegalArgumentException("Insufficient funds to send " + coins + " BTC");
                 }
-                output1.setValue(Coin.valueOf(amount));
+                outputs.get(0).setValue(Coin.valueOf(amount));
             } else {
+                fee = BitcoinCoinSelector.getFee(inputs.size(), outputCount + 1);
                 change = inputAmount - amount - fee;
-                if (change < 0) {
-                    throw new IllegalArgumentException("Insufficient funds to send " + coins.toPlainString() + " BTC");
-                }
                 if (change < Transaction.MIN_NONDUST_OUTPUT.getValue()) {
+                    fee = inputAmount - amount;
                     change = 0;
+                    if (fee < BitcoinCoinSelector.getFee(inputs.size(), outputCount)) {
+                        throw new IllegalArgumentException("Insufficient funds to send " + coins + " BTC");
+                    }
                 }
             }
+            int size = BitcoinCoinSelector.TX_OVERHEAD_SIZE + inputs.size() * BitcoinCoinSelector.TX_INPUT_SIZE +
+                    (outputCount + 1) * BitcoinCoinSelector.TX_OUTPUT_SIZE;
+            if (size > MAX_TRANSACTION_SIZE) {
+                throw new IllegalArgumentException("Transaction size " + size + " exceeds the maximum size");
+            }
             //
-            // Add the inputs and outputs to the transaction
+            // Add the inputs and outputs to the transaction.  The change output follows
+            // the payment outputs.
             //
-            tx.addOutput(output1);
+            outputs.forEach(tx::addOutput);
             if (change > 0) {
-                output2.setValue(Coin.valueOf(change));
-                tx.addOutput(output2);
+                changeOutput.setValue(Coin.valueOf(change));
+                tx.addOutput(changeOutput);
             }
             for (TransactionInput input : inputs) {
                 tx.addInput(input);
             }
             //
-            // Sign the inputs and verify the generated script as a sanity check that everything
-            // is correct
+            // Sign the inputs.  The inputs are signed in parallel using the input signing pool
+            // when there are a large number of inputs.  The inputs are divided into one range
+            // for each pool thread and each range is signed using a separate copy of the
+            // transaction.  The input scripts are then set in input order.
             //
-            int index = 0;
-            for (TransactionInput input : tx.getInputs()) {
-                Script inScript = input.getScriptSig();
-                Script outScript = outScripts.get(index);
-                DeterministicKey key = keys.get(index);
-                TransactionSignature signature = tx.calculateSignature(index, key, outScript,
-                                Transaction.SigHash.ALL, false);
-                inScript = outScript.getScriptSigWithSignature(inScript, signature.encodeToBitcoin(), 0);
-                input.setScriptSig(inScript);
-                input.verify(connectedOutputs.get(index));
-                index++;
+            int inputCount = inputs.size();
+            Script[] inScripts = new Script[inputCount];
+            if (inputCount >= PARALLEL_SIGN_THRESHOLD) {
+                byte[] txBytes = tx.bitcoinSerialize();
+                int rangeSize = (inputCount + signPool.getParallelism() - 1) / signPool.getParallelism();
+                signPool.submit(() -> IntStream.range(0, (inputCount + rangeSize - 1) / rangeSize).parallel()
+                        .forEach((range) -> {
+                            propagateContext();
+                            signInputs(new Transaction(params, txBytes), range * rangeSize,
+                                    Math.min((range + 1) * rangeSize, inputCount),
+                                    keys, outScripts, connectedOutputs, inScripts);
+                        })).get();
+            } else {
+                signInputs(tx, 0, inputCount, keys, outScripts, connectedOutputs, inScripts);
+            }
+            for (int i=0; i<inputCount; i++) {
+                tx.getInput(i).setScriptSig(inScripts[i]);
             }
             //
             // Update the outputs that we used for this transaction
             //
-            List<BitcoinUnspent> usedOutputs = unspentList.subList(0, tx.getInputs().size());
             for (BitcoinUnspent unspent : usedOutputs) {
                 TokenDb.spendOutput(unspent.getId(), unspent.getIndex());
             }
@@ -945,10 +1549,18 @@ public class BitcoinWallet {
             // Add the change output to the unspent outputs now so that it is available
             // for use by the next send request
             //
+            BitcoinUnspent changeUnspent = null;
             if (change > 0) {
-                BitcoinUnspent changeOutput = new BitcoinUnspent(tx.getHash().getBytes(), 1, dummyBlock,
+                changeUnspent = new BitcoinUnspent(tx.getHash().getBytes(), outputCount, dummyBlock,
                         change, getChainHeight(), changeKey.getChildNumber(), internalParentKey.getChildNumber());
-                TokenDb.storeUnspentOutput(changeOutput);
+                TokenDb.storeUnspentOutput(changeUnspent);
+            }
+            //
+            // Mark the token transactions as exchanged
+            //
+            if (!tokens.isEmpty()) {
+                tokens.forEach((token) -> token.setExchanged(tx.getHash().getBytes()));
+                TokenDb.updateTokens(tokens);
             }
             //
             // Broadcast the transaction
@@ -957,23 +1569,67 @@ public class BitcoinWallet {
             peerGroup.broadcastTransaction(tx);
             broadcastList.add(tx.getHash().toString());
             //
-            // All is well - commit the database transaction
+            // All is well - commit the database transaction and update the unspent output set
             //
-            TokenDb.commitTransaction();
-            walletBalance -= amount + fee - change;
+            unspentLock.lock();
+            try {
+                TokenDb.commitTransaction();
+                for (BitcoinUnspent unspent : usedOutputs) {
+                    unspentOutputs.spend(unspent.getId(), unspent.getIndex());
+                }
+                if (changeUnspent != null) {
+                    unspentOutputs.add(changeUnspent);
+                }
+            } finally {
+                unspentLock.unlock();
+            }
+            updateFilter();
             transactionId = tx.getHashAsString();
             Logger.logInfoMessage("Broadcast Bitcoin transaction " + transactionId + " for "
-                    + BigDecimal.valueOf(amount, 8).stripTrailingZeros().toPlainString() + " BTC");
+                    + BigDecimal.valueOf(amount, 8).stripTrailingZeros().toPlainString() + " BTC"
+                    + (outputCount > 1 ? " to " + outputCount + " addresses" : ""));
         } catch (Exception exc) {
             TokenDb.rollbackTransaction();
             throw new RuntimeException(exc.getMessage(), exc);
         } finally {
-            releaseLock();
+            sendLock.unlock();
             TokenDb.endTransaction();
         }
         return transactionId;
     }
 
+    /**
+     * Sign a range of transaction inputs
+     *
+     * A sample of the signed inputs is verified as a sanity check that everything is
+     * correct.  The sample size is set by the 'bitcoinVerifyPercent' configuration option.
+     *
+     * @param   tx                          Transaction
+     * @param   start                       First input index
+     * @param   end                         Last input index (exclusive)
+     * @param   keys                        Input keys
+     * @param   outScripts                  Connected output scripts
+     * @param   connectedOutputs            Connected outputs
+     * @param   inScripts                   Signed input scripts (updated)
+     */
+    private static void signInputs(Transaction tx, int start, int end, List<DeterministicKey> keys,
+                                   List<Script> outScripts, List<TransactionOutput> connectedOutputs,
+                                   Script[] inScripts) {
+        for (int index=start; index<end; index++) {
+            TransactionInput input = tx.getInput(index);
+            Script outScript = outScripts.get(index);
+            TransactionSignature signature = tx.calculateSignature(index, keys.get(index), outScript,
+                            Transaction.SigHash.ALL, false);
+            Script inScript = outScript.getScriptSigWithSignature(input.getScriptSig(), signature.encodeToBitcoin(), 0);
+            input.setScriptSig(inScript);
+            if (TokenAddon.bitcoinVerifyPercent >= 100 ||
+                    ThreadLocalRandom.current().nextInt(100) < TokenAddon.bitcoinVerifyPercent) {
+                input.verify(connectedOutputs.get(index));
+            }
+            inScripts[index] = inScript;
+        }
+    }
+
     /**
      * Empty the wallet
      *
@@ -981,6 +1637,6 @@ public class BitcoinWallet {
      * @return                              Transaction identifier
      */
     static String emptyWallet(Address toAddress) {
-        return sendCoins(toAddress, BigDecimal.ZERO, true);
+        return sendCoins(toAddress, BigDecimal.ZERO, TokenAddon.bitcoinCoinSelector, true);
     }
 }
@@ -0,0 +1,161 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import nxt.util.Logger;
+
+import org.bitcoinj.crypto.ChildNumber;
+
+import java.sql.SQLException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Child number allocator
+ *
+ * Child numbers for a parent key are allocated from an in-memory counter.  The
+ * database stores a high-water mark which is advanced RANGE_SIZE numbers at a
+ * time before any number in the new range is allocated.  The allocator starts at
+ * the stored high-water mark, so numbers that were reserved but not allocated
+ * before a server failure are skipped.  The exact next number is stored when
+ * the allocator is closed.
+ *
+ * The database is accessed only when a range is exhausted.  The high-water mark
+ * is stored by the allocator thread so that it is not part of a database transaction
+ * started by the caller and is not lost if that transaction is rolled back.
+ */
+class ChildNumberAllocator {
+
+    /** Number of child numbers reserved at a time */
+    static final int RANGE_SIZE = 1000;
+
+    /** Parent (0 = external, 1 = internal) */
+    private final ChildNumber parent;
+
+    /** Next child number */
+    private final AtomicInteger next;
+
+    /** Stored high-water mark */
+    private volatile int limit;
+
+    /** Allocator executor */
+    private final ExecutorService executor;
+
+    /**
+     * Create the child number allocator
+     *
+     * @param   parent          Parent (0 = external, 1 = internal)
+     * @throws  SQLException    Database error occurred
+     */
+    ChildNumberAllocator(ChildNumber parent) throws SQLException {
+        this.parent = parent;
+        int start = TokenDb.getChildLimit(parent);
+        this.next = new AtomicInteger(start);
+        this.limit = start;
+        this.executor = Executors.newSingleThreadExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "TokenExchange Child Number Allocator");
+            thread.setDaemon(true);
+            return thread;
+        });
+    }
+
+    /**
+     * Allocate a child number
+     *
+     * @return                  Child number
+     * @throws  SQLException    Database error occurred
+     */
+    ChildNumber allocate() throws SQLException {
+        return allocate(1);
+    }
+
+    /**
+     * Allocate a block of consecutive child numbers
+     *
+     * @param   count           Number of child numbers
+     * @return                  First child number
+     * @throws  SQLException    Database error occurred
+     */
+    ChildNumber allocate(int count) throws SQLException {
+        int first = next.getAndAdd(count);
+        int end = first + count;
+        if (end > limit) {
+            synchronized(this) {
+                if (end > limit) {
+                    int newLimit = Math.max(end, next.get()) + RANGE_SIZE;
+                    storeLimit(newLimit);
+                    limit = newLimit;
+                }
+            }
+        }
+        return new ChildNumber(first);
+    }
+
+    /**
+     * Close the allocator
+     *
+     * The next child number is stored as the high-water mark so that the
+     * unused part of the current range is not skipped.  The allocator thread
+     * is stopped after the high-water mark has been stored.
+     *
+     * @throws  SQLException    Database error occurred
+     */
+    synchronized void close() throws SQLException {
+        try {
+            int newLimit = next.get();
+            if (newLimit < limit) {
+                storeLimit(newLimit);
+                limit = newLimit;
+            }
+        } finally {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(30, TimeUnit.SECONDS)) {
+                    Logger.logWarningMessage("TokenExchange child number allocator did not stop");
+                }
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Store the high-water mark using the allocator thread
+     *
+     * @param   newLimit        New high-water mark
+     * @throws  SQLException    Database error occurred
+     */
+    private void storeLimit(int newLimit) throws SQLException {
+        try {
+            executor.submit(() -> {
+                TokenDb.setChildLimit(parent, newLimit);
+                return null;
+            }).get();
+        } catch (ExecutionException exc) {
+            Throwable cause = exc.getCause();
+            if (cause instanceof SQLException) {
+                throw (SQLException)cause;
+            }
+            throw new SQLException("Unable to store child number limit", cause);
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while storing child number limit", exc);
+        }
+    }
+}
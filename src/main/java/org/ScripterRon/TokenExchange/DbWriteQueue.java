@@ -0,0 +1,375 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import nxt.util.Logger;
+
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Database write-behind queue
+ *
+ * Writes that no caller waits for are queued and performed by the writer thread.
+ * The queue is bounded and a caller waits for space when the queue is full.  The
+ * writer thread removes up to GROUP_SIZE writes at a time and performs them in
+ * queue order using a single database transaction, so writes to a table are applied
+ * in the order they were queued.  A group that fails is retried and later writes are
+ * not performed until then.  After MAX_ATTEMPTS failures, the writes in the group are
+ * performed one at a time and an optional write that still fails is discarded and
+ * logged, so a single bad write cannot stop the writes that follow it.  A required
+ * write is never discarded.  TokenExchange processing is suspended when a required
+ * write fails and the write is retried until it succeeds.  Callers get an exception
+ * from add() and flush() until then.
+ *
+ * Each write is given a sequence number when it is queued.  Code that must read the
+ * result of a queued write calls flush(), which waits until all writes queued before
+ * the call have been committed or discarded.  Queued writes are performed when the
+ * queue is shutdown.
+ *
+ * The queue is held in memory and is not durable.  Writes that are still queued when
+ * the server fails are lost, so only writes that can be repeated after a restart are
+ * queued: a lost block header is downloaded again and a lost broadcast deletion
+ * results in the transaction being broadcast again.  Block store writes are required
+ * since a missing block header or a stale chain head is not repaired while the
+ * server is running.
+ */
+class DbWriteQueue implements Runnable {
+
+    /** Maximum number of writes in a database transaction */
+    private static final int GROUP_SIZE = 100;
+
+    /** Delay before retrying a failed group (milliseconds) */
+    private static final long RETRY_DELAY = 1000;
+
+    /** Number of attempts before a failed group is written one write at a time */
+    private static final int MAX_ATTEMPTS = 10;
+
+    /** Queued writes */
+    private final ArrayBlockingQueue<QueuedWrite> queue;
+
+    /** Lock held while assigning a sequence number and queuing a write */
+    private final Object addLock = new Object();
+
+    /** Writer thread */
+    private final Thread writerThread;
+
+    /** Sequence number of the last queued write */
+    private final AtomicLong queuedSequence = new AtomicLong();
+
+    /** Sequence number of the last committed or discarded write */
+    private long committedSequence;
+
+    /** Queue has been shutdown */
+    private volatile boolean stopped;
+
+    /** A required write has failed and has not been performed yet */
+    private volatile boolean failed;
+
+    /** Number of database transactions */
+    private final AtomicLong groupCount = new AtomicLong();
+
+    /** Number of times a caller waited for space in the queue */
+    private final AtomicLong waitCount = new AtomicLong();
+
+    /** Number of discarded writes */
+    private final AtomicLong discardCount = new AtomicLong();
+
+    /**
+     * Create the write queue
+     *
+     * @param   queueSize       Maximum number of queued writes
+     */
+    DbWriteQueue(int queueSize) {
+        queue = new ArrayBlockingQueue<>(queueSize);
+        writerThread = new Thread(this, "TokenExchange Database Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+    }
+
+    /**
+     * Queue a write
+     *
+     * The caller waits if the queue is full.  The write is performed
+     * immediately if the queue has been shutdown.
+     *
+     * @param   write           Database write
+     * @param   required        TRUE if the write must not be discarded
+     * @throws  SQLException    A required write has failed or the queue is shutdown and the write failed
+     */
+    void add(DbWrite write, boolean required) throws SQLException {
+        if (failed) {
+            throw new SQLException("A required database write has failed");
+        }
+        if (stopped) {
+            write.write();
+            return;
+        }
+        synchronized(addLock) {
+            QueuedWrite queuedWrite = new QueuedWrite(queuedSequence.get() + 1, write, required);
+            try {
+                if (!queue.offer(queuedWrite)) {
+                    waitCount.incrementAndGet();
+                    queue.put(queuedWrite);
+                }
+            } catch (InterruptedException exc) {
+                Thread.currentThread().interrupt();
+                throw new SQLException("Interrupted while queuing database write", exc);
+            }
+            queuedSequence.set(queuedWrite.sequence);
+        }
+    }
+
+    /**
+     * Wait until all writes queued before this call have been committed or discarded
+     *
+     * @throws  SQLException    Writer has stopped, a required write has failed or the wait was interrupted
+     */
+    synchronized void flush() throws SQLException {
+        long target = queuedSequence.get();
+        try {
+            while (committedSequence < target) {
+                if (stopped && !writerThread.isAlive()) {
+                    throw new SQLException("Database writer has stopped");
+                }
+                if (failed) {
+                    throw new SQLException("A required database write has failed");
+                }
+                wait(RETRY_DELAY);
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for queued database writes", exc);
+        }
+    }
+
+    /**
+     * Shutdown the queue
+     *
+     * Queued writes are performed before the writer thread stops.  The writer thread
+     * is not interrupted since an interrupt can close an embedded H2 database file.
+     */
+    void shutdown() {
+        stopped = true;
+        try {
+            writerThread.join(5000);
+        } catch (InterruptedException exc) {
+            // Ignored since we are shutting down
+        }
+        if (!queue.isEmpty()) {
+            Logger.logErrorMessage(queue.size() + " queued database writes were not performed");
+        }
+    }
+
+    /**
+     * Get the number of queued writes
+     *
+     * @return                  Number of writes waiting to be committed
+     */
+    int getQueueSize() {
+        return queue.size();
+    }
+
+    /**
+     * Get the number of database transactions
+     *
+     * @return                  Number of committed groups
+     */
+    long getGroupCount() {
+        return groupCount.get();
+    }
+
+    /**
+     * Get the number of times a caller waited for space in the queue
+     *
+     * @return                  Wait count
+     */
+    long getWaitCount() {
+        return waitCount.get();
+    }
+
+    /**
+     * Get the number of discarded writes
+     *
+     * @return                  Discard count
+     */
+    long getDiscardCount() {
+        return discardCount.get();
+    }
+
+    /**
+     * Perform queued writes
+     */
+    @Override
+    public void run() {
+        List<QueuedWrite> group = new ArrayList<>(GROUP_SIZE);
+        int attempts = 0;
+        while (!stopped || !queue.isEmpty()) {
+            try {
+                if (group.isEmpty()) {
+                    QueuedWrite write = queue.peek();
+                    if (write == null) {
+                        if (stopped) {
+                            break;
+                        }
+                        write = queue.poll(RETRY_DELAY, TimeUnit.MILLISECONDS);
+                        if (write == null) {
+                            continue;
+                        }
+                        group.add(write);
+                    }
+                    queue.drainTo(group, GROUP_SIZE - group.size());
+                }
+                writeGroup(group);
+                groupCommitted(group);
+                failed = false;
+                attempts = 0;
+            } catch (InterruptedException exc) {
+                break;
+            } catch (Exception exc) {
+                Logger.logErrorMessage("Unable to perform queued database writes", exc);
+                if (++attempts >= MAX_ATTEMPTS || stopped) {
+                    writeSeparately(group);
+                    if (group.isEmpty()) {
+                        failed = false;
+                        attempts = 0;
+                        continue;
+                    }
+                }
+                try {
+                    Thread.sleep(RETRY_DELAY);
+                } catch (InterruptedException exc2) {
+                    break;
+                }
+            }
+        }
+        if (!group.isEmpty()) {
+            Logger.logErrorMessage(group.size() + " queued database writes were not performed");
+        }
+    }
+
+    /**
+     * Mark a group of writes as committed
+     *
+     * @param   group           Database writes (cleared)
+     */
+    private void groupCommitted(List<QueuedWrite> group) {
+        if (group.isEmpty()) {
+            return;
+        }
+        synchronized(this) {
+            committedSequence = group.get(group.size() - 1).sequence;
+            notifyAll();
+        }
+        group.clear();
+    }
+
+    /**
+     * Perform a group of writes with each write in a separate database transaction
+     *
+     * An optional write that fails is discarded.  Processing stops at a required
+     * write that fails and that write and the writes following it are left in the
+     * group so they are retried.
+     *
+     * @param   group           Database writes (committed writes are removed)
+     */
+    private void writeSeparately(List<QueuedWrite> group) {
+        int count = 0;
+        for (QueuedWrite write : group) {
+            try {
+                writeGroup(Collections.singletonList(write));
+            } catch (Exception exc) {
+                if (write.required) {
+                    Logger.logErrorMessage("Required database write failed after " + MAX_ATTEMPTS + " attempts", exc);
+                    if (!failed) {
+                        failed = true;
+                        TokenAddon.suspend("Unable to perform a required database write");
+                        synchronized(this) {
+                            notifyAll();
+                        }
+                    }
+                    break;
+                }
+                discardCount.incrementAndGet();
+                Logger.logErrorMessage("Queued database write discarded after " + MAX_ATTEMPTS + " attempts", exc);
+            }
+            count++;
+        }
+        groupCommitted(group.subList(0, count));
+    }
+
+    /**
+     * Perform a group of writes in a single database transaction
+     *
+     * @param   group           Database writes
+     * @throws  SQLException    Error occurred
+     */
+    private void writeGroup(List<QueuedWrite> group) throws SQLException {
+        try {
+            TokenDb.beginTransaction();
+            for (QueuedWrite write : group) {
+                write.write.write();
+            }
+            TokenDb.commitTransaction();
+            groupCount.incrementAndGet();
+        } catch (SQLException exc) {
+            TokenDb.rollbackTransaction();
+            throw exc;
+        } finally {
+            TokenDb.endTransaction();
+        }
+    }
+
+    /**
+     * Queued database write
+     */
+    private static class QueuedWrite {
+
+        /** Sequence number */
+        private final long sequence;
+
+        /** Database write */
+        private final DbWrite write;
+
+        /** Write must not be discarded */
+        private final boolean required;
+
+        private QueuedWrite(long sequence, DbWrite write, boolean required) {
+            this.sequence = sequence;
+            this.write = write;
+            this.required = required;
+        }
+    }
+
+    /**
+     * Database write
+     */
+    @FunctionalInterface
+    interface DbWrite {
+
+        /**
+         * Perform the write
+         *
+         * @throws  SQLException    Error occurred
+         */
+        void write() throws SQLException;
+    }
+}
@@ -0,0 +1,178 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Monitored lock
+ *
+ * A reentrant lock that records how often it is obtained, how often a thread
+ * has to wait for it, how long threads wait and how long it is held.  The hold
+ * time is measured from the first lock to the matching unlock.
+ */
+class MonitoredLock {
+
+    /** Lock name */
+    private final String name;
+
+    /** Lock */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    /** Time the lock was obtained (nanoseconds) */
+    private long holdStartTime;
+
+    /** Number of lock acquisitions */
+    private final AtomicLong lockCount = new AtomicLong();
+
+    /** Number of lock acquisitions that had to wait */
+    private final AtomicLong contendedCount = new AtomicLong();
+
+    /** Total wait time (nanoseconds) */
+    private final AtomicLong waitTime = new AtomicLong();
+
+    /** Maximum wait time (nanoseconds) */
+    private final AtomicLong maxWaitTime = new AtomicLong();
+
+    /** Total hold time (nanoseconds) */
+    private final AtomicLong holdTime = new AtomicLong();
+
+    /** Maximum hold time (nanoseconds) */
+    private final AtomicLong maxHoldTime = new AtomicLong();
+
+    /**
+     * Create a monitored lock
+     *
+     * @param   name            Lock name
+     */
+    MonitoredLock(String name) {
+        this.name = name;
+    }
+
+    /**
+     * Get the lock name
+     *
+     * @return                  Lock name
+     */
+    String getName() {
+        return name;
+    }
+
+    /**
+     * Obtain the lock
+     */
+    void lock() {
+        if (!lock.tryLock()) {
+            long startTime = System.nanoTime();
+            lock.lock();
+            long elapsed = System.nanoTime() - startTime;
+            contendedCount.incrementAndGet();
+            waitTime.addAndGet(elapsed);
+            maxWaitTime.accumulateAndGet(elapsed, Math::max);
+        }
+        if (lock.getHoldCount() == 1) {
+            holdStartTime = System.nanoTime();
+        }
+    }
+
+    /**
+     * Release the lock
+     */
+    void unlock() {
+        if (lock.getHoldCount() == 1) {
+            long elapsed = System.nanoTime() - holdStartTime;
+            lockCount.incrementAndGet();
+            holdTime.addAndGet(elapsed);
+            maxHoldTime.accumulateAndGet(elapsed, Math::max);
+        }
+        lock.unlock();
+    }
+
+    /**
+     * Check if the current thread holds the lock
+     *
+     * @return                  TRUE if the lock is held by the current thread
+     */
+    boolean isHeldByCurrentThread() {
+        return lock.isHeldByCurrentThread();
+    }
+
+    /**
+     * Get the number of lock acquisitions
+     *
+     * @return                  Lock count
+     */
+    long getLockCount() {
+        return lockCount.get();
+    }
+
+    /**
+     * Get the number of lock acquisitions that had to wait
+     *
+     * @return                  Contended count
+     */
+    long getContendedCount() {
+        return contendedCount.get();
+    }
+
+    /**
+     * Get the average wait time for a contended lock acquisition
+     *
+     * @return                  Average wait time (microseconds)
+     */
+    long getAverageWaitTime() {
+        long count = contendedCount.get();
+        return (count != 0 ? waitTime.get() / count / 1000 : 0);
+    }
+
+    /**
+     * Get the maximum wait time
+     *
+     * @return                  Maximum wait time (microseconds)
+     */
+    long getMaximumWaitTime() {
+        return maxWaitTime.get() / 1000;
+    }
+
+    /**
+     * Get the average hold time
+     *
+     * @return                  Average hold time (microseconds)
+     */
+    long getAverageHoldTime() {
+        long count = lockCount.get();
+        return (count != 0 ? holdTime.get() / count / 1000 : 0);
+    }
+
+    /**
+     * Get the maximum hold time
+     *
+     * @return                  Maximum hold time (microseconds)
+     */
+    long getMaximumHoldTime() {
+        return maxHoldTime.get() / 1000;
+    }
+
+    /**
+     * Get the total hold time
+     *
+     * @return                  Total hold time (milliseconds)
+     */
+    long getTotalHoldTime() {
+        return holdTime.get() / 1000000;
+    }
+}
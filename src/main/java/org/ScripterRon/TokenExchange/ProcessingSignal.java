@@ -0,0 +1,134 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+/**
+ * Coalescing processing signal
+ *
+ * The signal carries the latest chain height.  Signals that are received before
+ * the processing thread takes the signal are combined, so a burst of new blocks
+ * results in a single processing pass for the highest block.  Successive passes
+ * are separated by at least the minimum interval.
+ */
+class ProcessingSignal {
+
+    /** Minimum interval between processing passes (milliseconds) */
+    private final long minInterval;
+
+    /** Latest signalled height (0 if there is no pending signal) */
+    private int height;
+
+    /** Number of signals combined into the pending signal */
+    private int pendingCount;
+
+    /** Time of the last processing pass */
+    private long lastPassTime;
+
+    /** Number of signals */
+    private long signalCount;
+
+    /** Number of processing passes */
+    private long passCount;
+
+    /** Signal has been stopped */
+    private boolean stopped;
+
+    /**
+     * Create the processing signal
+     *
+     * @param   minInterval     Minimum interval between processing passes (milliseconds)
+     */
+    ProcessingSignal(long minInterval) {
+        this.minInterval = minInterval;
+    }
+
+    /**
+     * Signal a new chain height
+     *
+     * @param   newHeight       New chain height
+     */
+    synchronized void signal(int newHeight) {
+        if (stopped) {
+            return;
+        }
+        height = Math.max(height, newHeight);
+        pendingCount++;
+        signalCount++;
+        notify();
+    }
+
+    /**
+     * Stop the signal and wake up the processing thread
+     */
+    synchronized void stop() {
+        stopped = true;
+        notify();
+    }
+
+    /**
+     * Wait for a signal
+     *
+     * @return                  Signalled height or -1 if the signal has been stopped
+     * @throws  InterruptedException    Wait was interrupted
+     */
+    synchronized int take() throws InterruptedException {
+        while (!stopped) {
+            if (height == 0) {
+                wait();
+                continue;
+            }
+            long delay = lastPassTime + minInterval - System.currentTimeMillis();
+            if (delay > 0) {
+                wait(delay);
+                continue;
+            }
+            int result = height;
+            height = 0;
+            pendingCount = 0;
+            passCount++;
+            lastPassTime = System.currentTimeMillis();
+            return result;
+        }
+        return -1;
+    }
+
+    /**
+     * Get the number of signals waiting to be processed
+     *
+     * @return                  Number of signals combined into the pending signal
+     */
+    synchronized int getPendingCount() {
+        return pendingCount;
+    }
+
+    /**
+     * Get the number of signals
+     *
+     * @return                  Number of signals
+     */
+    synchronized long getSignalCount() {
+        return signalCount;
+    }
+
+    /**
+     * Get the number of processing passes
+     *
+     * @return                  Number of processing passes
+     */
+    synchronized long getPassCount() {
+        return passCount;
+    }
+}
@@ -35,9 +35,14 @@ import org.json.simple.JSONArray;
 import org.json.simple.JSONObject;
 import org.json.simple.JSONStreamAware;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.io.Writer;
 import java.math.BigDecimal;
+import java.sql.SQLException;
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Consumer;
 
 import javax.servlet.http.HttpServletRequest;
 
@@ -69,17 +74,20 @@ import javax.servlet.http.HttpServletRequest;
  * Transaction tokens at a height greater than the specified height
  * will be returned.  The 'includeExchanged' parameter can be used to return processed
  * tokens in addition to pending tokens.
+ * The 'firstIndex' and 'lastIndex' parameters can be used to return a portion of the list.
  *
  * <li>getTransactions - Return a list of transactions received by the Bitcoin wallet for
  * addresses associated with NXT accounts.  Specify the 'address' parameter to limit the
  * list to transactions for that address.  Otherwise, all transactions are returned.  Specify
  * the 'includeExchanged' parameter to return transactions that have been processed as well
  * as pending transactions.
+ * The 'firstIndex' and 'lastIndex' parameters can be used to return a portion of the list.
  *
  * <li>resume - Resume sending Bitcoins for redeemed tokens and issuing tokens for received
  * Bitcoins.
  *
- * <li>SendBitcoins - Send Bitcoins to the specified address.
+ * <li>SendBitcoins - Send Bitcoins to the specified address.  The 'coinSelection' parameter
+ * can be specified to override the default coin selection strategy.
  *
  * <li>setExchangeRate - Set the token exchange rate.
  *
@@ -94,7 +102,8 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
      */
     public TokenAPI() {
         super(new APITag[] {APITag.ADDONS},
-                "function", "id", "includeExchanged", "height", "account", "publicKey", "address", "rate", "amount");
+                "function", "id", "includeExchanged", "height", "account", "publicKey", "address", "rate", "amount",
+                "coinSelection", "firstIndex", "lastIndex");
     }
 
     /**
@@ -125,6 +134,8 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
         String rateString;
         String txString;
         boolean includeExchanged;
+        int firstIndex;
+        int lastIndex;
         long accountId;
         int height;
         List<BitcoinAccount> accountList;
@@ -161,6 +172,50 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                 response.put("bitcoinTxFee", TokenAddon.bitcoinTxFee.toPlainString());
                 response.put("bitcoinChainHeight", BitcoinWallet.getChainHeight());
                 response.put("nxtChainHeight", Nxt.getBlockchain().getHeight());
+                BitcoinBlockStore blockStore = BitcoinWallet.getBlockStore();
+                response.put("blockCacheSize", blockStore.getCacheCount());
+                response.put("blockCacheHits", blockStore.getCacheHits());
+                response.put("blockCacheMisses", blockStore.getCacheMisses());
+                response.put("dbPoolActive", TokenDb.getActiveConnections());
+                response.put("dbPoolIdle", TokenDb.getIdleConnections());
+                response.put("dbPoolWaiters", TokenDb.getConnectionWaiters());
+                response.put("dbPoolBorrowTime", TokenDb.getAverageBorrowTime());
+                response.put("dbPoolMaxBorrowTime", TokenDb.getMaximumBorrowTime());
+                response.put("dbStatementCacheHits", TokenDb.getStatementCacheHits());
+                response.put("dbStatementCacheMisses", TokenDb.getStatementCacheMisses());
+                response.put("dbQueuedWrites", TokenDb.getQueuedWrites());
+                response.put("dbWriteGroups", TokenDb.getWriteGroups());
+                response.put("dbWriteWaits", TokenDb.getWriteWaits());
+                response.put("dbDiscardedWrites", TokenDb.getDiscardedWrites());
+                response.put("accountCacheAddresses", TokenDb.getAccountCacheAddresses());
+                response.put("accountCacheAccounts", TokenDb.getAccountCacheAccounts());
+                response.put("accountCacheHits", TokenDb.getAccountCacheHits());
+                response.put("accountCacheNegativeHits", TokenDb.getAccountCacheNegativeHits());
+                response.put("accountCacheMisses", TokenDb.getAccountCacheMisses());
+                response.put("accountCacheEvictions", TokenDb.getAccountCacheEvictions());
+                JSONArray locks = new JSONArray();
+                for (MonitoredLock lock : new MonitoredLock[] {BitcoinWallet.unspentLock,
+                            BitcoinWallet.sendLock, BitcoinProcessor.issuanceLock}) {
+                    JSONObject JSONlock = new JSONObject();
+                    JSONlock.put("name", lock.getName());
+                    JSONlock.put("lockCount", lock.getLockCount());
+                    JSONlock.put("contendedCount", lock.getContendedCount());
+                    JSONlock.put("waitTime", lock.getAverageWaitTime());
+                    JSONlock.put("maxWaitTime", lock.getMaximumWaitTime());
+                    JSONlock.put("holdTime", lock.getAverageHoldTime());
+                    JSONlock.put("maxHoldTime", lock.getMaximumHoldTime());
+                    JSONlock.put("totalHoldTime", lock.getTotalHoldTime());
+                    locks.add(JSONlock);
+                }
+                response.put("walletLocks", locks);
+                response.put("processorPendingBlocks", BitcoinProcessor.getPendingSignals());
+                response.put("processorBlocks", BitcoinProcessor.getSignalCount());
+                response.put("processorPasses", BitcoinProcessor.getPassCount());
+                response.put("addressPoolSize", BitcoinWallet.getAddressPoolCount());
+                response.put("pendingAccounts", BitcoinWallet.getPendingAccountCount());
+                response.put("archivedTokens", TokenArchiver.getArchivedTokens());
+                response.put("archivedTransactions", TokenArchiver.getArchivedTransactions());
+                response.put("archivedOutputs", TokenArchiver.getArchivedOutputs());
                 response.put("suspended", TokenAddon.isSuspended());
                 if (TokenAddon.isSuspended()) {
                     response.put("suspendReason", TokenAddon.getSuspendReason());
@@ -204,32 +259,18 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                     includeExchanged = Boolean.valueOf(includeExchangedString);
                 }
                 try {
-                    List<TokenTransaction> tokenList = TokenDb.getTokens(height, includeExchanged);
-                    JSONArray tokenArray = new JSONArray();
-                    tokenList.forEach((token) -> {
-                        JSONObject tokenObject = new JSONObject();
-                        tokenObject.put("nxtTxId", Long.toUnsignedString(token.getNxtTxId()));
-                        tokenObject.put("sender", Long.toUnsignedString(token.getSenderId()));
-                        tokenObject.put("senderRS", token.getSenderIdRS());
-                        tokenObject.put("nxtChainHeight", token.getHeight());
-                        tokenObject.put("timestamp", token.getTimestamp());
-                        tokenObject.put("exchanged", token.isExchanged());
-                        tokenObject.put("tokenAmount",
-                                BigDecimal.valueOf(token.getTokenAmount(), TokenAddon.currencyDecimals).toPlainString());
-                        tokenObject.put("bitcoinAmount",
-                                BigDecimal.valueOf(token.getBitcoinAmount(), 8).toPlainString());
-                        tokenObject.put("address", token.getBitcoinAddress());
-                        if (token.getBitcoinTxId() != null) {
-                            tokenObject.put("bitcoinTxId", token.getBitcoinTxIdString());
-                        }
-                        tokenArray.add(tokenObject);
-                    });
-                    response.put("transactions", tokenArray);
-                } catch (Exception exc) {
-                    Logger.logErrorMessage("GetNxtTransactions failed", exc);
-                    return failure("Unable to get Nxt transactions: " + exc.getMessage());
+                    firstIndex = getIndex(req, "firstIndex", 0);
+                    lastIndex = getIndex(req, "lastIndex", -1);
+                } catch (NumberFormatException exc) {
+                    return incorrect("firstIndex/lastIndex", exc.getMessage());
                 }
-                break;
+                int nxtHeight = height;
+                boolean nxtExchanged = includeExchanged;
+                int nxtFirst = firstIndex;
+                int nxtLast = lastIndex;
+                return new StreamingResponse("GetNxtTransactions", (consumer) ->
+                        TokenDb.getTokens(nxtHeight, nxtExchanged, nxtFirst, nxtLast,
+                                (token) -> consumer.accept(formatToken(token))));
             case "suspend":
                 TokenAddon.suspend("Suspended by the TokenExchange administrator");
                 response.put("suspended", TokenAddon.isSuspended());
@@ -267,19 +308,20 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                     publicKey = null;
                 }
                 try {
-                    accountList = TokenDb.getAccount(accountId);
-                    if (!accountList.isEmpty()) {
-                        account = accountList.get(accountList.size() - 1);
-                        if (TokenDb.transactionExists(account.getBitcoinAddress())) {
-                            account = null;
+                    account = BitcoinWallet.getPendingAccount(accountId);
+                    if (account == null) {
+                        accountList = TokenDb.getAccount(accountId);
+                        if (!accountList.isEmpty()) {
+                            account = accountList.get(accountList.size() - 1);
                         }
-                    } else {
+                    }
+                    if (account != null && TokenDb.transactionExists(account.getBitcoinAddress())) {
                         account = null;
                     }
                     if (account == null) {
                         DeterministicKey key = BitcoinWallet.getNewKey();
                         account = new BitcoinAccount(key, accountId, publicKey);
-                        TokenDb.storeAccount(account);
+                        BitcoinWallet.storeAccount(account);
                     }
                     formatAccount(account, response);
                 } catch (Exception exc) {
@@ -301,7 +343,10 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                         accountList = TokenDb.getAccount(accountId);
                         accountList.forEach((a) -> accountArray.add(formatAccount(a, new JSONObject())));
                     } else if (addressString != null) {
-                        account = TokenDb.getAccount(addressString);
+                        account = BitcoinWallet.getPendingAccount(addressString);
+                        if (account == null) {
+                            account = TokenDb.getAccount(addressString);
+                        }
                         if (account != null) {
                             accountArray.add(formatAccount(account, new JSONObject()));
                         }
@@ -321,6 +366,7 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                     return missing("address");
                 }
                 try {
+                    BitcoinWallet.flushAccounts();
                     boolean deleted = TokenDb.deleteAccountAddress(addressString);
                     if (deleted) {
                         BitcoinWallet.removeAddress(addressString);
@@ -332,7 +378,6 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                 }
                 break;
             case "getBitcoinTransactions":
-                JSONArray txArray = new JSONArray();
                 addressString = Convert.emptyToNull(req.getParameter("address"));
                 heightString = Convert.emptyToNull(req.getParameter("height"));
                 if (heightString == null) {
@@ -351,30 +396,19 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                     includeExchanged = Boolean.valueOf(includeExchangedString);
                 }
                 try {
-                    List<BitcoinTransaction> txList = TokenDb.getTransactions(height, addressString, includeExchanged);
-                    txList.forEach((tx) -> {
-                        JSONObject txJSON = new JSONObject();
-                        txJSON.put("bitcoinTxId", tx.getBitcoinTxIdString());
-                        txJSON.put("bitcoinBlockId", tx.getBitcoinBlockIdString());
-                        txJSON.put("bitcoinChainHeight", tx.getHeight());
-                        txJSON.put("timestamp", tx.getTimestamp());
-                        txJSON.put("address", tx.getBitcoinAddress());
-                        txJSON.put("bitcoinAmount", BigDecimal.valueOf(tx.getBitcoinAmount(), 8).toPlainString());
-                        txJSON.put("tokenAmount", BigDecimal.valueOf(tx.getTokenAmount(), TokenAddon.currencyDecimals).toPlainString());
-                        txJSON.put("account", Long.toUnsignedString(tx.getAccountId()));
-                        txJSON.put("accountRS", tx.getAccountIdRS());
-                        txJSON.put("exchanged", tx.isExchanged());
-                        if (tx.getNxtTxId() != 0) {
-                            txJSON.put("nxtTxId", Long.toUnsignedString(tx.getNxtTxId()));
-                        }
-                        txArray.add(txJSON);
-                    });
-                    response.put("transactions", txArray);
-                } catch (Exception exc) {
-                    Logger.logErrorMessage("GetBitcoinTransactions failed", exc);
-                    return failure("Unable to get Bitcoin transactions: " + exc.getMessage());
+                    firstIndex = getIndex(req, "firstIndex", 0);
+                    lastIndex = getIndex(req, "lastIndex", -1);
+                } catch (NumberFormatException exc) {
+                    return incorrect("firstIndex/lastIndex", exc.getMessage());
                 }
-                break;
+                int txHeight = height;
+                String txAddress = addressString;
+                boolean txExchanged = includeExchanged;
+                int txFirst = firstIndex;
+                int txLast = lastIndex;
+                return new StreamingResponse("GetBitcoinTransactions", (consumer) ->
+                        TokenDb.getTransactions(txHeight, txAddress, txExchanged, txFirst, txLast,
+                                (tx) -> consumer.accept(formatTransaction(tx))));
             case "sendBitcoins" :
                 BitcoinWallet.propagateContext();
                 addressString = Convert.emptyToNull(req.getParameter("address"));
@@ -392,7 +426,16 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
                             .divideToIntegralValue(BigDecimal.ONE)
                             .movePointLeft(8)
                             .stripTrailingZeros();
-                    txString = BitcoinWallet.sendCoins(toAddress, amount);
+                    BitcoinCoinSelector selector = TokenAddon.bitcoinCoinSelector;
+                    String coinSelection = Convert.emptyToNull(req.getParameter("coinSelection"));
+                    if (coinSelection != null) {
+                        try {
+                            selector = BitcoinCoinSelector.getSelector(coinSelection);
+                        } catch (IllegalArgumentException exc) {
+                            return incorrect("coinSelection", exc.getMessage());
+                        }
+                    }
+                    txString = BitcoinWallet.sendCoins(toAddress, amount, selector);
                     response.put("transaction", txString);
                 } catch (NumberFormatException exc) {
                     return incorrect("amount", exc.getMessage());
@@ -461,6 +504,71 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
         return response;
     }
 
+    /**
+     * Format a token transaction
+     *
+     * @param   token           Token transaction
+     * @return                  Response object
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject formatToken(TokenTransaction token) {
+        JSONObject tokenObject = new JSONObject();
+        tokenObject.put("nxtTxId", Long.toUnsignedString(token.getNxtTxId()));
+        tokenObject.put("sender", Long.toUnsignedString(token.getSenderId()));
+        tokenObject.put("senderRS", token.getSenderIdRS());
+        tokenObject.put("nxtChainHeight", token.getHeight());
+        tokenObject.put("timestamp", token.getTimestamp());
+        tokenObject.put("exchanged", token.isExchanged());
+        tokenObject.put("tokenAmount",
+                BigDecimal.valueOf(token.getTokenAmount(), TokenAddon.currencyDecimals).toPlainString());
+        tokenObject.put("bitcoinAmount",
+                BigDecimal.valueOf(token.getBitcoinAmount(), 8).toPlainString());
+        tokenObject.put("address", token.getBitcoinAddress());
+        if (token.getBitcoinTxId() != null) {
+            tokenObject.put("bitcoinTxId", token.getBitcoinTxIdString());
+        }
+        return tokenObject;
+    }
+
+    /**
+     * Format a Bitcoin transaction
+     *
+     * @param   tx              Bitcoin transaction
+     * @return                  Response object
+     */
+    @SuppressWarnings("unchecked")
+    private static JSONObject formatTransaction(BitcoinTransaction tx) {
+        JSONObject txJSON = new JSONObject();
+        txJSON.put("bitcoinTxId", tx.getBitcoinTxIdString());
+        txJSON.put("bitcoinBlockId", tx.getBitcoinBlockIdString());
+        txJSON.put("bitcoinChainHeight", tx.getHeight());
+        txJSON.put("timestamp", tx.getTimestamp());
+        txJSON.put("address", tx.getBitcoinAddress());
+        txJSON.put("bitcoinAmount", BigDecimal.valueOf(tx.getBitcoinAmount(), 8).toPlainString());
+        txJSON.put("tokenAmount", BigDecimal.valueOf(tx.getTokenAmount(), TokenAddon.currencyDecimals).toPlainString());
+        txJSON.put("account", Long.toUnsignedString(tx.getAccountId()));
+        txJSON.put("accountRS", tx.getAccountIdRS());
+        txJSON.put("exchanged", tx.isExchanged());
+        if (tx.getNxtTxId() != 0) {
+            txJSON.put("nxtTxId", Long.toUnsignedString(tx.getNxtTxId()));
+        }
+        return txJSON;
+    }
+
+    /**
+     * Get a list index parameter
+     *
+     * @param   req                     HTTP request
+     * @param   name                    Parameter name
+     * @param   defaultValue            Value if the parameter is not specified
+     * @return                          Parameter value
+     * @throws  NumberFormatException   Parameter is not a valid integer
+     */
+    private static int getIndex(HttpServletRequest req, String name, int defaultValue) {
+        String value = Convert.emptyToNull(req.getParameter(name));
+        return (value != null ? Integer.valueOf(value) : defaultValue);
+    }
+
     /**
      * Create response for a failure
      *
@@ -561,4 +669,89 @@ public class TokenAPI extends APIServlet.APIRequestHandler {
     protected boolean requireFullClient() {
         return true;
     }
+
+    /**
+     * Database row source for a streaming response
+     */
+    @FunctionalInterface
+    private interface RowSource {
+
+        /**
+         * Read the rows and pass each formatted row to the consumer
+         *
+         * @param   consumer        Row consumer
+         * @throws  SQLException    Database error occurred
+         */
+        void read(Consumer<JSONObject> consumer) throws SQLException;
+    }
+
+    /**
+     * Streaming transaction list response
+     *
+     * The rows are read from the database and written to the response as the
+     * response is sent, so the complete list is never held in memory.  A database
+     * error that occurs after the response has started is reported by adding
+     * 'errorCode' and 'errorDescription' after the partial transaction list.
+     * 'requestProcessingTime' is added at the end of the response since NRS adds
+     * it only to responses that are built in memory.
+     */
+    private static class StreamingResponse implements JSONStreamAware {
+
+        /** Function name */
+        private final String function;
+
+        /** Row source */
+        private final RowSource source;
+
+        /** Request start time (milliseconds) */
+        private final long startTime = System.currentTimeMillis();
+
+        /**
+         * Create the streaming response
+         *
+         * @param   function        Function name
+         * @param   source          Row source
+         */
+        StreamingResponse(String function, RowSource source) {
+            this.function = function;
+            this.source = source;
+        }
+
+        /**
+         * Write the response
+         *
+         * @param   out             Output writer
+         * @throws  IOException     I/O error occurred
+         */
+        @Override
+        public void writeJSONString(Writer out) throws IOException {
+            out.write("{\"transactions\":[");
+            boolean[] first = new boolean[] {true};
+            String error = null;
+            try {
+                source.read((row) -> {
+                    try {
+                        if (!first[0]) {
+                            out.write(',');
+                        }
+                        first[0] = false;
+                        row.writeJSONString(out);
+                    } catch (IOException exc) {
+                        throw new UncheckedIOException(exc);
+                    }
+                });
+            } catch (UncheckedIOException exc) {
+                throw exc.getCause();
+            } catch (Exception exc) {
+                Logger.logErrorMessage(function + " failed", exc);
+                error = "Unable to get transactions: " + exc.getMessage();
+            }
+            out.write(']');
+            if (error != null) {
+                out.write(",\"errorCode\":6,\"errorDescription\":\"" + JSONObject.escape(error) + "\"");
+            }
+            out.write(",\"requestProcessingTime\":" + (System.currentTimeMillis() - startTime));
+            out.write('}');
+        }
+    }
 }
@@ -108,6 +108,42 @@ public class TokenAddon implements AddOn, Listener<Block> {
     /** Bitcoin server host and port */
     static String bitcoinServer;
 
+    /** Bitcoin block cache size */
+    static int bitcoinBlockCacheSize;
+
+    /** Bitcoin block batch size */
+    static int bitcoinBlockBatchSize;
+
+    /** Bitcoin block batch interval (milliseconds) */
+    static int bitcoinBlockBatchInterval;
+
+    /** Use Bloom-filtered blocks */
+    static boolean bitcoinFilteredBlocks;
+
+    /** Unspent output verification interval (seconds) */
+    static int bitcoinUnspentVerifyInterval;
+
+    /** Default coin selector */
+    static BitcoinCoinSelector bitcoinCoinSelector;
+
+    /** Maximum number of token redemptions sent in a single Bitcoin transaction */
+    static int bitcoinPayoutBatchSize;
+
+    /** Percentage of signed transaction inputs that are verified */
+    static int bitcoinVerifyPercent;
+
+    /** Number of derived keys kept in memory */
+    static int bitcoinKeyCacheSize;
+
+    /** Number of pre-derived receive addresses */
+    static int bitcoinAddressPoolSize;
+
+    /** Minimum interval between Bitcoin transaction processing passes (milliseconds) */
+    static int bitcoinProcessingInterval;
+
+    /** Number of confirmations before completed transactions are archived (0 = never archive) */
+    static int archiveConfirmations;
+
     /**
      * Initialize the TokenExchange add-on
      */
@@ -158,6 +194,49 @@ public class TokenAddon implements AddOn, Listener<Block> {
                     .stripTrailingZeros();
             bitcoinTxFee = getDecimalProperty(properties, "bitcoinTxFee", true);
             bitcoinServer = getStringProperty(properties, "bitcoinServer", false);
+            bitcoinBlockCacheSize = getIntegerProperty(properties, "bitcoinBlockCacheSize", false);
+            if (bitcoinBlockCacheSize <= 0) {
+                bitcoinBlockCacheSize = 4032;
+            }
+            bitcoinBlockBatchSize = getIntegerProperty(properties, "bitcoinBlockBatchSize", false);
+            if (bitcoinBlockBatchSize <= 0) {
+                bitcoinBlockBatchSize = 2000;
+            }
+            bitcoinBlockBatchInterval = getIntegerProperty(properties, "bitcoinBlockBatchInterval", false);
+            if (bitcoinBlockBatchInterval <= 0) {
+                bitcoinBlockBatchInterval = 5000;
+            }
+            bitcoinFilteredBlocks = getBooleanProperty(properties, "bitcoinFilteredBlocks", false);
+            bitcoinUnspentVerifyInterval = getIntegerProperty(properties, "bitcoinUnspentVerifyInterval", false);
+            if (bitcoinUnspentVerifyInterval <= 0) {
+                bitcoinUnspentVerifyInterval = 3600;
+            }
+            String coinSelection = getStringProperty(properties, "bitcoinCoinSelection", false);
+            bitcoinCoinSelector = BitcoinCoinSelector.getSelector(coinSelection != null ? coinSelection : "SMALLEST_FIRST");
+            bitcoinPayoutBatchSize = getIntegerProperty(properties, "bitcoinPayoutBatchSize", false);
+            if (bitcoinPayoutBatchSize <= 0) {
+                bitcoinPayoutBatchSize = 1;
+            } else if (bitcoinPayoutBatchSize > 1000) {
+                bitcoinPayoutBatchSize = 1000;
+            }
+            if (getStringProperty(properties, "bitcoinVerifyPercent", false) != null) {
+                bitcoinVerifyPercent = Math.min(Math.max(getIntegerProperty(properties, "bitcoinVerifyPercent", false), 0), 100);
+            } else {
+                bitcoinVerifyPercent = 100;
+            }
+            bitcoinKeyCacheSize = getIntegerProperty(properties, "bitcoinKeyCacheSize", false);
+            if (bitcoinKeyCacheSize <= 0) {
+                bitcoinKeyCacheSize = 10000;
+            }
+            bitcoinAddressPoolSize = getIntegerProperty(properties, "bitcoinAddressPoolSize", false);
+            if (bitcoinAddressPoolSize <= 0) {
+                bitcoinAddressPoolSize = 100;
+            }
+            bitcoinProcessingInterval = getIntegerProperty(properties, "bitcoinProcessingInterval", false);
+            if (bitcoinProcessingInterval <= 0) {
+                bitcoinProcessingInterval = 1000;
+            }
+            archiveConfirmations = Math.max(getIntegerProperty(properties, "archiveConfirmations", false), 0);
             secretPhrase = getStringProperty(properties, "secretPhrase", true);
             publicKey = Crypto.getPublicKey(secretPhrase);
             accountId = Account.getId(publicKey);
@@ -261,6 +340,28 @@ public class TokenAddon implements AddOn, Listener<Block> {
         return result;
     }
 
+    /**
+     * Process a boolean property
+     *
+     * @param   properties      Properties
+     * @param   name            Property name
+     * @param   required        TRUE if this is a required property
+     * @return                  Property value or FALSE
+     */
+    static boolean getBooleanProperty(Properties properties, String name, boolean required) {
+        String value = getStringProperty(properties, name, required);
+        if (value == null) {
+            return false;
+        }
+        if (value.equalsIgnoreCase("true")) {
+            return true;
+        }
+        if (value.equalsIgnoreCase("false")) {
+            return false;
+        }
+        throw new IllegalArgumentException("TokenExchange '" + name + "' property is not a valid boolean");
+    }
+
     /**
      * Wait until the Nxt account and currency have been created
      *
@@ -316,6 +417,10 @@ public class TokenAddon implements AddOn, Listener<Block> {
             //
             TokenListener.init();
             //
+            // Start the archiver
+            //
+            TokenArchiver.init();
+            //
             // Add-on initialization completed
             //
             initialized = true;
@@ -332,6 +437,7 @@ public class TokenAddon implements AddOn, Listener<Block> {
     public void shutdown() {
         delayInitialization = false;
         if (initialized) {
+            TokenArchiver.shutdown();
             TokenListener.shutdown();
             BitcoinProcessor.shutdown();
             BitcoinWallet.shutdown();
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import nxt.Nxt;
+import nxt.util.Logger;
+
+import java.sql.SQLException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Token exchange archiver
+ *
+ * Exchanged token transactions, processed Bitcoin transactions and spent outputs
+ * that have the required number of confirmations are moved to the history tables
+ * so that the tables polled for each new block contain just the pending rows and
+ * the rows that can still be affected by a block chain reorganization.  The rows
+ * are moved by a background thread in small batches with each batch in a
+ * separate database transaction.
+ */
+class TokenArchiver {
+
+    /** Interval between archive passes (seconds) */
+    private static final long ARCHIVE_INTERVAL = 60;
+
+    /** Maximum number of batches for a table in a single archive pass */
+    private static final int MAX_BATCHES = 50;
+
+    /** Archive executor */
+    private static ScheduledExecutorService executor;
+
+    /** Number of archived token transactions */
+    private static final AtomicLong archivedTokens = new AtomicLong();
+
+    /** Number of archived Bitcoin transactions */
+    private static final AtomicLong archivedTransactions = new AtomicLong();
+
+    /** Number of archived spent outputs */
+    private static final AtomicLong archivedOutputs = new AtomicLong();
+
+    /**
+     * Start the archiver
+     *
+     * Nothing is archived if the archive confirmation depth is 0.
+     */
+    static void init() {
+        if (TokenAddon.archiveConfirmations <= 0) {
+            return;
+        }
+        executor = Executors.newSingleThreadScheduledExecutor((runnable) -> {
+            Thread thread = new Thread(runnable, "TokenExchange Archiver");
+            thread.setDaemon(true);
+            return thread;
+        });
+        executor.scheduleWithFixedDelay(TokenArchiver::archive, ARCHIVE_INTERVAL, ARCHIVE_INTERVAL, TimeUnit.SECONDS);
+        Logger.logInfoMessage("TokenExchange archiver started with a depth of "
+                + TokenAddon.archiveConfirmations + " confirmations");
+    }
+
+    /**
+     * Stop the archiver
+     */
+    static void shutdown() {
+        if (executor != null) {
+            executor.shutdown();
+            try {
+                if (!executor.awaitTermination(5, TimeUnit.SECONDS)) {
+                    executor.shutdownNow();
+                }
+            } catch (InterruptedException exc) {
+                executor.shutdownNow();
+            }
+            executor = null;
+        }
+    }
+
+    /**
+     * Get the number of archived token transactions
+     *
+     * @return                  Number of token transactions
+     */
+    static long getArchivedTokens() {
+        return archivedTokens.get();
+    }
+
+    /**
+     * Get the number of archived Bitcoin transactions
+     *
+     * @return                  Number of Bitcoin transactions
+     */
+    static long getArchivedTransactions() {
+        return archivedTransactions.get();
+    }
+
+    /**
+     * Get the number of archived spent outputs
+     *
+     * @return                  Number of spent outputs
+     */
+    static long getArchivedOutputs() {
+        return archivedOutputs.get();
+    }
+
+    /**
+     * Archive eligible rows
+     */
+    private static void archive() {
+        if (!BitcoinWallet.isWalletInitialized()) {
+            return;
+        }
+        try {
+            BitcoinWallet.propagateContext();
+            int nxtHeight = Nxt.getBlockchain().getHeight() - TokenAddon.archiveConfirmations;
+            int bitcoinHeight = BitcoinWallet.getChainHeight() - TokenAddon.archiveConfirmations;
+            if (nxtHeight > 0) {
+                archivedTokens.addAndGet(archive(TokenDb::archiveTokens, nxtHeight));
+            }
+            if (bitcoinHeight > 0) {
+                archivedTransactions.addAndGet(archive(TokenDb::archiveTransactions, bitcoinHeight));
+                archivedOutputs.addAndGet(archive(TokenDb::archiveUnspentOutputs, bitcoinHeight));
+            }
+        } catch (Exception exc) {
+            Logger.logErrorMessage("Unable to archive TokenExchange transactions", exc);
+        }
+    }
+
+    /**
+     * Archive a table
+     *
+     * @param   archiver        Table archive function
+     * @param   height          Highest block height to archive
+     * @return                  Number of rows archived
+     * @throws  SQLException    Error occurred
+     */
+    private static long archive(Archiver archiver, int height) throws SQLException {
+        long count = 0;
+        for (int i=0; i<MAX_BATCHES && !Thread.currentThread().isInterrupted(); i++) {
+            int batchCount;
+            try {
+                TokenDb.beginTransaction();
+                batchCount = archiver.archive(height);
+                TokenDb.commitTransaction();
+            } catch (SQLException exc) {
+                TokenDb.rollbackTransaction();
+                throw exc;
+            } finally {
+                TokenDb.endTransaction();
+            }
+            if (batchCount == 0) {
+                break;
+            }
+            count += batchCount;
+        }
+        return count;
+    }
+
+    /**
+     * Table archive function
+     */
+    @FunctionalInterface
+    private interface Archiver {
+
+        /**
+         * Archive a batch of rows
+         *
+         * @param   height          Highest block height to archive
+         * @return                  Number of rows archived
+         * @throws  SQLException    Error occurred
+         */
+        int archive(int height) throws SQLException;
+    }
+}
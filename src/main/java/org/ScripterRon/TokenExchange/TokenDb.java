@@ -18,8 +18,10 @@ package org.ScripterRon.TokenExchange;
 import nxt.Db;
 import nxt.db.FilteredConnection;
 import nxt.db.FilteredFactory;
+import nxt.db.FilteredPreparedStatement;
 import nxt.util.Logger;
 
+import org.bitcoinj.core.Base58;
 import org.bitcoinj.core.Context;
 import org.bitcoinj.core.NetworkParameters;
 import org.bitcoinj.core.ProtocolException;
@@ -42,8 +44,26 @@ import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Types;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Optional;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+import java.util.function.ObjIntConsumer;
 
 /**
  * TokenExchange database support
@@ -85,18 +105,82 @@ public class TokenDb {
     /** Initial seed value */
     private static String initialSeed = "x'0000'";
 
+    /** Block insert statement (MERGE for H2, INSERT ON CONFLICT for PostgreSQL) */
+    static String blockInsert;
+
+    /** Unconfirmed issuances query (H2 can not use an index for IS NOT NULL) */
+    static String unconfirmedIssuancesQuery;
+
     /** Filtered factory */
     private static final FilteredFactory dbFactory = new DbFactory();
 
     /** All database connections */
-    private static final List<DbConnection> allConnections = new ArrayList<>();
+    private static final Set<DbConnection> allConnections = ConcurrentHashMap.newKeySet();
+
+    /** Idle database connections (most recently used first) */
+    private static final ConcurrentLinkedDeque<DbConnection> idleConnections = new ConcurrentLinkedDeque<>();
+
+    /** Connection pool permits (one permit for each connection that can be borrowed) */
+    private static Semaphore poolPermits;
+
+    /** Maximum number of pooled connections */
+    private static int poolMaxSize;
+
+    /** Minimum number of pooled connections */
+    private static int poolMinSize;
+
+    /** Idle connection timeout (milliseconds) */
+    private static long poolIdleTimeout;
+
+    /** Connection borrow timeout (milliseconds) */
+    private static long poolBorrowTimeout;
+
+    /** A connection is validated when it is borrowed after being idle for this long (milliseconds) */
+    private static final long POOL_VALIDATION_INTERVAL = 5000;
+
+    /** Number of connections in use */
+    private static final AtomicInteger activeConnections = new AtomicInteger();
+
+    /** Number of connection borrows */
+    private static final AtomicLong borrowCount = new AtomicLong();
+
+    /** Total connection borrow time (nanoseconds) */
+    private static final AtomicLong borrowTime = new AtomicLong();
+
+    /** Maximum connection borrow time (nanoseconds) */
+    private static final AtomicLong maxBorrowTime = new AtomicLong();
+
+    /** Maximum number of cached prepared statements for each connection */
+    private static int statementCacheSize;
+
+    /** Bitcoin account cache */
+    private static BitcoinAccountCache accountCache;
+
+    /** Cache invalidations to repeat when the current database transaction ends */
+    private static final ThreadLocal<List<Runnable>> transactionInvalidations =
+            ThreadLocal.withInitial(ArrayList::new);
 
-    /** Cached database connections */
-    private static final List<DbConnection> cachedConnections = new ArrayList<>();
+    /** Database write-behind queue */
+    private static DbWriteQueue writeQueue;
+
+    /** Number of prepared statement cache hits */
+    private static final AtomicLong statementCacheHits = new AtomicLong();
+
+    /** Number of prepared statement cache misses */
+    private static final AtomicLong statementCacheMisses = new AtomicLong();
 
     /** Local connection cache */
     private static final ThreadLocal<DbConnection> localConnection = new ThreadLocal<>();
 
+    /** Connection borrowed by the current thread outside a database transaction */
+    private static final ThreadLocal<DbConnection> threadConnection = new ThreadLocal<>();
+
+    /** Maximum number of parameters in an IN list */
+    private static final int MAX_IN_LIST = 256;
+
+    /** Number of rows read at a time for a paged query */
+    private static final int PAGE_SIZE = 100;
+
     /** Database schema name */
     private static final String DB_SCHEMA = "TOKEN_EXCHANGE_4";
 
@@ -119,10 +203,25 @@ public class TokenDb {
     private static final String BITCOIN_TABLE = DB_SCHEMA + ".bitcoin";
 
     /** Bitcoin block store table name */
-    private static final String BLOCK_TABLE = DB_SCHEMA + ".block";
+    static final String BLOCK_TABLE = DB_SCHEMA + ".block";
+
+    /** Archived Nxt transaction table name */
+    private static final String NXT_HISTORY_TABLE = DB_SCHEMA + ".nxt_history";
+
+    /** Archived Bitcoin transaction table name */
+    private static final String BITCOIN_HISTORY_TABLE = DB_SCHEMA + ".bitcoin_history";
+
+    /** Archived spent output table name */
+    private static final String UNSPENT_HISTORY_TABLE = DB_SCHEMA + ".unspent_history";
+
+    /** Reorganization staging table name */
+    private static final String REORG_TABLE = DB_SCHEMA + ".reorg";
+
+    /** Number of block heights archived in a single batch */
+    private static final int ARCHIVE_HEIGHTS = 100;
 
     /** Current database version */
-    private static final int DB_VERSION = 2;
+    private static final int DB_VERSION = 9;
 
     /** Schema definition */
     private static final String schemaDefinition = "CREATE SCHEMA IF NOT EXISTS " + DB_SCHEMA;
@@ -141,6 +240,7 @@ public class TokenDb {
     /** Account table definitions */
     private static final String accountTableDefinition = "CREATE TABLE IF NOT EXISTS " + ACCOUNT_TABLE + " ("
             + "bitcoin_address VARCHAR NOT NULL,"   // Bitcoin address
+            + "bitcoin_hash BINARY,"                // Bitcoin address hash
             + "child_number INT NOT NULL,"          // External key child number
             + "account_id BIGINT NOT NULL,"         // Nxt account identifier
             + "public_key BINARY,"                  // Nxt account public key
@@ -169,6 +269,8 @@ public class TokenDb {
                     + "unspent_idx1 ON " + UNSPENT_TABLE + "(spent,height)";
     private static final String unspentIndexDefinition2 = "CREATE INDEX IF NOT EXISTS "
                     + "unspent_idx2 ON " + UNSPENT_TABLE + "(txid)";
+    private static final String unspentIndexDefinition3 = "CREATE INDEX IF NOT EXISTS "
+                    + "unspent_idx3 ON " + UNSPENT_TABLE + "(blkid)";
 
     /** Nxt transaction table definitions */
     private static final String nxtTableDefinition = "CREATE TABLE IF NOT EXISTS " + NXT_TABLE + " ("
@@ -183,8 +285,12 @@ public class TokenDb {
             + "bitcoin_txid BINARY)";               // Bitcoin transaction identifier
     private static final String nxtIndexDefinition1 = "CREATE UNIQUE INDEX IF NOT EXISTS "
                     + "nxt_idx1 ON " + NXT_TABLE + "(nxt_txid)";
-    private static final String nxtIndexDefinition2 = "CREATE INDEX IF NOT EXISTS "
-                    + "nxt_idx2 ON " + NXT_TABLE + "(exchanged)";
+    private static final String nxtIndexDefinition3 = "CREATE INDEX IF NOT EXISTS "
+                    + "nxt_idx3 ON " + NXT_TABLE + "(exchanged,height)";
+    private static final String nxtPartialIndexDefinition3 = "CREATE INDEX IF NOT EXISTS "
+                    + "nxt_idx3 ON " + NXT_TABLE + "(height) WHERE exchanged=false";
+    private static final String nxtIndexDefinition5 = "CREATE INDEX IF NOT EXISTS "
+                    + "nxt_idx5 ON " + NXT_TABLE + "(height,timestamp,nxt_txid)";
 
     /** Bitcoin transaction table definitions */
     private static final String bitcoinTableDefinition = "CREATE TABLE IF NOT EXISTS " + BITCOIN_TABLE + " ("
@@ -197,11 +303,22 @@ public class TokenDb {
             + "bitcoin_amount BIGINT NOT NULL,"     // Bitcoin amount
             + "token_amount BIGINT NOT NULL,"       // Number of units issued
             + "exchanged BOOLEAN NOT NULL,"         // TRUE if currency has been issued
-            + "nxt_txid BIGINT NOT NULL)";          // Nxt transaction identifier
-    private static final String bitcoinIndexDefinition1 = "CREATE INDEX IF NOT EXISTS "
-                    + "bitcoin_idx1 ON " + BITCOIN_TABLE + "(bitcoin_txid)";
-    private static final String bitcoinIndexDefinition2 = "CREATE INDEX IF NOT EXISTS "
-                    + "bitcoin_idx2 ON " + BITCOIN_TABLE + "(exchanged)";
+            + "nxt_txid BIGINT NOT NULL,"           // Nxt transaction identifier
+            + "nxt_tx BINARY)";                     // Signed Nxt transaction (NULL if confirmed)
+    private static final String bitcoinIndexDefinition3 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx3 ON " + BITCOIN_TABLE + "(bitcoin_txid,bitcoin_blkid)";
+    private static final String bitcoinIndexDefinition4 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx4 ON " + BITCOIN_TABLE + "(bitcoin_address,height)";
+    private static final String bitcoinIndexDefinition5 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx5 ON " + BITCOIN_TABLE + "(exchanged,height)";
+    private static final String bitcoinPartialIndexDefinition5 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx5 ON " + BITCOIN_TABLE + "(height) WHERE exchanged=false";
+    private static final String bitcoinIndexDefinition6 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx6 ON " + BITCOIN_TABLE + "(bitcoin_blkid)";
+    private static final String bitcoinIndexDefinition9 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx9 ON " + BITCOIN_TABLE + "(height,bitcoin_txid,bitcoin_address)";
+    private static final String bitcoinPartialIndexDefinition8 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx8 ON " + BITCOIN_TABLE + "(bitcoin_txid) WHERE nxt_tx IS NOT NULL";
 
     /** Bitcoin block store table definitions */
     private static final String blockTableDefinition = "CREATE TABLE IF NOT EXISTS " + BLOCK_TABLE + " ("
@@ -210,6 +327,103 @@ public class TokenDb {
     private static final String blockIndexDefinition1 = "CREATE UNIQUE INDEX IF NOT EXISTS "
                     + "block_idx1 ON " + BLOCK_TABLE + "(blkid)";
 
+    /** Reorganization staging table definitions */
+    private static final String reorgTableDefinition = "CREATE TABLE IF NOT EXISTS " + REORG_TABLE + " ("
+            + "blkid BINARY NOT NULL,"              // Block identifier
+            + "height INT NOT NULL)";               // Block chain height in the new fork
+    private static final String reorgIndexDefinition1 = "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + "reorg_idx1 ON " + REORG_TABLE + "(blkid)";
+
+    /** Bitcoin transaction index for unconfirmed issuances (H2 does not support partial indexes) */
+    private static final String bitcoinIndexDefinition8 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_idx8 ON " + BITCOIN_TABLE + "(nxt_tx)";
+
+    /** History table definitions */
+    private static final String unspentHistoryIndexDefinition1 = "CREATE INDEX IF NOT EXISTS "
+                    + "unspent_history_idx1 ON " + UNSPENT_HISTORY_TABLE + "(txid)";
+    private static final String nxtHistoryIndexDefinition1 = "CREATE UNIQUE INDEX IF NOT EXISTS "
+                    + "nxt_history_idx1 ON " + NXT_HISTORY_TABLE + "(nxt_txid)";
+    private static final String nxtHistoryIndexDefinition3 = "CREATE INDEX IF NOT EXISTS "
+                    + "nxt_history_idx3 ON " + NXT_HISTORY_TABLE + "(height,timestamp,nxt_txid)";
+    private static final String bitcoinHistoryIndexDefinition1 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_history_idx1 ON " + BITCOIN_HISTORY_TABLE + "(bitcoin_txid,bitcoin_blkid)";
+    private static final String bitcoinHistoryIndexDefinition2 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_history_idx2 ON " + BITCOIN_HISTORY_TABLE + "(bitcoin_address,height)";
+    private static final String bitcoinHistoryIndexDefinition4 = "CREATE INDEX IF NOT EXISTS "
+                    + "bitcoin_history_idx4 ON " + BITCOIN_HISTORY_TABLE + "(height,bitcoin_txid,bitcoin_address)";
+
+    /*
+     * Queries and updates
+     *
+     * The SQL text is package-private so that TokenDbQueryPlanTest explains the
+     * statements that are actually run.
+     */
+    static final String unspentOutputQuery = "SELECT * FROM " + UNSPENT_TABLE
+            + " WHERE txid=? AND index=? AND blkid=?";
+    static final String activeUnspentOutputsQuery = "SELECT * FROM " + UNSPENT_TABLE
+            + " WHERE spent=false AND height>0 ORDER BY amount ASC";
+    static final String allUnspentOutputsQuery = "SELECT * FROM " + UNSPENT_TABLE
+            + " WHERE spent=false";
+    static final String spendOutputUpdate = "UPDATE " + UNSPENT_TABLE
+            + " SET spent=true WHERE txid=? AND index=?";
+    static final String broadcastTransactionQuery = "SELECT payload FROM " + BROADCAST_TABLE
+            + " WHERE txid=?";
+    static final String broadcastTransactionDelete = "DELETE FROM " + BROADCAST_TABLE
+            + " WHERE txid=?";
+    static final String tokenExistsQuery = "SELECT 1 FROM " + NXT_TABLE
+            + " WHERE nxt_txid=? UNION ALL SELECT 1 FROM " + NXT_HISTORY_TABLE
+            + " WHERE nxt_txid=?";
+    static final String tokenQuery = "SELECT * FROM " + NXT_TABLE
+            + " WHERE nxt_txid=?";
+    static final String pendingTokensQuery = "SELECT * FROM " + NXT_TABLE
+            + " WHERE exchanged=false AND height<=? ORDER BY height ASC";
+    static final String tokenUpdate = "UPDATE " + NXT_TABLE
+            + " SET exchanged=true,bitcoin_txid=? WHERE nxt_txid=?";
+    static final String tokenDelete = "DELETE FROM " + NXT_TABLE
+            + " WHERE exchanged=false AND height>?";
+    static final String accountHashUpdate = "UPDATE " + ACCOUNT_TABLE
+            + " SET bitcoin_hash=? WHERE bitcoin_address=?";
+    static final String accountIdQuery = "SELECT * FROM " + ACCOUNT_TABLE
+            + " WHERE account_id=? ORDER BY timestamp ASC";
+    static final String accountQuery = "SELECT * FROM " + ACCOUNT_TABLE
+            + " WHERE bitcoin_address=?";
+    static final String accountDelete = "DELETE FROM " + ACCOUNT_TABLE
+            + " WHERE bitcoin_address=?";
+    static final String transactionUpdate = "UPDATE " + BITCOIN_TABLE
+            + " SET exchanged=?,nxt_txid=?,nxt_tx=?"
+            + " WHERE bitcoin_txid=? AND bitcoin_address=?";
+    static final String addressTransactionExistsQuery = "SELECT 1 FROM " + BITCOIN_TABLE
+            + " WHERE bitcoin_address=? UNION ALL SELECT 1 FROM " + BITCOIN_HISTORY_TABLE
+            + " WHERE bitcoin_address=?";
+    static final String transactionExistsQuery = "SELECT 1 FROM " + BITCOIN_TABLE
+            + " WHERE bitcoin_txid=? AND bitcoin_blkid=?";
+    static final String transactionQuery = "SELECT * FROM " + BITCOIN_TABLE
+            + " WHERE bitcoin_txid=? AND bitcoin_blkid=?";
+    static final String pendingTransactionsQuery = "SELECT * FROM " + BITCOIN_TABLE
+            + " WHERE exchanged=false AND height<=? AND height>0 ORDER BY height ASC";
+    static final String unspentReorgUpdate = "UPDATE " + UNSPENT_TABLE
+            + " SET height=0 WHERE spent=false AND height>? AND parent_number=0";
+    static final String unspentForkUpdate = "UPDATE " + UNSPENT_TABLE + " u"
+            + " SET height=(SELECT r.height FROM " + REORG_TABLE + " r WHERE r.blkid=u.blkid)"
+            + " WHERE spent=false AND blkid IN (SELECT blkid FROM " + REORG_TABLE + ")";
+    static final String transactionReorgUpdate = "UPDATE " + BITCOIN_TABLE
+            + " SET height=0 WHERE exchanged=false AND height>?";
+    static final String transactionForkUpdate = "UPDATE " + BITCOIN_TABLE + " b"
+            + " SET height=(SELECT r.height FROM " + REORG_TABLE + " r WHERE r.blkid=b.bitcoin_blkid)"
+            + " WHERE exchanged=false AND bitcoin_blkid IN (SELECT blkid FROM " + REORG_TABLE + ")";
+    static final String blockQuery = "SELECT bytes FROM " + BLOCK_TABLE
+            + " WHERE blkid=?";
+
+    /** Archive statements */
+    static final ArchiveStatements tokenArchive = new ArchiveStatements(NXT_TABLE, NXT_HISTORY_TABLE,
+            "exchanged=true", "h.nxt_txid=t.nxt_txid");
+    static final ArchiveStatements transactionArchive = new ArchiveStatements(BITCOIN_TABLE, BITCOIN_HISTORY_TABLE,
+            "exchanged=true AND nxt_tx IS NULL",
+            "h.bitcoin_txid=t.bitcoin_txid AND h.bitcoin_blkid=t.bitcoin_blkid "
+                    + "AND h.bitcoin_address=t.bitcoin_address");
+    static final ArchiveStatements unspentArchive = new ArchiveStatements(UNSPENT_TABLE, UNSPENT_HISTORY_TABLE,
+            "spent=true", "h.txid=t.txid AND h.index=t.index AND h.blkid=t.blkid");
+
     /**
      * Initialize the database support
      *
@@ -232,6 +446,13 @@ public class TokenDb {
         } else {
             throw new IllegalArgumentException("Database type '" + type + "' is not valid");
         }
+        if (dbType == DbType.POSTGRESQL) {
+            blockInsert = "INSERT INTO " + BLOCK_TABLE + " (blkid,bytes) VALUES(?,?) ON CONFLICT (blkid) DO NOTHING";
+            unconfirmedIssuancesQuery = "SELECT * FROM " + BITCOIN_TABLE + " WHERE nxt_tx IS NOT NULL";
+        } else {
+            blockInsert = "MERGE INTO " + BLOCK_TABLE + " (blkid,bytes) KEY(blkid) VALUES(?,?)";
+            unconfirmedIssuancesQuery = "SELECT * FROM " + BITCOIN_TABLE + " WHERE nxt_tx>=X''";
+        }
         dbURL = TokenAddon.getStringProperty(properties, "dbURL", false);
         dbUser = TokenAddon.getStringProperty(properties, "dbUser", false);
         dbPassword = TokenAddon.getStringProperty(properties, "dbPassword", false);
@@ -244,6 +465,41 @@ public class TokenDb {
         if (dbPassword == null) {
             dbPassword = "";
         }
+        poolMaxSize = TokenAddon.getIntegerProperty(properties, "dbPoolMaxSize", false);
+        if (poolMaxSize <= 0) {
+            poolMaxSize = 20;
+        }
+        poolMinSize = Math.min(TokenAddon.getIntegerProperty(properties, "dbPoolMinSize", false), poolMaxSize);
+        if (poolMinSize <= 0) {
+            poolMinSize = 1;
+        }
+        poolIdleTimeout = TokenAddon.getIntegerProperty(properties, "dbPoolIdleTimeout", false) * 1000L;
+        if (poolIdleTimeout <= 0) {
+            poolIdleTimeout = 300 * 1000L;
+        }
+        poolBorrowTimeout = TokenAddon.getIntegerProperty(properties, "dbPoolBorrowTimeout", false) * 1000L;
+        if (poolBorrowTimeout <= 0) {
+            poolBorrowTimeout = 30 * 1000L;
+        }
+        statementCacheSize = TokenAddon.getIntegerProperty(properties, "dbStatementCacheSize", false);
+        if (statementCacheSize <= 0) {
+            statementCacheSize = 100;
+        }
+        int accountCacheSize = TokenAddon.getIntegerProperty(properties, "dbAccountCacheSize", false);
+        if (accountCacheSize <= 0) {
+            accountCacheSize = 10000;
+        }
+        accountCache = new BitcoinAccountCache(accountCacheSize);
+        int writeQueueSize = TokenAddon.getIntegerProperty(properties, "dbWriteQueueSize", false);
+        if (writeQueueSize <= 0) {
+            writeQueueSize = 1000;
+        }
+        poolPermits = new Semaphore(poolMaxSize, true);
+        if (dbType != DbType.NRS) {
+            for (int i=0; i<poolMinSize; i++) {
+                idleConnections.offerLast(createConnection());
+            }
+        }
         //
         // Open the database
         //
@@ -283,10 +539,7 @@ public class TokenDb {
                     stmt.execute(accountIndexDefinition2);
                     stmt.execute(nxtTableDefinition.replace("BINARY", binaryType));
                     stmt.execute(nxtIndexDefinition1);
-                    stmt.execute(nxtIndexDefinition2);
                     stmt.execute(bitcoinTableDefinition.replace("BINARY", binaryType));
-                    stmt.execute(bitcoinIndexDefinition1);
-                    stmt.execute(bitcoinIndexDefinition2);
                 case 1:
                     if (version == 1) {
                         stmt.execute("ALTER TABLE " + CONTROL_TABLE
@@ -294,6 +547,64 @@ public class TokenDb {
                     }
                     stmt.execute(blockTableDefinition.replace("BINARY", binaryType));
                     stmt.execute(blockIndexDefinition1);
+                case 2:
+                    if (version > 0) {
+                        stmt.execute("ALTER TABLE " + ACCOUNT_TABLE
+                                + " ADD COLUMN bitcoin_hash BINARY".replace("BINARY", binaryType));
+                        storeAccountHashes(conn);
+                    }
+                case 3:
+                    if (version > 0) {
+                        stmt.execute("ALTER TABLE " + BITCOIN_TABLE
+                                + " ADD COLUMN nxt_tx BINARY".replace("BINARY", binaryType));
+                    }
+                case 4:
+                    if (version > 0) {
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".nxt_idx2");
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".bitcoin_idx1");
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".bitcoin_idx2");
+                    }
+                    stmt.execute(unspentIndexDefinition3);
+                    stmt.execute(bitcoinIndexDefinition3);
+                    stmt.execute(bitcoinIndexDefinition4);
+                    stmt.execute(bitcoinIndexDefinition6);
+                    if (dbType == DbType.POSTGRESQL) {
+                        stmt.execute(nxtPartialIndexDefinition3);
+                        stmt.execute(bitcoinPartialIndexDefinition5);
+                        stmt.execute(bitcoinPartialIndexDefinition8);
+                    } else {
+                        stmt.execute(nxtIndexDefinition3);
+                        stmt.execute(bitcoinIndexDefinition5);
+                    }
+                case 5:
+                    stmt.execute(unspentTableDefinition.replace(UNSPENT_TABLE, UNSPENT_HISTORY_TABLE)
+                            .replace("BINARY", binaryType));
+                    stmt.execute(unspentHistoryIndexDefinition1);
+                    stmt.execute(nxtTableDefinition.replace(NXT_TABLE, NXT_HISTORY_TABLE)
+                            .replace("BINARY", binaryType));
+                    stmt.execute(nxtHistoryIndexDefinition1);
+                    stmt.execute(bitcoinTableDefinition.replace(BITCOIN_TABLE, BITCOIN_HISTORY_TABLE)
+                            .replace("BINARY", binaryType));
+                    stmt.execute(bitcoinHistoryIndexDefinition1);
+                    stmt.execute(bitcoinHistoryIndexDefinition2);
+                case 6:
+                    stmt.execute(reorgTableDefinition.replace("BINARY", binaryType));
+                    stmt.execute(reorgIndexDefinition1);
+                case 7:
+                    if (dbType != DbType.POSTGRESQL) {
+                        stmt.execute(bitcoinIndexDefinition8);
+                    }
+                case 8:
+                    if (version > 4) {
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".nxt_idx4");
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".bitcoin_idx7");
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".nxt_history_idx2");
+                        stmt.execute("DROP INDEX IF EXISTS " + DB_SCHEMA + ".bitcoin_history_idx3");
+                    }
+                    stmt.execute(nxtIndexDefinition5);
+                    stmt.execute(bitcoinIndexDefinition9);
+                    stmt.execute(nxtHistoryIndexDefinition3);
+                    stmt.execute(bitcoinHistoryIndexDefinition4);
                     //
                     // Add new database version processing here
                     //
@@ -313,23 +624,29 @@ public class TokenDb {
                 }
             }
         }
+        //
+        // Start the write-behind queue
+        //
+        writeQueue = new DbWriteQueue(writeQueueSize);
     }
 
     /**
      * Shutdown the database
      */
     static void shutdown() {
-        synchronized(allConnections) {
-            for (DbConnection conn : allConnections) {
-                try {
-                    conn.doClose();
-                } catch (Exception exc) {
-                    Logger.logErrorMessage("Unable to close database connection", exc);
-                }
+        if (writeQueue != null) {
+            writeQueue.shutdown();
+            writeQueue = null;
+        }
+        for (DbConnection conn : allConnections) {
+            try {
+                conn.doClose();
+            } catch (Exception exc) {
+                Logger.logErrorMessage("Unable to close database connection", exc);
             }
-            allConnections.clear();
-            cachedConnections.clear();
         }
+        allConnections.clear();
+        idleConnections.clear();
     }
 
     /**
@@ -440,25 +757,36 @@ public class TokenDb {
     }
 
     /**
-     * Get the next child for the specified parent
+     * Get the child number high-water mark for the specified parent
      *
      * @param   parent          Parent (0 = external, 1 = internal)
-     * @return                  Next child
+     * @return                  First child number that has not been reserved
      * @throws  SQLException    Error occurred
      */
-    static ChildNumber getNewChild(ChildNumber parent) throws SQLException {
-        ChildNumber child;
+    static int getChildLimit(ChildNumber parent) throws SQLException {
         String column = (parent.getI() == 0 ? "external_key" : "internal_key");
         try (Connection conn = getConnection();
-                PreparedStatement stmt1 = conn.prepareStatement("SELECT " + column + " FROM " + CONTROL_TABLE);
-                PreparedStatement stmt2 = conn.prepareStatement("UPDATE " + CONTROL_TABLE + " SET " + column + "=?");
-                ResultSet rs = stmt1.executeQuery()) {
+                PreparedStatement stmt = conn.prepareStatement("SELECT " + column + " FROM " + CONTROL_TABLE);
+                ResultSet rs = stmt.executeQuery()) {
             rs.next();
-            child = new ChildNumber(rs.getInt(column));
-            stmt2.setInt(1, child.getI() + 1);
-            stmt2.executeUpdate();
+            return rs.getInt(column);
+        }
+    }
+
+    /**
+     * Set the child number high-water mark for the specified parent
+     *
+     * @param   parent          Parent (0 = external, 1 = internal)
+     * @param   limit           First child number that has not been reserved
+     * @throws  SQLException    Error occurred
+     */
+    static void setChildLimit(ChildNumber parent, int limit) throws SQLException {
+        String column = (parent.getI() == 0 ? "external_key" : "internal_key");
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement("UPDATE " + CONTROL_TABLE + " SET " + column + "=?")) {
+            stmt.setInt(1, limit);
+            stmt.executeUpdate();
         }
-        return child;
     }
 
     /**
@@ -488,8 +816,7 @@ public class TokenDb {
     static BitcoinUnspent getUnspentOutput(byte[] txid, int index, byte[] blkid) throws SQLException {
         BitcoinUnspent unspent = null;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + UNSPENT_TABLE
-                        + " WHERE txid=? AND index=? AND blkid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(unspentOutputQuery)) {
             stmt.setBytes(1, txid);
             stmt.setInt(2, index);
             stmt.setBytes(3, blkid);
@@ -502,6 +829,42 @@ public class TokenDb {
         return unspent;
     }
 
+    /**
+     * Get the unspent outputs for a set of transactions in a block
+     *
+     * Archived outputs are included so that a block processed again after the block
+     * chain has been rolled back does not restore outputs that have been spent.
+     *
+     * @param   blkid           Block identifier
+     * @param   txids           Transaction identifiers
+     * @return                  List of unspent outputs
+     * @throws  SQLException    Error occurred
+     */
+    static List<BitcoinUnspent> getUnspentOutputs(byte[] blkid, List<byte[]> txids) throws SQLException {
+        List<BitcoinUnspent> unspentList = new ArrayList<>();
+        try (Connection conn = getConnection()) {
+            for (int start=0; start<txids.size(); start+=MAX_IN_LIST) {
+                List<byte[]> idList = txids.subList(start, Math.min(start + MAX_IN_LIST, txids.size()));
+                int size = getInListSize(idList.size());
+                try (PreparedStatement stmt = conn.prepareStatement(getUnspentOutputsQuery(size))) {
+                    int index = 1;
+                    for (int j=0; j<2; j++) {
+                        stmt.setBytes(index++, blkid);
+                        for (int i=0; i<size; i++) {
+                            stmt.setBytes(index++, idList.get(Math.min(i, idList.size() - 1)));
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            unspentList.add(new BitcoinUnspent(rs));
+                        }
+                    }
+                }
+            }
+        }
+        return unspentList;
+    }
+
     /**
      * Get all active unspent outputs ordered by amount
      *
@@ -511,8 +874,26 @@ public class TokenDb {
     static List<BitcoinUnspent> getUnspentOutputs() throws SQLException {
         List<BitcoinUnspent> unspentList = new ArrayList<>();
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + UNSPENT_TABLE
-                        + " WHERE spent=false AND height>0 ORDER BY amount ASC")) {
+                PreparedStatement stmt = conn.prepareStatement(activeUnspentOutputsQuery)) {
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    unspentList.add(new BitcoinUnspent(rs));
+                }
+            }
+        }
+        return unspentList;
+    }
+
+    /**
+     * Get all unspent outputs including outputs that are not active
+     *
+     * @return                  List of unspent outputs
+     * @throws  SQLException    Error occurred
+     */
+    static List<BitcoinUnspent> getAllUnspentOutputs() throws SQLException {
+        List<BitcoinUnspent> unspentList = new ArrayList<>();
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement(allUnspentOutputsQuery)) {
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
                     unspentList.add(new BitcoinUnspent(rs));
@@ -545,74 +926,50 @@ public class TokenDb {
     }
 
     /**
-     * Mark all versions of a transaction output as spent
+     * Store a batch of new unspent outputs
      *
-     * @param   txid            Transaction identifier
-     * @param   index           Transaction output index
-     * @throws  SQLException    Error occurred
-     */
-    static void spendOutput(byte[] txid, int index) throws SQLException {
-        try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("UPDATE " + UNSPENT_TABLE
-                        + " SET spent=true WHERE txid=? AND index=?")) {
-            stmt.setBytes(1, txid);
-            stmt.setInt(2, index);
-            stmt.executeUpdate();
-        }
-    }
-
-    /**
-     * Deactivate external unspent outputs above the specified block chain height
+     * The caller should start a database transaction so that the outputs
+     * are committed together.
      *
-     * @param   height          Block chain height
-     * @return                  Unspent amount deactivated
+     * @param   unspentList     Unspent outputs
      * @throws  SQLException    Error occurred
      */
-    static long deactivateUnspentOutputs(int height) throws SQLException {
-        long amount = 0;
+    static void storeUnspentOutputs(List<BitcoinUnspent> unspentList) throws SQLException {
+        if (unspentList.isEmpty()) {
+            return;
+        }
         try (Connection conn = getConnection();
-                PreparedStatement stmt1 = conn.prepareStatement("SELECT SUM(amount) AS amount FROM " + UNSPENT_TABLE
-                        + " WHERE spent=false AND height>? AND parent_number=0");
-                PreparedStatement stmt2 = conn.prepareStatement("UPDATE " + UNSPENT_TABLE
-                        + " SET height=0 WHERE spent=false AND height>? AND parent_number=0")) {
-            stmt1.setInt(1, height);
-            try (ResultSet rs = stmt1.executeQuery()) {
-                if (rs.next()) {
-                    amount = rs.getLong("amount");
-                    stmt2.setInt(1, height);
-                    stmt2.executeUpdate();
-                }
+                PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + UNSPENT_TABLE
+                        + " (txid,index,blkid,amount,spent,height,child_number,parent_number)"
+                        + " VALUES(?,?,?,?,false,?,?,?)")) {
+            for (BitcoinUnspent unspent : unspentList) {
+                stmt.setBytes(1, unspent.getId());
+                stmt.setInt(2, unspent.getIndex());
+                stmt.setBytes(3, unspent.getBlockId());
+                stmt.setLong(4, unspent.getAmount());
+                stmt.setInt(5, unspent.getHeight());
+                stmt.setInt(6, unspent.getChildNumber().getI());
+                stmt.setInt(7, unspent.getParentNumber().getI());
+                stmt.addBatch();
             }
+            stmt.executeBatch();
         }
-        return amount;
     }
 
     /**
-     * Activate external unspent outputs for transactions in the specified block
+     * Mark all versions of a transaction output as spent
      *
-     * @param   blkid           Block identifier
-     * @param   height          Activation height
-     * @return                  Unspent amount activated
+     * @param   txid            Transaction identifier
+     * @param   index           Transaction output index
      * @throws  SQLException    Error occurred
      */
-    static long activateUnspentOutputs(byte[] blkid, int height) throws SQLException {
-        long amount = 0;
+    static void spendOutput(byte[] txid, int index) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt1 = conn.prepareStatement("SELECT SUM(amount) AS amount FROM " + UNSPENT_TABLE
-                        + " WHERE spent=false AND blkid=?");
-                PreparedStatement stmt2 = conn.prepareStatement("UPDATE " + UNSPENT_TABLE
-                        + " SET height=? WHERE spent=false AND blkid=?")) {
-            stmt1.setBytes(1, blkid);
-            try (ResultSet rs = stmt1.executeQuery()) {
-                if (rs.next()) {
-                    amount = rs.getLong("amount");
-                    stmt2.setInt(1, height);
-                    stmt2.setBytes(2, blkid);
-                    stmt2.executeUpdate();
-                }
-            }
+                PreparedStatement stmt = conn.prepareStatement(spendOutputUpdate)) {
+            stmt.setBytes(1, txid);
+            stmt.setInt(2, index);
+            stmt.executeUpdate();
         }
-        return amount;
     }
 
     /**
@@ -625,8 +982,7 @@ public class TokenDb {
     static Transaction getBroadcastTransaction(byte[] txid) throws SQLException {
         Transaction tx = null;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT payload FROM " + BROADCAST_TABLE
-                        + " WHERE txid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(broadcastTransactionQuery)) {
             stmt.setBytes(1, txid);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -690,16 +1046,37 @@ public class TokenDb {
      */
     static void deleteBroadcastTransaction(byte[] txId) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + BROADCAST_TABLE
-                        + " WHERE txid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(broadcastTransactionDelete)) {
             stmt.setBytes(1, txId);
             stmt.executeUpdate();
         }
     }
 
+    /**
+     * Delete a batch of broadcast transactions
+     *
+     * @param   txIds           Transaction identifiers
+     * @throws  SQLException    Error occurred
+     */
+    static void deleteBroadcastTransactions(List<byte[]> txIds) throws SQLException {
+        if (txIds.isEmpty()) {
+            return;
+        }
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement(broadcastTransactionDelete)) {
+            for (byte[] txId : txIds) {
+                stmt.setBytes(1, txId);
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
     /**
      * See if a token transaction exists
      *
+     * Archived transactions are included.
+     *
      * @param   id              Transaction identifier
      * @return                  TRUE if the transaction token exists
      * @throws  SQLException    Error occurred
@@ -707,9 +1084,9 @@ public class TokenDb {
     static boolean tokenExists(long id) throws SQLException {
         boolean exists = false;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM " + NXT_TABLE
-                        + " WHERE nxt_txid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(tokenExistsQuery)) {
             stmt.setLong(1, id);
+            stmt.setLong(2, id);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
                     exists = true;
@@ -729,8 +1106,7 @@ public class TokenDb {
     static TokenTransaction getToken(long id) throws SQLException {
         TokenTransaction tx = null;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + NXT_TABLE
-                        + " WHERE nxt_txid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(tokenQuery)) {
             stmt.setLong(1, id);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -744,25 +1120,31 @@ public class TokenDb {
     /**
      * Get token transactions at or above the specified height
      *
+     * The transactions are read a page at a time and are passed to the consumer after
+     * the database connection has been released.  Archived transactions are included
+     * when exchanged tokens are returned.
+     *
      * @param   height          Block height
      * @param   exchanged       TRUE to return exchanged tokens
-     * @return                  List of token transactions
+     * @param   firstIndex      Index of the first transaction to return
+     * @param   lastIndex       Index of the last transaction to return or -1 to return all transactions
+     * @param   consumer        Transaction consumer
      * @throws  SQLException    Error occurred
      */
-    static List<TokenTransaction> getTokens(int height, boolean exchanged) throws SQLException {
-        List<TokenTransaction> txList = new ArrayList<>();
-        try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + NXT_TABLE
-                        + " WHERE height>=? " + (exchanged ? "" : "AND exchanged=false ")
-                        + "ORDER BY height ASC,timestamp ASC")) {
-            stmt.setInt(1, Math.max(1, Math.max(0, height)));
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    txList.add(new TokenTransaction(rs));
+    static void getTokens(int height, boolean exchanged, int firstIndex, int lastIndex,
+                                Consumer<TokenTransaction> consumer) throws SQLException {
+        pagedQuery(getTokensQuery(exchanged, false), getTokensQuery(exchanged, true), (stmt, last) -> {
+            int index = 1;
+            for (int i=0; i<(exchanged ? 2 : 1); i++) {
+                stmt.setInt(index++, (last != null ? last.getHeight() : Math.max(1, Math.max(0, height))));
+                if (last != null) {
+                    stmt.setInt(index++, last.getHeight());
+                    stmt.setInt(index++, last.getTimestamp());
+                    stmt.setLong(index++, last.getNxtTxId());
                 }
             }
-        }
-        return txList;
+            return index;
+        }, TokenTransaction::new, firstIndex, lastIndex, consumer);
     }
 
     /**
@@ -775,8 +1157,7 @@ public class TokenDb {
     static List<TokenTransaction> getPendingTokens(int height) throws SQLException {
         List<TokenTransaction> txList = new ArrayList<>();
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + NXT_TABLE
-                        + " WHERE exchanged=false AND height<=? ORDER BY height ASC")) {
+                PreparedStatement stmt = conn.prepareStatement(pendingTokensQuery)) {
             stmt.setInt(1, height);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
@@ -817,14 +1198,34 @@ public class TokenDb {
      */
     static void updateToken(TokenTransaction tx) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("UPDATE " + NXT_TABLE
-                        + " SET exchanged=true,bitcoin_txid=? WHERE nxt_txid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(tokenUpdate)) {
             stmt.setBytes(1, tx.getBitcoinTxId());
             stmt.setLong(2, tx.getNxtTxId());
             stmt.executeUpdate();
         }
     }
 
+    /**
+     * Update the status for a batch of token transactions
+     *
+     * The caller should start a database transaction so that the updates
+     * are committed together.
+     *
+     * @param   txList          Token transactions
+     * @throws  SQLException    Error occurred
+     */
+    static void updateTokens(List<TokenTransaction> txList) throws SQLException {
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement(tokenUpdate)) {
+            for (TokenTransaction tx : txList) {
+                stmt.setBytes(1, tx.getBitcoinTxId());
+                stmt.setLong(2, tx.getNxtTxId());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+
     /**
      * Pop token transactions above the specified height
      *
@@ -833,13 +1234,48 @@ public class TokenDb {
      */
     static void popTokens(int height) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + NXT_TABLE
-                        + " WHERE exchanged=false AND height>?")) {
+                PreparedStatement stmt = conn.prepareStatement(tokenDelete)) {
             stmt.setInt(1, height);
             stmt.executeUpdate();
         }
     }
 
+    /**
+     * Store the address hash for existing accounts
+     *
+     * This is done when upgrading to database version 3.
+     *
+     * @param   conn            Database connection
+     * @throws  SQLException    Error occurred
+     */
+    private static void storeAccountHashes(Connection conn) throws SQLException {
+        try (PreparedStatement stmt1 = conn.prepareStatement("SELECT bitcoin_address FROM " + ACCOUNT_TABLE);
+                PreparedStatement stmt2 = conn.prepareStatement(accountHashUpdate)) {
+            try (ResultSet rs = stmt1.executeQuery()) {
+                while (rs.next()) {
+                    String address = rs.getString("bitcoin_address");
+                    stmt2.setBytes(1, getAddressHash(address));
+                    stmt2.setString(2, address);
+                    stmt2.addBatch();
+                }
+            }
+            stmt2.executeBatch();
+        }
+    }
+
+    /**
+     * Get the address hash for a Bitcoin address
+     *
+     * The Base58 address consists of a 1-byte version followed by the 20-byte address hash.
+     *
+     * @param   address         Bitcoin address
+     * @return                  Address hash
+     */
+    private static byte[] getAddressHash(String address) {
+        byte[] bytes = Base58.decodeChecked(address);
+        return Arrays.copyOfRange(bytes, 1, 1 + BitcoinAddressIndex.HASH_LENGTH);
+    }
+
     /**
      * Store an account
      *
@@ -847,20 +1283,60 @@ public class TokenDb {
      * @throws  SQLException    Error occurred
      */
     static void storeAccount(BitcoinAccount account) throws SQLException {
+        storeAccounts(Collections.singletonList(account));
+    }
+
+    /**
+     * Store a batch of accounts
+     *
+     * @param   accounts        Accounts
+     * @throws  SQLException    Error occurred
+     */
+    static void storeAccounts(Collection<BitcoinAccount> accounts) throws SQLException {
         try (Connection conn = getConnection();
                 PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + ACCOUNT_TABLE
-                        + " (bitcoin_address,child_number,account_id,public_key,timestamp)"
-                        + " VALUES(?,?,?,?,?)")) {
-            stmt.setString(1, account.getBitcoinAddress());
-            stmt.setInt(2, account.getChildNumber());
-            stmt.setLong(3, account.getAccountId());
-            if (account.getPublicKey() != null) {
-                stmt.setBytes(4, account.getPublicKey());
-            } else {
-                stmt.setNull(4, Types.BINARY);
-            }
-            stmt.setInt(5, account.getTimestamp());
-            stmt.executeUpdate();
+                        + " (bitcoin_address,bitcoin_hash,child_number,account_id,public_key,timestamp)"
+                        + " VALUES(?,?,?,?,?,?)")) {
+            for (BitcoinAccount account : accounts) {
+                stmt.setString(1, account.getBitcoinAddress());
+                stmt.setBytes(2, getAddressHash(account.getBitcoinAddress()));
+                stmt.setInt(3, account.getChildNumber());
+                stmt.setLong(4, account.getAccountId());
+                if (account.getPublicKey() != null) {
+                    stmt.setBytes(5, account.getPublicKey());
+                } else {
+                    stmt.setNull(5, Types.BINARY);
+                }
+                stmt.setInt(6, account.getTimestamp());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+        invalidateCache(() -> accountCache.invalidate(accounts));
+    }
+
+    /**
+     * Process the address hash and child number for each account
+     *
+     * The address hash is read from the account table, so the Bitcoin address
+     * does not need to be decoded.
+     *
+     * @param   consumer        Called with the address hash and child number
+     * @throws  SQLException    Error occurred
+     */
+    static void getAccountHashes(ObjIntConsumer<byte[]> consumer) throws SQLException {
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement("SELECT bitcoin_address,bitcoin_hash,child_number FROM "
+                        + ACCOUNT_TABLE)) {
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    byte[] hash = rs.getBytes("bitcoin_hash");
+                    if (hash == null) {
+                        hash = getAddressHash(rs.getString("bitcoin_address"));
+                    }
+                    consumer.accept(hash, rs.getInt("child_number"));
+                }
+            }
         }
     }
 
@@ -872,10 +1348,14 @@ public class TokenDb {
      * @throws  SQLException    Error occurred
      */
     static List<BitcoinAccount> getAccount(long accountId) throws SQLException {
-        List<BitcoinAccount> accountList = new ArrayList<>();
+        List<BitcoinAccount> accountList = accountCache.getAccounts(accountId);
+        if (accountList != null) {
+            return accountList;
+        }
+        accountList = new ArrayList<>();
+        long generation = accountCache.getGeneration();
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + ACCOUNT_TABLE
-                        + " WHERE account_id=? ORDER BY timestamp ASC")) {
+                PreparedStatement stmt = conn.prepareStatement(accountIdQuery)) {
             stmt.setLong(1, accountId);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
@@ -883,6 +1363,7 @@ public class TokenDb {
                 }
             }
         }
+        accountCache.putAccounts(accountId, accountList, generation);
         return accountList;
     }
 
@@ -894,10 +1375,14 @@ public class TokenDb {
      * @throws  SQLException    Error occurred
      */
     static BitcoinAccount getAccount(String address) throws SQLException {
+        Optional<BitcoinAccount> cached = accountCache.getAccount(address);
+        if (cached != null) {
+            return cached.orElse(null);
+        }
         BitcoinAccount account = null;
+        long generation = accountCache.getGeneration();
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + ACCOUNT_TABLE
-                        + " WHERE bitcoin_address=?")) {
+                PreparedStatement stmt = conn.prepareStatement(accountQuery)) {
             stmt.setString(1, address);
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -905,9 +1390,60 @@ public class TokenDb {
                 }
             }
         }
+        accountCache.putAccount(address, account, generation);
         return account;
     }
 
+    /**
+     * Get the accounts for a set of Bitcoin addresses
+     *
+     * Cached accounts are returned without a database lookup.  The remaining addresses
+     * are obtained from the database and the results are added to the cache.
+     *
+     * @param   addressList     Bitcoin addresses
+     * @return                  Map of Bitcoin address to account
+     * @throws  SQLException    Error occurred
+     */
+    static Map<String, BitcoinAccount> getAccounts(List<String> addressList) throws SQLException {
+        Map<String, BitcoinAccount> accountMap = new HashMap<>();
+        List<String> addresses = new ArrayList<>(addressList.size());
+        for (String address : addressList) {
+            Optional<BitcoinAccount> cached = accountCache.getAccount(address);
+            if (cached == null) {
+                addresses.add(address);
+            } else if (cached.isPresent()) {
+                accountMap.put(address, cached.get());
+            }
+        }
+        if (addresses.isEmpty()) {
+            return accountMap;
+        }
+        long generation = accountCache.getGeneration();
+        Map<String, BitcoinAccount> dbMap = new HashMap<>();
+        try (Connection conn = getConnection()) {
+            for (int start=0; start<addresses.size(); start+=MAX_IN_LIST) {
+                List<String> subList = addresses.subList(start, Math.min(start + MAX_IN_LIST, addresses.size()));
+                int size = getInListSize(subList.size());
+                try (PreparedStatement stmt = conn.prepareStatement(getAccountsQuery(size))) {
+                    for (int i=0; i<size; i++) {
+                        stmt.setString(i + 1, subList.get(Math.min(i, subList.size() - 1)));
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            BitcoinAccount account = new BitcoinAccount(rs);
+                            dbMap.put(account.getBitcoinAddress(), account);
+                        }
+                    }
+                }
+            }
+        }
+        for (String address : addresses) {
+            accountCache.putAccount(address, dbMap.get(address), generation);
+        }
+        accountMap.putAll(dbMap);
+        return accountMap;
+    }
+
     /**
      * Get all of the accounts ordered by account identifier and timestamp
      *
@@ -938,11 +1474,11 @@ public class TokenDb {
     static boolean deleteAccountAddress(String address) throws SQLException {
         int count;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("DELETE FROM " + ACCOUNT_TABLE
-                        + " WHERE bitcoin_address=?")) {
+                PreparedStatement stmt = conn.prepareStatement(accountDelete)) {
             stmt.setString(1, address);
             count = stmt.executeUpdate();
         }
+        invalidateCache(() -> accountCache.invalidate(address));
         return count != 0;
     }
 
@@ -971,57 +1507,123 @@ public class TokenDb {
     }
 
     /**
-     * Update all versions of a Bitcoin transaction
+     * Store a batch of new Bitcoin transactions
      *
-     * @param   tx              Bitcoin transaction
+     * The caller should start a database transaction so that the transactions
+     * are committed together.
+     *
+     * @param   txList          Bitcoin transactions
      * @throws  SQLException    Error occurred
      */
-    static void updateTransaction(BitcoinTransaction tx) throws SQLException {
+    static void storeTransactions(List<BitcoinTransaction> txList) throws SQLException {
+        if (txList.isEmpty()) {
+            return;
+        }
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("UPDATE " + BITCOIN_TABLE
-                        + " SET exchanged=?,nxt_txid=? WHERE bitcoin_txid=?")) {
-            stmt.setBoolean(1, tx.isExchanged());
-            stmt.setLong(2, tx.getNxtTxId());
-            stmt.setBytes(3, tx.getBitcoinTxId());
-            stmt.executeUpdate();
+                PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + BITCOIN_TABLE
+                        + " (bitcoin_txid,bitcoin_blkid,height,timestamp,bitcoin_address,bitcoin_amount,"
+                        + "  token_amount,account_id,exchanged,nxt_txid)"
+                        + " VALUES(?,?,?,?,?,?,?,?,false,0)")) {
+            for (BitcoinTransaction tx : txList) {
+                stmt.setBytes(1, tx.getBitcoinTxId());
+                stmt.setBytes(2, tx.getBitcoinBlockId());
+                stmt.setInt(3, tx.getHeight());
+                stmt.setInt(4, tx.getTimestamp());
+                stmt.setString(5, tx.getBitcoinAddress());
+                stmt.setLong(6, tx.getBitcoinAmount());
+                stmt.setLong(7, tx.getTokenAmount());
+                stmt.setLong(8, tx.getAccountId());
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
         }
     }
 
     /**
-     * See if a Bitcoin transaction exists for the specified Bitcoin address
+     * Update all versions of a batch of Bitcoin transactions
      *
-     * @param   address         Bitcoin address
-     * @return                  TRUE if a Bitcoin transaction exists
+     * The signed Nxt transaction is stored along with the Nxt transaction identifier
+     * until the Nxt transaction is confirmed.  A transaction is identified by its
+     * Bitcoin transaction identifier and Bitcoin address since a transaction paying
+     * several of our addresses has a separate issuance for each address.
+     *
+     * @param   txList          Bitcoin transactions
      * @throws  SQLException    Error occurred
      */
-    static boolean transactionExists(String address) throws SQLException {
-        boolean exists = false;
+    static void updateTransactions(List<BitcoinTransaction> txList) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM " + BITCOIN_TABLE
-                        + " WHERE bitcoin_address=?")) {
-            stmt.setString(1, address);
-            try (ResultSet rs = stmt.executeQuery()) {
-                if (rs.next()) {
-                    exists = true;
+                PreparedStatement stmt = conn.prepareStatement(transactionUpdate)) {
+            for (BitcoinTransaction tx : txList) {
+                stmt.setBoolean(1, tx.isExchanged());
+                stmt.setLong(2, tx.getNxtTxId());
+                if (tx.getNxtTransaction() != null) {
+                    stmt.setBytes(3, tx.getNxtTransaction());
+                } else {
+                    stmt.setNull(3, Types.BINARY);
                 }
+                stmt.setBytes(4, tx.getBitcoinTxId());
+                stmt.setString(5, tx.getBitcoinAddress());
+                stmt.addBatch();
             }
+            stmt.executeBatch();
         }
-        return exists;
     }
 
     /**
-     * See if a Bitcoin transaction exists
+     * Get the Bitcoin transactions with a signed Nxt transaction that has not been confirmed
      *
-     * @param   txid            Transaction identifier
-     * @param   blkid           Block identifier
-     * @return                  TRUE if a Bitcoin transaction exists
+     * @return                  List of Bitcoin transactions
      * @throws  SQLException    Error occurred
      */
-    static boolean transactionExists(byte[] txid, byte[] blkid) throws SQLException {
-        boolean exists = false;
+    static List<BitcoinTransaction> getUnconfirmedIssuances() throws SQLException {
+        List<BitcoinTransaction> txList = new ArrayList<>();
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM " + BITCOIN_TABLE
-                        + " WHERE bitcoin_txid=? AND bitcoin_blkid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(unconfirmedIssuancesQuery)) {
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    txList.add(new BitcoinTransaction(rs));
+                }
+            }
+        }
+        return txList;
+    }
+
+    /**
+     * See if a Bitcoin transaction exists for the specified Bitcoin address
+     *
+     * Archived transactions are included.
+     *
+     * @param   address         Bitcoin address
+     * @return                  TRUE if a Bitcoin transaction exists
+     * @throws  SQLException    Error occurred
+     */
+    static boolean transactionExists(String address) throws SQLException {
+        boolean exists = false;
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement(addressTransactionExistsQuery)) {
+            stmt.setString(1, address);
+            stmt.setString(2, address);
+            try (ResultSet rs = stmt.executeQuery()) {
+                if (rs.next()) {
+                    exists = true;
+                }
+            }
+        }
+        return exists;
+    }
+
+    /**
+     * See if a Bitcoin transaction exists
+     *
+     * @param   txid            Transaction identifier
+     * @param   blkid           Block identifier
+     * @return                  TRUE if a Bitcoin transaction exists
+     * @throws  SQLException    Error occurred
+     */
+    static boolean transactionExists(byte[] txid, byte[] blkid) throws SQLException {
+        boolean exists = false;
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement(transactionExistsQuery)) {
             stmt.setBytes(1, txid);
             stmt.setBytes(2, blkid);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -1033,6 +1635,42 @@ public class TokenDb {
         return exists;
     }
 
+    /**
+     * Get the Bitcoin transactions in a block that have already been stored
+     *
+     * Archived transactions are included so that a block processed again after the
+     * block chain has been rolled back does not issue tokens a second time.
+     *
+     * @param   blkid           Bitcoin block identifier
+     * @param   txids           Bitcoin transaction identifiers
+     * @return                  Set of stored transaction identifiers
+     * @throws  SQLException    Error occurred
+     */
+    static Set<Sha256Hash> getTransactionIds(byte[] blkid, List<byte[]> txids) throws SQLException {
+        Set<Sha256Hash> idSet = new HashSet<>();
+        try (Connection conn = getConnection()) {
+            for (int start=0; start<txids.size(); start+=MAX_IN_LIST) {
+                List<byte[]> idList = txids.subList(start, Math.min(start + MAX_IN_LIST, txids.size()));
+                int size = getInListSize(idList.size());
+                try (PreparedStatement stmt = conn.prepareStatement(getTransactionIdsQuery(size))) {
+                    int index = 1;
+                    for (int j=0; j<2; j++) {
+                        stmt.setBytes(index++, blkid);
+                        for (int i=0; i<size; i++) {
+                            stmt.setBytes(index++, idList.get(Math.min(i, idList.size() - 1)));
+                        }
+                    }
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        while (rs.next()) {
+                            idSet.add(Sha256Hash.wrap(rs.getBytes(1)));
+                        }
+                    }
+                }
+            }
+        }
+        return idSet;
+    }
+
     /**
      * Get a Bitcoin transaction
      *
@@ -1044,8 +1682,7 @@ public class TokenDb {
     static BitcoinTransaction getTransaction(byte[] txid, byte[] blkid) throws SQLException {
         BitcoinTransaction tx = null;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + BITCOIN_TABLE
-                        + " WHERE bitcoin_txid=? AND bitcoin_blkid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(transactionQuery)) {
             stmt.setBytes(1, txid);
             stmt.setBytes(2, blkid);
             try (ResultSet rs = stmt.executeQuery()) {
@@ -1060,33 +1697,171 @@ public class TokenDb {
     /**
      * Get the Bitcoin transactions with a block height at or above the specified height
      *
+     * The transactions are read a page at a time and are passed to the consumer after
+     * the database connection has been released.  Archived transactions are included
+     * when processed transactions are returned.
+     *
      * @param   height          Bitcoin block height
      * @param   address         Bitcoin address or null for all addresses
      * @param   exchanged       Include processed transactions
-     * @return                  Bitcoin transaction list
+     * @param   firstIndex      Index of the first transaction to return
+     * @param   lastIndex       Index of the last transaction to return or -1 to return all transactions
+     * @param   consumer        Transaction consumer
      * @throws  SQLException    Error occurred
      */
-    static List<BitcoinTransaction> getTransactions(int height, String address, boolean exchanged)
-                                throws SQLException {
-        List<BitcoinTransaction> txList = new ArrayList<>();
+    static void getTransactions(int height, String address, boolean exchanged, int firstIndex, int lastIndex,
+                                Consumer<BitcoinTransaction> consumer) throws SQLException {
+        pagedQuery(getTransactionsQuery(address != null, exchanged, false),
+                   getTransactionsQuery(address != null, exchanged, true), (stmt, last) -> {
+            int index = 1;
+            for (int i=0; i<(exchanged ? 2 : 1); i++) {
+                stmt.setInt(index++, (last != null ? last.getHeight() : Math.max(0, height)));
+                if (address != null) {
+                    stmt.setString(index++, address);
+                }
+                if (last != null) {
+                    stmt.setInt(index++, last.getHeight());
+                    stmt.setBytes(index++, last.getBitcoinTxId());
+                    stmt.setString(index++, last.getBitcoinAddress());
+                }
+            }
+            return index;
+        }, BitcoinTransaction::new, firstIndex, lastIndex, consumer);
+    }
+
+    /**
+     * Archive exchanged token transactions
+     *
+     * The exchanged transactions in the lowest block heights at or below the specified
+     * height are moved to the history table.
+     *
+     * @param   height          Highest block height to archive
+     * @return                  Number of transactions archived
+     * @throws  SQLException    Error occurred
+     */
+    static int archiveTokens(int height) throws SQLException {
+        return archiveRows(tokenArchive, height);
+    }
+
+    /**
+     * Archive processed Bitcoin transactions
+     *
+     * The processed transactions in the lowest block heights at or below the specified
+     * height are moved to the history table.  Token issuances that have not been
+     * confirmed are not archived.
+     *
+     * @param   height          Highest block height to archive
+     * @return                  Number of transactions archived
+     * @throws  SQLException    Error occurred
+     */
+    static int archiveTransactions(int height) throws SQLException {
+        return archiveRows(transactionArchive, height);
+    }
+
+    /**
+     * Archive spent outputs
+     *
+     * The spent outputs in the lowest block heights at or below the specified
+     * height are moved to the history table.
+     *
+     * @param   height          Highest block height to archive
+     * @return                  Number of outputs archived
+     * @throws  SQLException    Error occurred
+     */
+    static int archiveUnspentOutputs(int height) throws SQLException {
+        return archiveRows(unspentArchive, height);
+    }
+
+    /**
+     * Move rows to a history table
+     *
+     * The rows in the ARCHIVE_HEIGHTS block heights starting with the lowest height
+     * containing a matching row are copied to the history table.  Only rows that
+     * were copied are then deleted, so a row that changes between the two statements
+     * is left in place.
+     *
+     * @param   archive         Archive statements
+     * @param   height          Highest block height to archive
+     * @return                  Number of rows archived
+     * @throws  SQLException    Error occurred
+     */
+    private static int archiveRows(ArchiveStatements archive, int height) throws SQLException {
+        int count = 0;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + BITCOIN_TABLE
-                        + " WHERE height>=? "
-                        + (address!=null ? (exchanged ? "AND bitcoin_address=? " :
-                                                        "AND bitcoin_address=? AND exchanged=false ") :
-                                           (exchanged ? "" : "AND exchanged=false "))
-                        + "ORDER BY height ASC")) {
-            stmt.setInt(1, Math.max(0, height));
-            if (address != null) {
-                stmt.setString(2, address);
+                PreparedStatement stmt1 = conn.prepareStatement(archive.heightQuery);
+                PreparedStatement stmt2 = conn.prepareStatement(archive.copyInsert);
+                PreparedStatement stmt3 = conn.prepareStatement(archive.rowDelete)) {
+            stmt1.setInt(1, height);
+            int startHeight = 0;
+            try (ResultSet rs = stmt1.executeQuery()) {
+                if (rs.next()) {
+                    startHeight = rs.getInt("height");
+                }
             }
-            try (ResultSet rs = stmt.executeQuery()) {
-                while (rs.next()) {
-                    txList.add(new BitcoinTransaction(rs));
+            if (startHeight > 0) {
+                int endHeight = Math.min(startHeight + ARCHIVE_HEIGHTS - 1, height);
+                stmt2.setInt(1, startHeight);
+                stmt2.setInt(2, endHeight);
+                stmt2.executeUpdate();
+                stmt3.setInt(1, startHeight);
+                stmt3.setInt(2, endHeight);
+                count = stmt3.executeUpdate();
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Run a paged query
+     *
+     * The rows are read PAGE_SIZE rows at a time.  The database connection is returned
+     * to the connection pool before the rows in a page are passed to the consumer, so
+     * a slow consumer, such as an API client reading a streamed response, does not
+     * hold a database connection.  The first page is positioned at the first row with
+     * an OFFSET.  Each following page starts after the sort key of the last row that
+     * was returned, so a page is read from the index without skipping the earlier
+     * rows again.  A row that is added or moved to a history table while the pages
+     * are being read keeps its sort key and is not returned twice.
+     *
+     * @param   <T>             Row type
+     * @param   firstSql        Query for the first page ending with LIMIT and OFFSET parameters
+     * @param   nextSql         Query for a following page ending with a LIMIT parameter
+     * @param   parameters      Sets the query parameters and the sort key of the last row before LIMIT
+     * @param   reader          Creates a row from the current result set row
+     * @param   firstIndex      Index of the first row to return
+     * @param   lastIndex       Index of the last row to return or -1 to return all rows
+     * @param   consumer        Row consumer
+     * @throws  SQLException    Error occurred
+     */
+    private static <T> void pagedQuery(String firstSql, String nextSql, QueryParameters<T> parameters,
+                                RowReader<T> reader, int firstIndex, int lastIndex, Consumer<T> consumer)
+                                throws SQLException {
+        int offset = Math.max(0, firstIndex);
+        long remaining = (lastIndex < 0 ? Long.MAX_VALUE : (long)lastIndex + 1 - offset);
+        T lastRow = null;
+        while (remaining > 0) {
+            int limit = (int)Math.min(PAGE_SIZE, remaining);
+            List<T> page = new ArrayList<>(limit);
+            try (Connection conn = getConnection();
+                    PreparedStatement stmt = conn.prepareStatement(lastRow == null ? firstSql : nextSql)) {
+                int index = parameters.set(stmt, lastRow);
+                stmt.setInt(index, limit);
+                if (lastRow == null) {
+                    stmt.setInt(index + 1, offset);
+                }
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        page.add(reader.read(rs));
+                    }
                 }
             }
+            page.forEach(consumer);
+            if (page.size() < limit) {
+                break;
+            }
+            remaining -= limit;
+            lastRow = page.get(page.size() - 1);
         }
-        return txList;
     }
 
     /**
@@ -1099,8 +1874,7 @@ public class TokenDb {
     static List<BitcoinTransaction> getPendingTransactions(int height) throws SQLException {
         List<BitcoinTransaction> txList = new ArrayList<>();
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT * FROM " + BITCOIN_TABLE
-                        + " WHERE exchanged=false AND height<=? AND height>0 ORDER BY height ASC")) {
+                PreparedStatement stmt = conn.prepareStatement(pendingTransactionsQuery)) {
             stmt.setInt(1, height);
             try (ResultSet rs = stmt.executeQuery()) {
                 while (rs.next()) {
@@ -1112,34 +1886,49 @@ public class TokenDb {
     }
 
     /**
-     * Deactivate Bitcoin transactions
+     * Process a block chain reorganization
      *
-     * @param   height          Deactivate all transactions above this height
-     * @throws  SQLException    Error occurred
-     */
-    static void deactivateTransactions(int height) throws SQLException {
-        try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("UPDATE " + BITCOIN_TABLE
-                        + " SET height=0 WHERE exchanged=false AND height>?")) {
-            stmt.setInt(1, height);
-            stmt.executeUpdate();
-        }
-    }
-
-    /**
-     * Activate Bitcoin transactions
+     * Unspent outputs and pending Bitcoin transactions above the split height are
+     * deactivated and the outputs and transactions in the new fork blocks are activated
+     * with the block height in the new fork.  The new fork blocks are staged in the
+     * reorganization table so that the number of statements does not depend on the
+     * number of blocks.  Change outputs are not deactivated since they were created
+     * by our own transactions.
+     *
+     * A database transaction must be active when this method is called.
      *
-     * @param   blkid           Activate all transactions for this block
-     * @param   height          Activation height
+     * @param   splitHeight     Height of the common block between the old and new chains
+     * @param   newBlocks       New fork blocks (block identifier to block height)
      * @throws  SQLException    Error occurred
      */
-    static void activateTransactions(byte[] blkid, int height) throws SQLException {
+    static void reorganize(int splitHeight, Map<Sha256Hash, Integer> newBlocks) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("UPDATE " + BITCOIN_TABLE
-                        + " SET height=? WHERE exchanged=false AND bitcoin_blkid=?")) {
-            stmt.setInt(1, height);
-            stmt.setBytes(2, blkid);
-            stmt.executeUpdate();
+                PreparedStatement stmt1 = conn.prepareStatement("DELETE FROM " + REORG_TABLE);
+                PreparedStatement stmt2 = conn.prepareStatement("INSERT INTO " + REORG_TABLE
+                        + " (blkid,height) VALUES(?,?)");
+                PreparedStatement stmt3 = conn.prepareStatement(unspentReorgUpdate);
+                PreparedStatement stmt4 = conn.prepareStatement(unspentForkUpdate);
+                PreparedStatement stmt5 = conn.prepareStatement(transactionReorgUpdate);
+                PreparedStatement stmt6 = conn.prepareStatement(transactionForkUpdate)) {
+            //
+            // Stage the new fork blocks
+            //
+            stmt1.executeUpdate();
+            for (Map.Entry<Sha256Hash, Integer> entry : newBlocks.entrySet()) {
+                stmt2.setBytes(1, entry.getKey().getBytes());
+                stmt2.setInt(2, entry.getValue());
+                stmt2.addBatch();
+            }
+            stmt2.executeBatch();
+            //
+            // Deactivate the old fork and activate the new fork
+            //
+            stmt3.setInt(1, splitHeight);
+            stmt3.executeUpdate();
+            stmt4.executeUpdate();
+            stmt5.setInt(1, splitHeight);
+            stmt5.executeUpdate();
+            stmt6.executeUpdate();
         }
     }
 
@@ -1154,8 +1943,7 @@ public class TokenDb {
     static StoredBlock getBlock(NetworkParameters params, Sha256Hash hash) throws SQLException {
         StoredBlock block = null;
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("SELECT bytes FROM " + BLOCK_TABLE
-                        + " WHERE blkid=?")) {
+                PreparedStatement stmt = conn.prepareStatement(blockQuery)) {
             stmt.setBytes(1, hash.getBytes());
             try (ResultSet rs = stmt.executeQuery()) {
                 if (rs.next()) {
@@ -1182,8 +1970,7 @@ public class TokenDb {
         StoredBlock block = null;
         try (Connection conn = getConnection();
                 PreparedStatement stmt1 = conn.prepareStatement("SELECT chain_head FROM " + CONTROL_TABLE);
-                PreparedStatement stmt2 = conn.prepareStatement("SELECT bytes FROM " + BLOCK_TABLE
-                        + " WHERE blkid=?")) {
+                PreparedStatement stmt2 = conn.prepareStatement(blockQuery)) {
             byte[] chainHead = null;
             try (ResultSet rs = stmt1.executeQuery()) {
                 if (rs.next()) {
@@ -1211,19 +1998,17 @@ public class TokenDb {
      * Store a block
      *
      * During a block chain reorganization, an existing block can be stored again if it
-     * is part of the new block chain.  We can't use MERGE instead of INSERT because
-     * PostgreSQL doesn't support it.  So we will attempt the INSERT first.  If it
-     * fails, we will verify that the block exists.  If the block exists, we will
-     * ignore the error since the block itself doesn't change as a result of a
-     * reorganization.
+     * is part of the new block chain.  The block itself doesn't change as a result of
+     * a reorganization, so the insert is idempotent: H2 uses MERGE and PostgreSQL
+     * uses INSERT with ON CONFLICT DO NOTHING.  This avoids a failed INSERT, which
+     * would abort an enclosing PostgreSQL transaction.
      *
      * @param   block           Block to store
      * @throws  SQLException    Error occurred
      */
     static void storeBlock(StoredBlock block) throws SQLException {
         try (Connection conn = getConnection();
-                PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + BLOCK_TABLE
-                        + " (blkid,bytes) VALUES(?,?)")) {
+                PreparedStatement stmt = conn.prepareStatement(blockInsert)) {
             byte[] bytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
             ByteBuffer buf = ByteBuffer.wrap(bytes);
             buf.order(ByteOrder.LITTLE_ENDIAN);
@@ -1231,23 +2016,32 @@ public class TokenDb {
             stmt.setBytes(1, block.getHeader().getHash().getBytes());
             stmt.setBytes(2, bytes);
             stmt.executeUpdate();
-        } catch (SQLException exc) {
-            boolean found = false;
-            try (Connection conn = getConnection();
-                    PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM " + BLOCK_TABLE
-                        + " WHERE blkid=?")) {
+        }
+    }
+
+    /**
+     * Store a batch of blocks
+     *
+     * The blocks are inserted using a single JDBC batch and blocks that are already
+     * stored are ignored.  The caller should start a database transaction so that
+     * the blocks are committed together.
+     *
+     * @param   blocks          Blocks to store
+     * @throws  SQLException    Error occurred
+     */
+    static void storeBlocks(Collection<StoredBlock> blocks) throws SQLException {
+        try (Connection conn = getConnection();
+                PreparedStatement stmt = conn.prepareStatement(blockInsert)) {
+            for (StoredBlock block : blocks) {
+                byte[] bytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+                ByteBuffer buf = ByteBuffer.wrap(bytes);
+                buf.order(ByteOrder.LITTLE_ENDIAN);
+                block.serializeCompact(buf);
                 stmt.setBytes(1, block.getHeader().getHash().getBytes());
-                try (ResultSet rs = stmt.executeQuery()) {
-                    if (rs.next()) {
-                        found = true;
-                    }
-                }
-            } catch (SQLException exc1) {
-                // Ignore this exception since we will throw the original exception
-            }
-            if (!found) {
-                throw exc;
+                stmt.setBytes(2, bytes);
+                stmt.addBatch();
             }
+            stmt.executeBatch();
         }
     }
 
@@ -1266,11 +2060,152 @@ public class TokenDb {
         }
     }
 
+    /**
+     * Get the number of parameters for an IN list
+     *
+     * The number of parameters is rounded up to a power of 2 so that just a few
+     * different statements are prepared.  The caller sets the unused parameters
+     * to the last value.
+     *
+     * @param   count           Number of values
+     * @return                  Number of parameters
+     */
+    private static int getInListSize(int count) {
+        int size = 1;
+        while (size < count) {
+            size <<= 1;
+        }
+        return size;
+    }
+
+    /**
+     * Get an IN list
+     *
+     * @param   size            Number of parameters
+     * @return                  IN list
+     */
+    private static String getInList(int size) {
+        StringBuilder sb = new StringBuilder(size * 2 + 1);
+        sb.append('(');
+        for (int i=0; i<size; i++) {
+            sb.append(i == 0 ? "?" : ",?");
+        }
+        sb.append(')');
+        return sb.toString();
+    }
+
+    /**
+     * Get the query for the unspent outputs for a set of transactions in a block
+     *
+     * @param   size            Number of transaction identifiers
+     * @return                  Query
+     */
+    static String getUnspentOutputsQuery(int size) {
+        return "SELECT * FROM " + UNSPENT_TABLE + " WHERE blkid=? AND txid IN " + getInList(size)
+                + " UNION ALL SELECT * FROM " + UNSPENT_HISTORY_TABLE + " WHERE blkid=? AND txid IN " + getInList(size);
+    }
+
+    /**
+     * Get the query for the accounts for a set of Bitcoin addresses
+     *
+     * @param   size            Number of Bitcoin addresses
+     * @return                  Query
+     */
+    static String getAccountsQuery(int size) {
+        return "SELECT * FROM " + ACCOUNT_TABLE + " WHERE bitcoin_address IN " + getInList(size);
+    }
+
+    /**
+     * Get the query for the stored Bitcoin transactions in a block
+     *
+     * @param   size            Number of transaction identifiers
+     * @return                  Query
+     */
+    static String getTransactionIdsQuery(int size) {
+        return "SELECT bitcoin_txid FROM " + BITCOIN_TABLE
+                + " WHERE bitcoin_blkid=? AND bitcoin_txid IN " + getInList(size)
+                + " UNION ALL SELECT bitcoin_txid FROM " + BITCOIN_HISTORY_TABLE
+                + " WHERE bitcoin_blkid=? AND bitcoin_txid IN " + getInList(size);
+    }
+
+    /**
+     * Get the query for a page of token transactions
+     *
+     * The first page is positioned with an OFFSET.  A following page starts after the
+     * height, timestamp and transaction identifier of the last row in the previous page.
+     *
+     * @param   exchanged       TRUE to include exchanged tokens
+     * @param   next            TRUE for a page following the first page
+     * @return                  Query
+     */
+    static String getTokensQuery(boolean exchanged, boolean next) {
+        String condition = "height>=? " + (next ? "AND (height,timestamp,nxt_txid)>(?,?,?) " : "");
+        return getPageQuery(NXT_TABLE, (exchanged ? NXT_HISTORY_TABLE : null),
+                (exchanged ? condition : condition + "AND exchanged=false "),
+                "ORDER BY height ASC,timestamp ASC,nxt_txid ASC ", next);
+    }
+
+    /**
+     * Get the query for a page of Bitcoin transactions
+     *
+     * The first page is positioned with an OFFSET.  A following page starts after the
+     * height, transaction identifier and address of the last row in the previous page.
+     *
+     * @param   address         TRUE to select transactions for a Bitcoin address
+     * @param   exchanged       TRUE to include processed transactions
+     * @param   next            TRUE for a page following the first page
+     * @return                  Query
+     */
+    static String getTransactionsQuery(boolean address, boolean exchanged, boolean next) {
+        String condition = "height>=? " + (address ? "AND bitcoin_address=? " : "")
+                + (next ? "AND (height,bitcoin_txid,bitcoin_address)>(?,?,?) " : "");
+        return getPageQuery(BITCOIN_TABLE, (exchanged ? BITCOIN_HISTORY_TABLE : null),
+                (exchanged ? condition : condition + "AND exchanged=false "),
+                "ORDER BY height ASC,bitcoin_txid ASC,bitcoin_address ASC ", next);
+    }
+
+    /**
+     * Get the query for a page of rows
+     *
+     * The rows in the history table are included when a history table is specified.
+     * A following page reads at most PAGE_SIZE rows from each table, so the database
+     * merges two index ranges instead of sorting every remaining row.
+     *
+     * @param   table           Table name
+     * @param   historyTable    History table name or null
+     * @param   condition       Selection condition for each table
+     * @param   order           ORDER BY clause
+     * @param   next            TRUE for a page following the first page
+     * @return                  Query
+     */
+    private static String getPageQuery(String table, String historyTable, String condition,
+                                String order, boolean next) {
+        String from;
+        if (historyTable == null) {
+            from = table + " WHERE " + condition;
+        } else if (next) {
+            from = "((SELECT * FROM " + table + " WHERE " + condition + order + "LIMIT " + PAGE_SIZE
+                    + ") UNION ALL (SELECT * FROM " + historyTable + " WHERE " + condition + order
+                    + "LIMIT " + PAGE_SIZE + ")) AS t ";
+        } else {
+            from = "(SELECT * FROM " + table + " WHERE " + condition
+                    + "UNION ALL SELECT * FROM " + historyTable + " WHERE " + condition + ") AS t ";
+        }
+        return "SELECT * FROM " + from + order + "LIMIT ?" + (next ? "" : " OFFSET ?");
+    }
+
     /**
      * Get a database connection
      *
+     * The transaction connection is returned if the current thread has started a
+     * database transaction.  Otherwise, a thread that already holds a connection
+     * gets the same connection again and the connection is returned to the pool
+     * when it has been closed as many times as it was obtained.  A thread never
+     * holds more than one pooled connection, so nested calls cannot deadlock
+     * when the pool is exhausted.
+     *
      * @return                  Database connection
-     * @throws  SQLException    Error occurred
+     * @throws  SQLException    Error occurred or timed out waiting for a connection
      */
     static Connection getConnection() throws SQLException {
         Connection conn;
@@ -1282,15 +2217,15 @@ public class TokenDb {
             case POSTGRESQL:
                 conn = localConnection.get();
                 if (conn == null) {
-                    synchronized(allConnections) {
-                        if (!cachedConnections.isEmpty()) {
-                            conn = cachedConnections.remove(cachedConnections.size() - 1);
-                        } else {
-                            conn = new DbConnection(DriverManager.getConnection(dbURL, dbUser, dbPassword));
-                            allConnections.add((DbConnection)conn);
-                            Logger.logDebugMessage("TokenExchange connection pool size: " + allConnections.size());
-                        }
+                    DbConnection threadConn = threadConnection.get();
+                    if (threadConn != null) {
+                        threadConn.useCount++;
+                    } else {
+                        threadConn = borrowConnection();
+                        threadConn.useCount = 1;
+                        threadConnection.set(threadConn);
                     }
+                    conn = threadConn;
                 }
                 break;
             default:
@@ -1299,6 +2234,253 @@ public class TokenDb {
         return conn;
     }
 
+    /**
+     * Borrow a connection from the connection pool
+     *
+     * The most recently used idle connection is returned if one is available.
+     * A connection that has been idle for a while is validated before it is
+     * returned and is discarded if it is no longer usable.  A new connection is
+     * created if there are no idle connections.  Threads wait in arrival order
+     * when the maximum number of connections are in use.
+     *
+     * @return                  Database connection
+     * @throws  SQLException    No connection available or unable to create a connection
+     */
+    private static DbConnection borrowConnection() throws SQLException {
+        long startTime = System.nanoTime();
+        try {
+            if (!poolPermits.tryAcquire(poolBorrowTimeout, TimeUnit.MILLISECONDS)) {
+                throw new SQLException("Timed out waiting for a database connection");
+            }
+        } catch (InterruptedException exc) {
+            Thread.currentThread().interrupt();
+            throw new SQLException("Interrupted while waiting for a database connection", exc);
+        }
+        DbConnection conn = null;
+        try {
+            while (conn == null) {
+                conn = idleConnections.pollFirst();
+                if (conn == null) {
+                    conn = createConnection();
+                } else if (System.currentTimeMillis() - conn.lastUsedTime > POOL_VALIDATION_INTERVAL &&
+                        !conn.isValid(5)) {
+                    Logger.logDebugMessage("Discarding TokenExchange database connection that is no longer valid");
+                    discardConnection(conn);
+                    conn = null;
+                }
+            }
+        } catch (SQLException exc) {
+            poolPermits.release();
+            throw exc;
+        }
+        conn.borrowed.set(true);
+        activeConnections.incrementAndGet();
+        long elapsed = System.nanoTime() - startTime;
+        borrowCount.incrementAndGet();
+        borrowTime.addAndGet(elapsed);
+        maxBorrowTime.accumulateAndGet(elapsed, Math::max);
+        return conn;
+    }
+
+    /**
+     * Return a connection to the connection pool
+     *
+     * Idle connections that have exceeded the idle timeout are closed as long as
+     * the minimum pool size is maintained.
+     *
+     * @param   conn            Database connection
+     */
+    private static void releaseConnection(DbConnection conn) {
+        activeConnections.decrementAndGet();
+        try {
+            conn.resetAutoCommit();
+            conn.lastUsedTime = System.currentTimeMillis();
+            idleConnections.offerFirst(conn);
+        } catch (SQLException exc) {
+            Logger.logDebugMessage("Discarding TokenExchange database connection: " + exc.getMessage());
+            discardConnection(conn);
+        }
+        poolPermits.release();
+        long evictTime = System.currentTimeMillis() - poolIdleTimeout;
+        while (allConnections.size() > poolMinSize) {
+            DbConnection idleConn = idleConnections.peekLast();
+            if (idleConn == null || idleConn.lastUsedTime > evictTime || !idleConnections.remove(idleConn)) {
+                break;
+            }
+            discardConnection(idleConn);
+        }
+    }
+
+    /**
+     * Create a new pooled connection
+     *
+     * @return                  Database connection
+     * @throws  SQLException    Unable to create the connection
+     */
+    private static DbConnection createConnection() throws SQLException {
+        DbConnection conn = new DbConnection(DriverManager.getConnection(dbURL, dbUser, dbPassword));
+        allConnections.add(conn);
+        Logger.logDebugMessage("TokenExchange connection pool size: " + allConnections.size());
+        return conn;
+    }
+
+    /**
+     * Close a pooled connection and remove it from the connection pool
+     *
+     * @param   conn            Database connection
+     */
+    private static void discardConnection(DbConnection conn) {
+        allConnections.remove(conn);
+        try {
+            conn.doClose();
+        } catch (SQLException exc) {
+            // Ignore since the connection is being discarded
+        }
+    }
+
+    /**
+     * Get the number of connections in use
+     *
+     * @return                  Number of active connections
+     */
+    static int getActiveConnections() {
+        return activeConnections.get();
+    }
+
+    /**
+     * Get the number of idle connections
+     *
+     * @return                  Number of idle connections
+     */
+    static int getIdleConnections() {
+        return idleConnections.size();
+    }
+
+    /**
+     * Get the number of threads waiting for a connection
+     *
+     * @return                  Number of waiting threads
+     */
+    static int getConnectionWaiters() {
+        return (poolPermits != null ? poolPermits.getQueueLength() : 0);
+    }
+
+    /**
+     * Get the average connection borrow time
+     *
+     * @return                  Average borrow time (microseconds)
+     */
+    static long getAverageBorrowTime() {
+        long count = borrowCount.get();
+        return (count != 0 ? borrowTime.get() / count / 1000 : 0);
+    }
+
+    /**
+     * Get the maximum connection borrow time
+     *
+     * @return                  Maximum borrow time (microseconds)
+     */
+    static long getMaximumBorrowTime() {
+        return maxBorrowTime.get() / 1000;
+    }
+
+    /**
+     * Get the number of prepared statement cache hits
+     *
+     * @return                  Number of cache hits
+     */
+    static long getStatementCacheHits() {
+        return statementCacheHits.get();
+    }
+
+    /**
+     * Get the number of prepared statement cache misses
+     *
+     * @return                  Number of cache misses
+     */
+    static long getStatementCacheMisses() {
+        return statementCacheMisses.get();
+    }
+
+    /**
+     * Queue a database write
+     *
+     * The write is performed later by the database writer thread and is not part of
+     * a database transaction started by the caller.  The caller waits if the write
+     * queue is full.  The write is performed immediately if the write queue has
+     * not been started.  A required write is retried until it succeeds while an
+     * optional write is discarded after repeated failures.
+     *
+     * @param   write           Database write
+     * @param   required        TRUE if the write must not be discarded
+     * @throws  SQLException    Error occurred
+     */
+    static void queueWrite(DbWriteQueue.DbWrite write, boolean required) throws SQLException {
+        DbWriteQueue queue = writeQueue;
+        if (queue != null) {
+            queue.add(write, required);
+        } else {
+            write.write();
+        }
+    }
+
+    /**
+     * Wait until all database writes queued before this call have been committed
+     *
+     * Optional writes that fail repeatedly are discarded, so a failing optional
+     * write does not block the caller.  An exception is thrown if a required
+     * write has failed.
+     *
+     * @throws  SQLException    Database writer has stopped, a required write has failed
+     *                          or the wait was interrupted
+     */
+    static void flushWrites() throws SQLException {
+        DbWriteQueue queue = writeQueue;
+        if (queue != null) {
+            queue.flush();
+        }
+    }
+
+    /**
+     * Get the number of queued database writes
+     *
+     * @return                  Number of queued writes
+     */
+    static int getQueuedWrites() {
+        DbWriteQueue queue = writeQueue;
+        return (queue != null ? queue.getQueueSize() : 0);
+    }
+
+    /**
+     * Get the number of database transactions used for queued writes
+     *
+     * @return                  Number of database transactions
+     */
+    static long getWriteGroups() {
+        DbWriteQueue queue = writeQueue;
+        return (queue != null ? queue.getGroupCount() : 0);
+    }
+
+    /**
+     * Get the number of database writes discarded after repeated failures
+     *
+     * @return                  Discard count
+     */
+    static long getDiscardedWrites() {
+        DbWriteQueue queue = writeQueue;
+        return (queue != null ? queue.getDiscardCount() : 0);
+    }
+
+    /**
+     * Get the number of times a caller waited for space in the write queue
+     *
+     * @return                  Wait count
+     */
+    static long getWriteWaits() {
+        DbWriteQueue queue = writeQueue;
+        return (queue != null ? queue.getWaitCount() : 0);
+    }
+
     /**
      * Check if a database transaction has been started
      *
@@ -1410,24 +2592,100 @@ public class TokenDb {
                     break;
                 case H2:
                 case POSTGRESQL:
-                    Connection conn = localConnection.get();
+                    DbConnection conn = localConnection.get();
                     if (conn == null) {
                         throw new IllegalStateException("Transaction not started");
                     }
-                    conn.setAutoCommit(true);
                     localConnection.set(null);
-                    synchronized(allConnections) {
-                        cachedConnections.add((DbConnection)conn);
+                    if (conn.useCount > 1) {
+                        conn.resetAutoCommit();
                     }
+                    conn.close();
                     break;
                 default:
                     throw new UnsupportedOperationException("Unsupported database type");
             }
         } catch (Exception exc) {
             Logger.logErrorMessage("Unable to end database transaction", exc);
+        } finally {
+            List<Runnable> invalidations = transactionInvalidations.get();
+            if (!invalidations.isEmpty()) {
+                invalidations.forEach(Runnable::run);
+                invalidations.clear();
+            }
         }
     }
 
+    /**
+     * Invalidate cache entries after a database change
+     *
+     * The invalidation is done immediately and is repeated when the current database
+     * transaction ends.  A lookup by another thread cannot see the change until
+     * the transaction is committed and could otherwise cache the old database contents.
+     *
+     * @param   invalidation    Cache invalidation
+     */
+    private static void invalidateCache(Runnable invalidation) {
+        invalidation.run();
+        if (isInTransaction()) {
+            transactionInvalidations.get().add(invalidation);
+        }
+    }
+
+    /**
+     * Get the number of cached Bitcoin addresses
+     *
+     * @return                  Number of address entries (including unknown addresses)
+     */
+    static int getAccountCacheAddresses() {
+        return accountCache.getAddressCount();
+    }
+
+    /**
+     * Get the number of cached Nxt accounts
+     *
+     * @return                  Number of account entries
+     */
+    static int getAccountCacheAccounts() {
+        return accountCache.getAccountCount();
+    }
+
+    /**
+     * Get the number of account cache hits
+     *
+     * @return                  Number of cache hits
+     */
+    static long getAccountCacheHits() {
+        return accountCache.getHits();
+    }
+
+    /**
+     * Get the number of account cache hits for unknown addresses
+     *
+     * @return                  Number of negative cache hits
+     */
+    static long getAccountCacheNegativeHits() {
+        return accountCache.getNegativeHits();
+    }
+
+    /**
+     * Get the number of account cache misses
+     *
+     * @return                  Number of cache misses
+     */
+    static long getAccountCacheMisses() {
+        return accountCache.getMisses();
+    }
+
+    /**
+     * Get the number of account cache evictions
+     *
+     * @return                  Number of evictions
+     */
+    static long getAccountCacheEvictions() {
+        return accountCache.getEvictions();
+    }
+
     /**
      * Filtered factory
      *
@@ -1447,15 +2705,118 @@ public class TokenDb {
         }
     }
 
+    /**
+     * Query parameters for a paged query
+     *
+     * @param   <T>             Row type
+     */
+    @FunctionalInterface
+    private interface QueryParameters<T> {
+
+        /**
+         * Set the query parameters
+         *
+         * @param   stmt            Prepared statement
+         * @param   last            Last row in the previous page or null for the first page
+         * @return                  Index of the next parameter
+         * @throws  SQLException    Error occurred
+         */
+        int set(PreparedStatement stmt, T last) throws SQLException;
+    }
+
+    /**
+     * Row reader for a paged query
+     *
+     * @param   <T>             Row type
+     */
+    @FunctionalInterface
+    private interface RowReader<T> {
+
+        /**
+         * Create a row from the current result set row
+         *
+         * @param   rs              Result set
+         * @return                  Row
+         * @throws  SQLException    Error occurred
+         */
+        T read(ResultSet rs) throws SQLException;
+    }
+
+    /**
+     * Statements used to move rows to a history table
+     */
+    static class ArchiveStatements {
+
+        /** Get the lowest block height containing a matching row */
+        final String heightQuery;
+
+        /** Copy the matching rows to the history table */
+        final String copyInsert;
+
+        /** Delete the matching rows that were copied */
+        final String rowDelete;
+
+        /**
+         * Create the archive statements
+         *
+         * @param   table           Table name
+         * @param   historyTable    History table name
+         * @param   condition       Row selection condition
+         * @param   keyMatch        Condition matching a history row 'h' to a table row 't'
+         */
+        private ArchiveStatements(String table, String historyTable, String condition, String keyMatch) {
+            heightQuery = "SELECT MIN(height) AS height FROM " + table
+                    + " WHERE " + condition + " AND height>0 AND height<=?";
+            copyInsert = "INSERT INTO " + historyTable
+                    + " SELECT * FROM " + table + " WHERE " + condition + " AND height>=? AND height<=?";
+            rowDelete = "DELETE FROM " + table + " t WHERE "
+                    + condition + " AND height>=? AND height<=? AND EXISTS (SELECT 1 FROM "
+                    + historyTable + " h WHERE " + keyMatch + ")";
+        }
+    }
+
     /**
      * Database connection
      *
      * Wrap the JDBC connection so that we can intercept some of the methods.
      * The connection can be used in auto-commit mode or as part of a database
      * transaction.
+     *
+     * Prepared statements are cached by SQL text.  A cached statement is removed
+     * from the cache while it is in use and is returned to the cache when it is
+     * closed.  The least recently used statement is closed when the cache is full.
+     * A connection is used by a single thread at a time, so the cache is not
+     * synchronized.
+     *
+     * Closing a borrowed connection returns it to the connection pool once it has
+     * been closed as many times as it was obtained by the thread.  Closing the
+     * connection again does nothing, so the connection cannot be added to the idle
+     * connections twice.
      */
     private static class DbConnection extends FilteredConnection {
 
+        /** Time the connection was returned to the connection pool */
+        private volatile long lastUsedTime = System.currentTimeMillis();
+
+        /** Connection has been borrowed and has not been returned to the connection pool */
+        private final AtomicBoolean borrowed = new AtomicBoolean();
+
+        /** Number of times the borrowing thread has obtained the connection and not closed it */
+        private int useCount;
+
+        /** Prepared statement cache */
+        private final LinkedHashMap<String, CachedStatement> statementCache =
+                new LinkedHashMap<String, CachedStatement>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedStatement> eldest) {
+                if (size() <= statementCacheSize) {
+                    return false;
+                }
+                eldest.getValue().doClose();
+                return true;
+            }
+        };
+
         private DbConnection(Connection conn) {
             super(conn, dbFactory);
         }
@@ -1471,17 +2832,116 @@ public class TokenDb {
         @Override
         public void close() throws SQLException {
             if (localConnection.get() == null) {
-                synchronized(allConnections) {
-                    super.setAutoCommit(true);
-                    cachedConnections.add(this);
+                if (threadConnection.get() == this) {
+                    if (--useCount > 0) {
+                        return;
+                    }
+                    threadConnection.remove();
+                }
+                if (borrowed.compareAndSet(true, false)) {
+                    releaseConnection(this);
                 }
             } else if (this != localConnection.get()) {
                 throw new IllegalStateException("Previous transaction not ended");
             }
         }
 
+        @Override
+        public PreparedStatement prepareStatement(String sql) throws SQLException {
+            CachedStatement stmt = statementCache.remove(sql);
+            if (stmt != null) {
+                statementCacheHits.incrementAndGet();
+                stmt.released = false;
+                return stmt;
+            }
+            statementCacheMisses.incrementAndGet();
+            return new CachedStatement(this, super.prepareStatement(sql), sql);
+        }
+
+        private void releaseStatement(CachedStatement stmt) {
+            if (stmt.released) {
+                return;
+            }
+            stmt.released = true;
+            if (statementCache.containsKey(stmt.sql)) {
+                stmt.doClose();
+                return;
+            }
+            try {
+                stmt.clearParameters();
+                stmt.clearBatch();
+                stmt.resetSettings();
+                statementCache.put(stmt.sql, stmt);
+            } catch (SQLException exc) {
+                stmt.doClose();
+            }
+        }
+
+        private void resetAutoCommit() throws SQLException {
+            super.setAutoCommit(true);
+        }
+
         public void doClose() throws SQLException {
+            statementCache.clear();
             super.close();
         }
     }
+
+    /**
+     * Cached prepared statement
+     *
+     * Closing the statement returns it to the statement cache for the connection.
+     * The fetch size, maximum rows and query timeout are restored to their initial
+     * values so they do not carry over to the next user of the statement.  Closing
+     * the statement again does nothing, so a statement that is back in the cache
+     * or in use by another caller is not affected.
+     */
+    private static class CachedStatement extends FilteredPreparedStatement {
+
+        private final DbConnection conn;
+
+        private final String sql;
+
+        private final int fetchSize;
+
+        private final int maxRows;
+
+        private final int queryTimeout;
+
+        private boolean released;
+
+        private CachedStatement(DbConnection conn, PreparedStatement stmt, String sql) throws SQLException {
+            super(stmt, sql);
+            this.conn = conn;
+            this.sql = sql;
+            this.fetchSize = stmt.getFetchSize();
+            this.maxRows = stmt.getMaxRows();
+            this.queryTimeout = stmt.getQueryTimeout();
+        }
+
+        private void resetSettings() throws SQLException {
+            if (getFetchSize() != fetchSize) {
+                setFetchSize(fetchSize);
+            }
+            if (getMaxRows() != maxRows) {
+                setMaxRows(maxRows);
+            }
+            if (getQueryTimeout() != queryTimeout) {
+                setQueryTimeout(queryTimeout);
+            }
+        }
+
+        @Override
+        public void close() throws SQLException {
+            conn.releaseStatement(this);
+        }
+
+        private void doClose() {
+            try {
+                super.close();
+            } catch (SQLException exc) {
+                // Ignore since the statement is being discarded
+            }
+        }
+    }
 }
@@ -27,8 +27,6 @@ import nxt.crypto.EncryptedData;
 import nxt.util.Convert;
 import nxt.util.Logger;
 
-import org.bitcoinj.core.Address;
-
 import java.math.BigDecimal;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
@@ -241,16 +239,23 @@ public class TokenListener implements Runnable {
                 if (!TokenAddon.isSuspended() && !blockchainProcessor.isScanning()) {
                     blockchain.readLock();
                     try {
+                        //
+                        // Up to 'bitcoinPayoutBatchSize' redemptions are sent using a single
+                        // Bitcoin transaction.  The batch is reduced if the estimated transaction
+                        // size exceeds the maximum transaction size.
+                        //
                         List<TokenTransaction> tokenList = TokenDb.getPendingTokens(blockchain.getHeight() - TokenAddon.nxtConfirmations);
-                        for (TokenTransaction token : tokenList) {
-                            String address = token.getBitcoinAddress();
-                            Address toAddress = Address.fromBase58(BitcoinWallet.getNetworkParameters(), address);
-                            BigDecimal amount = BigDecimal.valueOf(token.getBitcoinAmount(), 8);
-                            String txString = BitcoinWallet.sendCoins(toAddress, amount);
-                            token.setExchanged(Convert.parseHexString(txString));
-                            TokenDb.updateToken(token);
-                            Logger.logInfoMessage("Sent " + amount.stripTrailingZeros().toPlainString()
-                                    + " BTC to " + address);
+                        int batchSize = TokenAddon.bitcoinPayoutBatchSize;
+                        for (int start=0; start<tokenList.size(); ) {
+                            List<TokenTransaction> batch = tokenList.subList(start, Math.min(start + batchSize, tokenList.size()));
+                            batch = batch.subList(0, BitcoinWallet.getPayoutCount(batch));
+                            start += batch.size();
+                            String txString = BitcoinWallet.sendTokens(batch);
+                            for (TokenTransaction token : batch) {
+                                BigDecimal amount = BigDecimal.valueOf(token.getBitcoinAmount(), 8);
+                                Logger.logInfoMessage("Sent " + amount.stripTrailingZeros().toPlainString()
+                                        + " BTC to " + token.getBitcoinAddress() + " in transaction " + txString);
+                            }
                         }
                     } catch (Exception exc) {
                         Logger.logErrorMessage("Unable to send Bitcoins", exc);
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import org.bitcoinj.core.ECKey;
+import org.bitcoinj.core.Sha256Hash;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coin selection benchmark
+ *
+ * Each strategy is run against synthetic unspent output sets for a range of payout
+ * amounts.  The report shows the average number of inputs, the average fee, the average
+ * selection time and the average time to sign the inputs.  Signing dominates the cost
+ * of a wallet with many small outputs, so the number of inputs is the figure to compare.
+ *
+ * This is not a unit test and is not run by the build.  Run it after the test classes
+ * have been compiled:
+ *
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt;
+ *        org.ScripterRon.TokenExchange.BitcoinCoinSelectorBenchmark [iterations]
+ */
+public class BitcoinCoinSelectorBenchmark {
+
+    /** Default number of iterations for each payout amount */
+    private static final int DEFAULT_ITERATIONS = 100;
+
+    /** Number of unspent outputs in each set */
+    private static final int SET_SIZE = 500;
+
+    /** Payout amounts (satoshis) */
+    private static final long[] AMOUNTS = {50000L, 500000L, 5000000L, 50000000L};
+
+    /**
+     * Run the benchmark
+     *
+     * @param   args            Number of iterations (optional)
+     */
+    public static void main(String[] args) {
+        int iterations = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_ITERATIONS);
+        TokenAddon.bitcoinTxFee = new BigDecimal("0.0001");
+        ECKey key = new ECKey();
+        for (Distribution distribution : Distribution.values()) {
+            System.out.println(distribution + " outputs, " + SET_SIZE + " outputs per set, "
+                    + iterations + " iterations");
+            System.out.println(String.format("%-18s %12s %8s %10s %12s %12s",
+                    "Strategy", "Amount", "Inputs", "Fee", "Select(us)", "Sign(us)"));
+            for (long amount : AMOUNTS) {
+                for (BitcoinCoinSelector.Strategy strategy : BitcoinCoinSelector.Strategy.values()) {
+                    Random random = new Random(amount);
+                    long inputCount = 0, fee = 0, selectTime = 0, signTime = 0;
+                    int count = 0;
+                    for (int i=0; i<iterations; i++) {
+                        BitcoinUnspentSet unspentOutputs =
+                                BitcoinCoinSelectorTest.createSet(distribution.generate(random, SET_SIZE));
+                        long start = System.nanoTime();
+                        List<BitcoinUnspent> selected = strategy.select(unspentOutputs, amount, 1);
+                        selectTime += System.nanoTime() - start;
+                        if (selected.isEmpty()) {
+                            continue;
+                        }
+                        start = System.nanoTime();
+                        for (BitcoinUnspent unspent : selected) {
+                            key.sign(Sha256Hash.of(ByteBuffer.allocate(40)
+                                    .put(unspent.getId()).putLong(unspent.getAmount()).array()));
+                        }
+                        signTime += System.nanoTime() - start;
+                        inputCount += selected.size();
+                        long change = BitcoinCoinSelectorTest.getTotal(selected) - amount
+                                - BitcoinCoinSelector.getFee(selected.size(), 2);
+                        fee += BitcoinCoinSelector.getFee(selected.size(), (change > 0 ? 2 : 1));
+                        count++;
+                    }
+                    if (count == 0) {
+                        System.out.println(String.format("%-18s %12d %8s", strategy, amount, "none"));
+                        continue;
+                    }
+                    System.out.println(String.format("%-18s %12d %8.2f %10d %12.1f %12.1f",
+                            strategy, amount, (double)inputCount / count, fee / count,
+                            selectTime / 1000.0 / iterations, signTime / 1000.0 / count));
+                }
+            }
+            System.out.println();
+        }
+    }
+
+    /**
+     * Unspent output amount distributions
+     */
+    private enum Distribution {
+
+        /** Amounts between 0.0001 and 0.1 BTC */
+        UNIFORM {
+            @Override
+            long[] generate(Random random, int size) {
+                long[] amounts = new long[size];
+                for (int i=0; i<size; i++) {
+                    amounts[i] = 10000L + (long)(random.nextDouble() * 10000000L);
+                }
+                return amounts;
+            }
+        },
+
+        /** Amounts centered around 0.001 BTC with a long tail */
+        LOGNORMAL {
+            @Override
+            long[] generate(Random random, int size) {
+                long[] amounts = new long[size];
+                for (int i=0; i<size; i++) {
+                    amounts[i] = Math.max(1000L, (long)Math.exp(11.5 + 1.5 * random.nextGaussian()));
+                }
+                return amounts;
+            }
+        },
+
+        /** Mostly small deposits with a few large outputs */
+        FRAGMENTED {
+            @Override
+            long[] generate(Random random, int size) {
+                long[] amounts = new long[size];
+                for (int i=0; i<size; i++) {
+                    amounts[i] = (i % 50 == 0 ? 20000000L : 2000L + random.nextInt(20000));
+                }
+                return amounts;
+            }
+        };
+
+        /**
+         * Generate output amounts
+         *
+         * @param   random          Random number generator
+         * @param   size            Number of outputs
+         * @return                  Output amounts
+         */
+        abstract long[] generate(Random random, int size);
+    }
+}
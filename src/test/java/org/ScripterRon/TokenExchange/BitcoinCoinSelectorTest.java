@@ -0,0 +1,224 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import org.bitcoinj.core.Transaction;
+import org.bitcoinj.crypto.ChildNumber;
+
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Coin selection strategy tests
+ */
+public class BitcoinCoinSelectorTest {
+
+    /** Next transaction identifier */
+    private static int nextId;
+
+    /**
+     * Set the transaction fee
+     */
+    @BeforeClass
+    public static void init() {
+        TokenAddon.bitcoinTxFee = new BigDecimal("0.0001");
+    }
+
+    /**
+     * Branch-and-bound selects the outputs that match the amount plus the fee
+     * without a change output
+     */
+    @Test
+    public void branchAndBoundExactMatch() {
+        BitcoinUnspentSet unspentOutputs = createSet(1000000, 3000000, 7500000, 20000000);
+        long amount = 3000000 + 7500000 - 2 * BitcoinCoinSelector.getFee(BitcoinCoinSelector.TX_INPUT_SIZE)
+                - BitcoinCoinSelector.getFee(0, 1);
+        List<BitcoinUnspent> selected =
+                BitcoinCoinSelector.Strategy.BRANCH_AND_BOUND.select(unspentOutputs, amount, 1);
+        assertEquals(Arrays.asList(7500000L, 3000000L), getAmounts(selected));
+        long excess = getTotal(selected) - amount - BitcoinCoinSelector.getFee(selected.size(), 1);
+        assertTrue("Excess " + excess + " would create a change output",
+                excess >= 0 && excess < BitcoinCoinSelector.getFee(BitcoinCoinSelector.TX_OUTPUT_SIZE)
+                        + Transaction.MIN_NONDUST_OUTPUT.getValue());
+    }
+
+    /**
+     * Branch-and-bound uses the smallest-first strategy when there is no match
+     */
+    @Test
+    public void branchAndBoundFallback() {
+        BitcoinUnspentSet unspentOutputs = createSet(1000000, 2000000, 5000000);
+        long amount = 1500000;
+        List<BitcoinUnspent> selected =
+                BitcoinCoinSelector.Strategy.BRANCH_AND_BOUND.select(unspentOutputs, amount, 1);
+        List<BitcoinUnspent> smallest =
+                BitcoinCoinSelector.Strategy.SMALLEST_FIRST.select(unspentOutputs, amount, 1);
+        assertEquals(getAmounts(smallest), getAmounts(selected));
+        assertEquals(Arrays.asList(1000000L, 2000000L), getAmounts(selected));
+        assertTrue(getTotal(selected) >= amount + BitcoinCoinSelector.getFee(selected.size(), 2));
+    }
+
+    /**
+     * Smallest-first selects the smallest outputs in ascending order and stops
+     * when the amount plus the fee is covered
+     */
+    @Test
+    public void smallestFirstOrdering() {
+        List<Long> amounts = new ArrayList<>();
+        for (int i=1; i<=50; i++) {
+            amounts.add(i * 100000L);
+        }
+        Collections.shuffle(amounts, new Random(1));
+        BitcoinUnspentSet unspentOutputs = createSet(amounts.stream().mapToLong(Long::longValue).toArray());
+        long amount = 2000000;
+        List<BitcoinUnspent> selected =
+                BitcoinCoinSelector.Strategy.SMALLEST_FIRST.select(unspentOutputs, amount, 1);
+        List<Long> expected = new ArrayList<>();
+        for (int i=1; i<=selected.size(); i++) {
+            expected.add(i * 100000L);
+        }
+        assertEquals(expected, getAmounts(selected));
+        assertTrue(getTotal(selected) >= amount + BitcoinCoinSelector.getFee(selected.size(), 2));
+        long previous = getTotal(selected) - selected.get(selected.size() - 1).getAmount();
+        assertTrue(previous < amount + BitcoinCoinSelector.getFee(selected.size() - 1, 2));
+    }
+
+    /**
+     * Largest-first selects the largest outputs in descending order and stops
+     * when the amount plus the fee is covered
+     */
+    @Test
+    public void largestFirstOrdering() {
+        List<Long> amounts = new ArrayList<>();
+        for (int i=1; i<=50; i++) {
+            amounts.add(i * 100000L);
+        }
+        Collections.shuffle(amounts, new Random(2));
+        BitcoinUnspentSet unspentOutputs = createSet(amounts.stream().mapToLong(Long::longValue).toArray());
+        long amount = 12000000;
+        List<BitcoinUnspent> selected =
+                BitcoinCoinSelector.Strategy.LARGEST_FIRST.select(unspentOutputs, amount, 1);
+        assertEquals(Arrays.asList(5000000L, 4900000L, 4800000L), getAmounts(selected));
+        assertTrue(getTotal(selected) >= amount + BitcoinCoinSelector.getFee(selected.size(), 2));
+        long previous = getTotal(selected) - selected.get(selected.size() - 1).getAmount();
+        assertTrue(previous < amount + BitcoinCoinSelector.getFee(selected.size() - 1, 2));
+    }
+
+    /**
+     * Consolidation adds the smallest outputs beyond the amount plus the fee and
+     * stops at the maximum number of inputs
+     */
+    @Test
+    public void consolidateInputLimit() {
+        long[] amounts = new long[150];
+        for (int i=0; i<amounts.length; i++) {
+            amounts[i] = (amounts.length - i) * 100000L;
+        }
+        BitcoinUnspentSet unspentOutputs = createSet(amounts);
+        long amount = 200000;
+        List<BitcoinUnspent> selected =
+                BitcoinCoinSelector.Strategy.CONSOLIDATE.select(unspentOutputs, amount, 1);
+        List<Long> expected = new ArrayList<>();
+        for (int i=1; i<=100; i++) {
+            expected.add(i * 100000L);
+        }
+        assertEquals(expected, getAmounts(selected));
+        assertTrue(getTotal(selected) >= amount + BitcoinCoinSelector.getFee(selected.size(), 2));
+    }
+
+    /**
+     * Consolidation does not add an output that costs more to spend than it is worth
+     */
+    @Test
+    public void consolidateSkipsUneconomicOutputs() {
+        long inputFee = BitcoinCoinSelector.getFee(BitcoinCoinSelector.TX_INPUT_SIZE);
+        BitcoinUnspentSet unspentOutputs = createSet(inputFee / 2, inputFee, 100000, 200000, 300000);
+        long amount = 150000;
+        List<BitcoinUnspent> selected =
+                BitcoinCoinSelector.Strategy.CONSOLIDATE.select(unspentOutputs, amount, 1);
+        assertEquals(Arrays.asList(100000L, 200000L, 300000L), getAmounts(selected));
+        assertTrue(getTotal(selected) >= amount + BitcoinCoinSelector.getFee(selected.size(), 2));
+    }
+
+    /**
+     * Each strategy returns outputs that do not cover the amount plus the fee when
+     * the wallet does not have enough funds
+     */
+    @Test
+    public void insufficientFunds() {
+        long amount = 1000000;
+        for (BitcoinCoinSelector.Strategy strategy : BitcoinCoinSelector.Strategy.values()) {
+            BitcoinUnspentSet unspentOutputs = createSet(100000, 200000, 300000);
+            List<BitcoinUnspent> selected = strategy.select(unspentOutputs, amount, 1);
+            assertTrue(strategy + " covered the amount",
+                    getTotal(selected) < amount + BitcoinCoinSelector.getFee(selected.size(), 1));
+        }
+    }
+
+    /**
+     * Create an unspent output set
+     *
+     * @param   amounts         Output amounts
+     * @return                  Unspent output set
+     */
+    static BitcoinUnspentSet createSet(long... amounts) {
+        BitcoinUnspentSet unspentOutputs = new BitcoinUnspentSet();
+        List<BitcoinUnspent> unspentList = new ArrayList<>(amounts.length);
+        for (long amount : amounts) {
+            byte[] txid = new byte[32];
+            int id = ++nextId;
+            for (int i=0; i<4; i++) {
+                txid[i] = (byte)(id >>> (i * 8));
+            }
+            unspentList.add(new BitcoinUnspent(txid, 0, new byte[32], amount, 1,
+                    new ChildNumber(id), new ChildNumber(0)));
+        }
+        unspentOutputs.load(unspentList);
+        return unspentOutputs;
+    }
+
+    /**
+     * Get the amounts of the selected outputs
+     *
+     * @param   selected        Selected outputs
+     * @return                  Amounts in selection order
+     */
+    private static List<Long> getAmounts(List<BitcoinUnspent> selected) {
+        List<Long> amounts = new ArrayList<>(selected.size());
+        selected.forEach((unspent) -> amounts.add(unspent.getAmount()));
+        return amounts;
+    }
+
+    /**
+     * Get the total amount of the selected outputs
+     *
+     * @param   selected        Selected outputs
+     * @return                  Total amount
+     */
+    static long getTotal(List<BitcoinUnspent> selected) {
+        return selected.stream().mapToLong(BitcoinUnspent::getAmount).sum();
+    }
+}
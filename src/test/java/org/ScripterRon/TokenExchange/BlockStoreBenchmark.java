@@ -0,0 +1,203 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import org.bitcoinj.core.StoredBlock;
+
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Block store benchmark
+ *
+ * A block chain reorganization stores block headers that are already in the block
+ * table.  This benchmark replays a number of stored headers and compares the time
+ * taken by the previous block store (INSERT, then SELECT on a second connection to
+ * confirm the duplicate after the INSERT fails) with the dialect-aware upsert used
+ * by TokenDb.storeBlock() (MERGE on H2, INSERT ... ON CONFLICT DO NOTHING on
+ * PostgreSQL) and by TokenDb.storeBlocks() (the same statement in a JDBC batch).
+ *
+ * The headers are replayed outside a database transaction since the previous block
+ * store aborts an enclosing PostgreSQL transaction.  An in-memory H2 database is used
+ * unless the 'tokenexchange.test.postgresql' system property is set to a database URL
+ * ('tokenexchange.test.user' and 'tokenexchange.test.password' provide the credentials).
+ *
+ * This is not a unit test and is not run by the build.  Run it after the test classes
+ * have been compiled:
+ *
+ *   mvn test-compile
+ *   java -cp target/classes:target/test-classes:&lt;dependencies&gt;
+ *        org.ScripterRon.TokenExchange.BlockStoreBenchmark [headers [iterations]]
+ */
+public class BlockStoreBenchmark {
+
+    /** Default number of replayed headers */
+    private static final int DEFAULT_HEADERS = 100;
+
+    /** Default number of timed iterations */
+    private static final int DEFAULT_ITERATIONS = 20;
+
+    /**
+     * Run the benchmark
+     *
+     * @param   args            Number of headers and number of iterations (optional)
+     * @throws  SQLException    Database error occurred
+     */
+    public static void main(String[] args) throws SQLException {
+        int headerCount = (args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_HEADERS);
+        int iterations = (args.length > 1 ? Integer.parseInt(args[1]) : DEFAULT_ITERATIONS);
+        String url = System.getProperty("tokenexchange.test.postgresql");
+        boolean postgresql = (url != null);
+        Properties properties = new Properties();
+        if (postgresql) {
+            properties.setProperty("dbType", "POSTGRESQL");
+            properties.setProperty("dbURL", url);
+            properties.setProperty("dbUser", System.getProperty("tokenexchange.test.user", ""));
+            properties.setProperty("dbPassword", System.getProperty("tokenexchange.test.password", ""));
+        } else {
+            properties.setProperty("dbType", "H2");
+            properties.setProperty("dbURL", "jdbc:h2:mem:BlockStoreBenchmark;DB_CLOSE_DELAY=-1");
+        }
+        TokenAddon.exchangeRate = BigDecimal.ONE;
+        TokenDb.init(properties);
+        try {
+            String upsert = TokenDb.blockInsert;
+            List<byte[]> headers = createHeaders(headerCount);
+            upsertBatch(upsert, headers);
+            System.out.println("Replaying " + headerCount + " stored headers on "
+                    + (postgresql ? "PostgreSQL" : "H2") + ", " + iterations + " iterations");
+            for (int i=0; i<iterations/2+1; i++) {
+                insertAndSelect(headers);
+                upsert(upsert, headers);
+                upsertBatch(upsert, headers);
+            }
+            long insertTime = 0, upsertTime = 0, batchTime = 0;
+            for (int i=0; i<iterations; i++) {
+                long start = System.nanoTime();
+                insertAndSelect(headers);
+                insertTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                upsert(upsert, headers);
+                upsertTime += System.nanoTime() - start;
+                start = System.nanoTime();
+                upsertBatch(upsert, headers);
+                batchTime += System.nanoTime() - start;
+            }
+            System.out.println(String.format("%-28s %10.3f ms", "INSERT, then SELECT",
+                    insertTime / 1000000.0 / iterations));
+            System.out.println(String.format("%-28s %10.3f ms", (postgresql ? "ON CONFLICT" : "MERGE"),
+                    upsertTime / 1000000.0 / iterations));
+            System.out.println(String.format("%-28s %10.3f ms", (postgresql ? "ON CONFLICT" : "MERGE") + " batch",
+                    batchTime / 1000000.0 / iterations));
+        } finally {
+            TokenDb.shutdown();
+        }
+    }
+
+    /**
+     * Create the block headers
+     *
+     * @param   count           Number of headers
+     * @return                  Block identifiers followed by the serialized blocks
+     */
+    private static List<byte[]> createHeaders(int count) {
+        List<byte[]> headers = new ArrayList<>(count * 2);
+        for (int i=0; i<count; i++) {
+            byte[] blkid = new byte[32];
+            ByteBuffer.wrap(blkid).putInt(0x7e000000 + i);
+            byte[] bytes = new byte[StoredBlock.COMPACT_SERIALIZED_SIZE];
+            ByteBuffer.wrap(bytes).putInt(i);
+            headers.add(blkid);
+            headers.add(bytes);
+        }
+        return headers;
+    }
+
+    /**
+     * Store the headers using the previous block store
+     *
+     * @param   headers         Block identifiers followed by the serialized blocks
+     * @throws  SQLException    Header is not stored
+     */
+    private static void insertAndSelect(List<byte[]> headers) throws SQLException {
+        for (int i=0; i<headers.size(); i+=2) {
+            try (Connection conn = TokenDb.getConnection();
+                    PreparedStatement stmt = conn.prepareStatement("INSERT INTO " + TokenDb.BLOCK_TABLE
+                            + " (blkid,bytes) VALUES(?,?)")) {
+                stmt.setBytes(1, headers.get(i));
+                stmt.setBytes(2, headers.get(i + 1));
+                stmt.executeUpdate();
+            } catch (SQLException exc) {
+                boolean found = false;
+                try (Connection conn = TokenDb.getConnection();
+                        PreparedStatement stmt = conn.prepareStatement("SELECT 1 FROM " + TokenDb.BLOCK_TABLE
+                                + " WHERE blkid=?")) {
+                    stmt.setBytes(1, headers.get(i));
+                    try (ResultSet rs = stmt.executeQuery()) {
+                        found = rs.next();
+                    }
+                }
+                if (!found) {
+                    throw exc;
+                }
+            }
+        }
+    }
+
+    /**
+     * Store the headers one at a time using the upsert statement
+     *
+     * @param   upsert          Upsert statement
+     * @param   headers         Block identifiers followed by the serialized blocks
+     * @throws  SQLException    Database error occurred
+     */
+    private static void upsert(String upsert, List<byte[]> headers) throws SQLException {
+        for (int i=0; i<headers.size(); i+=2) {
+            try (Connection conn = TokenDb.getConnection();
+                    PreparedStatement stmt = conn.prepareStatement(upsert)) {
+                stmt.setBytes(1, headers.get(i));
+                stmt.setBytes(2, headers.get(i + 1));
+                stmt.executeUpdate();
+            }
+        }
+    }
+
+    /**
+     * Store the headers in a single batch using the upsert statement
+     *
+     * @param   upsert          Upsert statement
+     * @param   headers         Block identifiers followed by the serialized blocks
+     * @throws  SQLException    Database error occurred
+     */
+    private static void upsertBatch(String upsert, List<byte[]> headers) throws SQLException {
+        try (Connection conn = TokenDb.getConnection();
+                PreparedStatement stmt = conn.prepareStatement(upsert)) {
+            for (int i=0; i<headers.size(); i+=2) {
+                stmt.setBytes(1, headers.get(i));
+                stmt.setBytes(2, headers.get(i + 1));
+                stmt.addBatch();
+            }
+            stmt.executeBatch();
+        }
+    }
+}
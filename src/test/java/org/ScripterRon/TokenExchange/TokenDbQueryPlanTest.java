@@ -0,0 +1,304 @@
+/*
+ * Copyright 2016 Ronald W Hoffman.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.ScripterRon.TokenExchange;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.assertTrue;
+
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.ParameterMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Query plan regression tests
+ *
+ * Each TokenDb query and update with a selection condition is explained against a
+ * migrated schema and a test fails if a query plan contains a table scan.  The SQL
+ * text is read from TokenDb, so a change to a query or an index is checked.  Statements
+ * that read every row (the control table, getAccounts(), getAccountHashes() and
+ * getBroadcastTransactions()) and inserts are not checked.
+ *
+ * The H2 tests use an in-memory database.  The PostgreSQL tests are run when the
+ * 'tokenexchange.test.postgresql' system property is set to the database URL
+ * ('tokenexchange.test.user' and 'tokenexchange.test.password' provide the credentials).
+ * Sequential scans are disabled for PostgreSQL so that an index is used whenever one
+ * matches the query, even though the tables are empty.
+ */
+public class TokenDbQueryPlanTest {
+
+    /** Database schema */
+    private static final String SCHEMA = "TOKEN_EXCHANGE_4";
+
+    /** Broadcast table */
+    private static final String BROADCAST = SCHEMA + ".broadcast";
+
+    /** Reorganization staging table */
+    private static final String REORG = SCHEMA + ".reorg";
+
+    /**
+     * Check the H2 query plans
+     *
+     * @throws  SQLException    Database error occurred
+     */
+    @Test
+    public void h2QueryPlans() throws SQLException {
+        Properties properties = new Properties();
+        properties.setProperty("dbType", "H2");
+        properties.setProperty("dbURL", "jdbc:h2:mem:TokenDbQueryPlanTest;DB_CLOSE_DELAY=-1");
+        checkQueryPlans(properties, false);
+    }
+
+    /**
+     * Check the PostgreSQL query plans
+     *
+     * @throws  SQLException    Database error occurred
+     */
+    @Test
+    public void postgresqlQueryPlans() throws SQLException {
+        String url = System.getProperty("tokenexchange.test.postgresql");
+        Assume.assumeTrue("PostgreSQL database not specified", url != null);
+        Properties properties = new Properties();
+        properties.setProperty("dbType", "POSTGRESQL");
+        properties.setProperty("dbURL", url);
+        properties.setProperty("dbUser", System.getProperty("tokenexchange.test.user", ""));
+        properties.setProperty("dbPassword", System.getProperty("tokenexchange.test.password", ""));
+        checkQueryPlans(properties, true);
+    }
+
+    /**
+     * Migrate the schema and explain each query
+     *
+     * @param   properties      Database properties
+     * @param   postgresql      TRUE if this is a PostgreSQL database
+     * @throws  SQLException    Database error occurred
+     */
+    private void checkQueryPlans(Properties properties, boolean postgresql) throws SQLException {
+        TokenAddon.exchangeRate = BigDecimal.ONE;
+        TokenDb.init(properties);
+        List<String> failures = new ArrayList<>();
+        try (Connection conn = TokenDb.getConnection()) {
+            if (postgresql) {
+                try (Statement stmt = conn.createStatement()) {
+                    stmt.execute("SET enable_seqscan = off");
+                }
+            }
+            for (Query query : getQueries()) {
+                String plan = explain(conn, query.sql, postgresql);
+                if (hasTableScan(plan, query.scanTable, postgresql)) {
+                    failures.add(query.name + ":\n" + plan);
+                }
+            }
+        } finally {
+            TokenDb.shutdown();
+        }
+        assertTrue("Table scans found:\n" + String.join("\n", failures), failures.isEmpty());
+    }
+
+    /**
+     * Explain a query
+     *
+     * PostgreSQL needs a value for each parameter, so each parameter is set to a
+     * value of the parameter type.
+     *
+     * @param   conn            Database connection
+     * @param   sql             Query
+     * @param   postgresql      TRUE if this is a PostgreSQL database
+     * @return                  Query plan
+     * @throws  SQLException    Database error occurred
+     */
+    private static String explain(Connection conn, String sql, boolean postgresql) throws SQLException {
+        StringBuilder plan = new StringBuilder();
+        try (PreparedStatement stmt = conn.prepareStatement("EXPLAIN " + sql)) {
+            if (postgresql) {
+                ParameterMetaData metaData = stmt.getParameterMetaData();
+                for (int i=1; i<=metaData.getParameterCount(); i++) {
+                    switch (metaData.getParameterType(i)) {
+                        case Types.BINARY:
+                        case Types.VARBINARY:
+                        case Types.LONGVARBINARY:
+                            stmt.setBytes(i, new byte[32]);
+                            break;
+                        case Types.VARCHAR:
+                            stmt.setString(i, "address");
+                            break;
+                        case Types.BIT:
+                        case Types.BOOLEAN:
+                            stmt.setBoolean(i, false);
+                            break;
+                        default:
+                            stmt.setInt(i, 1);
+                    }
+                }
+            }
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    plan.append(rs.getString(1)).append('\n');
+                }
+            }
+        }
+        return plan.toString();
+    }
+
+    /**
+     * Check a query plan for a table scan
+     *
+     * @param   plan            Query plan
+     * @param   scanTable       Table that can be scanned or null
+     * @param   postgresql      TRUE if this is a PostgreSQL database
+     * @return                  TRUE if the plan contains a table scan
+     */
+    private static boolean hasTableScan(String plan, String scanTable, boolean postgresql) {
+        String allowed = null;
+        if (scanTable != null) {
+            allowed = (postgresql ? "Seq Scan on " + scanTable.substring(scanTable.indexOf('.') + 1)
+                                  : scanTable.toUpperCase() + ".tableScan");
+        }
+        for (String line : plan.split("\n")) {
+            if (allowed != null && line.contains(allowed)) {
+                continue;
+            }
+            if (postgresql ? line.contains("Seq Scan") : line.contains(".tableScan")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Get the queries to explain
+     *
+     * @return                  Query list
+     */
+    private static List<Query> getQueries() {
+        List<Query> queries = new ArrayList<>();
+        int in = 4;
+        //
+        // Token transactions
+        //
+        queries.add(new Query("tokenExists", TokenDb.tokenExistsQuery));
+        queries.add(new Query("getToken", TokenDb.tokenQuery));
+        queries.add(new Query("getTokens", TokenDb.getTokensQuery(false, false)));
+        queries.add(new Query("getTokens(next)", TokenDb.getTokensQuery(false, true)));
+        queries.add(new Query("getTokens(exchanged)", TokenDb.getTokensQuery(true, false)));
+        queries.add(new Query("getTokens(exchanged,next)", TokenDb.getTokensQuery(true, true)));
+        queries.add(new Query("getPendingTokens", TokenDb.pendingTokensQuery));
+        queries.add(new Query("updateToken", TokenDb.tokenUpdate));
+        queries.add(new Query("popTokens", TokenDb.tokenDelete));
+        //
+        // Bitcoin transactions
+        //
+        queries.add(new Query("updateTransactions", TokenDb.transactionUpdate));
+        queries.add(new Query("getUnconfirmedIssuances", TokenDb.unconfirmedIssuancesQuery));
+        queries.add(new Query("transactionExists(address)", TokenDb.addressTransactionExistsQuery));
+        queries.add(new Query("transactionExists(txid,blkid)", TokenDb.transactionExistsQuery));
+        queries.add(new Query("getTransactionIds", TokenDb.getTransactionIdsQuery(in)));
+        queries.add(new Query("getTransaction", TokenDb.transactionQuery));
+        queries.add(new Query("getTransactions", TokenDb.getTransactionsQuery(false, false, false)));
+        queries.add(new Query("getTransactions(next)", TokenDb.getTransactionsQuery(false, false, true)));
+        queries.add(new Query("getTransactions(exchanged)", TokenDb.getTransactionsQuery(false, true, false)));
+        queries.add(new Query("getTransactions(exchanged,next)",
+                              TokenDb.getTransactionsQuery(false, true, true)));
+        queries.add(new Query("getTransactions(address)", TokenDb.getTransactionsQuery(true, false, false)));
+        queries.add(new Query("getTransactions(address,next)", TokenDb.getTransactionsQuery(true, false, true)));
+        queries.add(new Query("getTransactions(address,exchanged)",
+                              TokenDb.getTransactionsQuery(true, true, false)));
+        queries.add(new Query("getTransactions(address,exchanged,next)",
+                              TokenDb.getTransactionsQuery(true, true, true)));
+        queries.add(new Query("getPendingTransactions", TokenDb.pendingTransactionsQuery));
+        //
+        // Unspent outputs and broadcast transactions (the broadcast table holds
+        // just the transactions that have not been confirmed and is always scanned)
+        //
+        queries.add(new Query("getUnspentOutput", TokenDb.unspentOutputQuery));
+        queries.add(new Query("getUnspentOutputs(blkid,txids)", TokenDb.getUnspentOutputsQuery(in)));
+        queries.add(new Query("getUnspentOutputs", TokenDb.activeUnspentOutputsQuery));
+        queries.add(new Query("getAllUnspentOutputs", TokenDb.allUnspentOutputsQuery));
+        queries.add(new Query("spendOutput", TokenDb.spendOutputUpdate));
+        queries.add(new Query("getBroadcastTransaction", TokenDb.broadcastTransactionQuery, BROADCAST));
+        queries.add(new Query("deleteBroadcastTransaction", TokenDb.broadcastTransactionDelete, BROADCAST));
+        //
+        // Accounts and blocks
+        //
+        queries.add(new Query("storeAccountHashes", TokenDb.accountHashUpdate));
+        queries.add(new Query("getAccount(accountId)", TokenDb.accountIdQuery));
+        queries.add(new Query("getAccount(address)", TokenDb.accountQuery));
+        queries.add(new Query("getAccounts(addresses)", TokenDb.getAccountsQuery(in)));
+        queries.add(new Query("deleteAccountAddress", TokenDb.accountDelete));
+        queries.add(new Query("getBlock", TokenDb.blockQuery));
+        //
+        // Archiving
+        //
+        addArchiveQueries(queries, "archiveTokens", TokenDb.tokenArchive);
+        addArchiveQueries(queries, "archiveTransactions", TokenDb.transactionArchive);
+        addArchiveQueries(queries, "archiveUnspentOutputs", TokenDb.unspentArchive);
+        //
+        // Block chain reorganization (the staging table is always scanned)
+        //
+        queries.add(new Query("reorganize(unspent)", TokenDb.unspentReorgUpdate));
+        queries.add(new Query("reorganize(unspent,fork)", TokenDb.unspentForkUpdate, REORG));
+        queries.add(new Query("reorganize(bitcoin)", TokenDb.transactionReorgUpdate));
+        queries.add(new Query("reorganize(bitcoin,fork)", TokenDb.transactionForkUpdate, REORG));
+        return queries;
+    }
+
+    /**
+     * Add the archive statements
+     *
+     * @param   queries         Query list
+     * @param   name            TokenDb method name
+     * @param   archive         Archive statements
+     */
+    private static void addArchiveQueries(List<Query> queries, String name, TokenDb.ArchiveStatements archive) {
+        queries.add(new Query(name + "(height)", archive.heightQuery));
+        queries.add(new Query(name + "(copy)", archive.copyInsert));
+        queries.add(new Query(name + "(delete)", archive.rowDelete));
+    }
+
+    /**
+     * Query to explain
+     */
+    private static class Query {
+
+        /** TokenDb method name */
+        private final String name;
+
+        /** SQL text */
+        private final String sql;
+
+        /** Table that can be scanned or null */
+        private final String scanTable;
+
+        private Query(String name, String sql) {
+            this(name, sql, null);
+        }
+
+        private Query(String name, String sql, String scanTable) {
+            this.name = name;
+            this.sql = sql;
+            this.scanTable = scanTable;
+        }
+    }
+}